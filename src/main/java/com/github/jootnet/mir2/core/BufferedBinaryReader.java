@@ -0,0 +1,337 @@
+/*
+ * Copyright 2017 JOOTNET Project
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Support: https://github.com/jootnet/mir2.core
+ */
+package com.github.jootnet.mir2.core;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * 带缓冲的文件二进制读取类
+ * <br>
+ * 与{@link BinaryReader}逐字节调用{@link RandomAccessFile#read()}不同，此类一次从文件读取一整块数据到缓冲区，再从缓冲区中解析
+ * <br>
+ * 缓冲区范围内的{@link #seek(long)}不会产生文件操作
+ * <br>
+ * 以<b>LE</b>结尾的函数将读取的字节以<b>Little-Endian</b>格式返回，以<b>sLE</b>结尾的函数批量读取数组
+ * <br>
+ * 此类不是线程安全的，适合在加载库文件/地图文件时顺序读取
+ *
+ * @author 云中双月
+ */
+public final class BufferedBinaryReader implements Closeable {
+
+	/** 默认缓冲区大小 */
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	private final RandomAccessFile raf;
+	private final long length;
+	private final byte[] buf;
+	/* 缓冲区第一个字节在文件中的位置 */
+	private long bufPos;
+	/* 缓冲区中有效数据长度 */
+	private int bufLen;
+	/* 当前读取位置在缓冲区中的索引 */
+	private int pos;
+
+	/**
+	 * 以默认缓冲区大小打开文件
+	 *
+	 * @param file
+	 * 		要读取的文件
+	 * @throws IOException
+	 * 		文件不存在或无法读取
+	 */
+	public BufferedBinaryReader(File file) throws IOException {
+		this(file, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * 以指定缓冲区大小打开文件<br>
+	 * 顺序读取整个文件时可以传入文件长度，这样只需要一次文件读取<br>
+	 * 跳跃读取分散的小块数据时应使用较小的缓冲区，避免每次跳转都读取大量无用数据
+	 *
+	 * @param file
+	 * 		要读取的文件
+	 * @param bufferSize
+	 * 		缓冲区大小(字节)，最小为8
+	 * @throws IOException
+	 * 		文件不存在或无法读取
+	 */
+	public BufferedBinaryReader(File file, int bufferSize) throws IOException {
+		raf = new RandomAccessFile(file, "r");
+		length = raf.length();
+		buf = new byte[Math.max(bufferSize, 8)];
+	}
+
+	/**
+	 * 获取文件长度
+	 *
+	 * @return 文件字节数
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * 获取当前读取位置
+	 *
+	 * @return 当前读取位置在文件中的偏移
+	 */
+	public long getFilePointer() {
+		return bufPos + pos;
+	}
+
+	/**
+	 * 设置读取位置<br>
+	 * 如果目标位置在缓冲区内则只移动缓冲区索引
+	 *
+	 * @param position
+	 * 		目标位置在文件中的偏移
+	 */
+	public void seek(long position) {
+		if(position >= bufPos && position <= bufPos + bufLen) {
+			pos = (int) (position - bufPos);
+		} else {
+			bufPos = position;
+			bufLen = 0;
+			pos = 0;
+		}
+	}
+
+	/**
+	 * 跳过特定字节数
+	 *
+	 * @param n
+	 * 		要跳过的字节数
+	 */
+	public void skipBytes(int n) {
+		seek(getFilePointer() + n);
+	}
+
+	/* 确保缓冲区中至少有n个字节可读，n不能超过缓冲区大小 */
+	private void ensure(int n) throws IOException {
+		if(bufLen - pos >= n) return;
+		int remain = bufLen - pos;
+		if(remain > 0)
+			System.arraycopy(buf, pos, buf, 0, remain);
+		bufPos += pos;
+		bufLen = remain;
+		pos = 0;
+		raf.seek(bufPos + bufLen);
+		while(bufLen < n) {
+			int read = raf.read(buf, bufLen, buf.length - bufLen);
+			if(read < 0)
+				throw new EOFException();
+			bufLen += read;
+		}
+	}
+
+	/**
+	 * 从流中读取一个字节
+	 *
+	 * @return 一个有符号字节
+	 * @throws IOException 文件已达到末尾
+	 */
+	public byte readByte() throws IOException {
+		ensure(1);
+		return buf[pos++];
+	}
+
+	/**
+	 * 从流中读取一个短整形数据
+	 * <br>
+	 * 流位置向前推进两个字节
+	 *
+	 * @return 一个短整形，以Little-Endian格式返回
+	 * @throws IOException 文件已达到末尾
+	 */
+	public short readShortLE() throws IOException {
+		ensure(2);
+		short v = (short) ((buf[pos] & 0xff) | (buf[pos + 1] << 8));
+		pos += 2;
+		return v;
+	}
+
+	/**
+	 * 从流中读取一个无符号短整形数据
+	 * <br>
+	 * 流位置向前推进两个字节
+	 *
+	 * @return 一个无符号短整形，以Little-Endian格式返回
+	 * @throws IOException 文件已达到末尾
+	 */
+	public int readUnsignedShortLE() throws IOException {
+		return readShortLE() & 0xffff;
+	}
+
+	/**
+	 * 从流中读取一个四字节整形
+	 * <br>
+	 * 流位置向前推进四个字节
+	 *
+	 * @return 一个整形，以Little-Endian格式返回
+	 * @throws IOException 文件已达到末尾
+	 */
+	public int readIntLE() throws IOException {
+		ensure(4);
+		int v = getIntLE(buf, pos);
+		pos += 4;
+		return v;
+	}
+
+	/**
+	 * 从流中读取一个八字节长整形
+	 * <br>
+	 * 流位置向前推进八个字节
+	 *
+	 * @return 一个长整形，以Little-Endian格式返回
+	 * @throws IOException 文件已达到末尾
+	 */
+	public long readLongLE() throws IOException {
+		ensure(8);
+		long v = (getIntLE(buf, pos) & 0xFFFFFFFFL) | ((long) getIntLE(buf, pos + 4) << 32);
+		pos += 8;
+		return v;
+	}
+
+	/**
+	 * 从流中读取数据填满字节数组
+	 *
+	 * @param b
+	 * 		目标数组
+	 * @param off
+	 * 		目标数组起始位置
+	 * @param len
+	 * 		读取的字节数
+	 * @throws IOException 文件已达到末尾
+	 */
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		int remain = Math.min(bufLen - pos, len);
+		System.arraycopy(buf, pos, b, off, remain);
+		pos += remain;
+		off += remain;
+		len -= remain;
+		if(len == 0) return;
+		if(len >= buf.length) {
+			// 大块数据直接读取到目标数组，不经过缓冲区
+			long p = getFilePointer();
+			raf.seek(p);
+			raf.readFully(b, off, len);
+			bufPos = p + len;
+			bufLen = 0;
+			pos = 0;
+			return;
+		}
+		ensure(len);
+		System.arraycopy(buf, pos, b, off, len);
+		pos += len;
+	}
+
+	/**
+	 * 从流中读取数据填满字节数组
+	 *
+	 * @param b
+	 * 		目标数组
+	 * @throws IOException 文件已达到末尾
+	 */
+	public void readFully(byte[] b) throws IOException {
+		readFully(b, 0, b.length);
+	}
+
+	/**
+	 * 从流中批量读取短整形数据
+	 * <br>
+	 * 流位置向前推进len * 2个字节
+	 *
+	 * @param dst
+	 * 		目标数组，以Little-Endian格式解析
+	 * @param off
+	 * 		目标数组起始位置
+	 * @param len
+	 * 		读取的短整形个数
+	 * @throws IOException 文件已达到末尾
+	 */
+	public void readShortsLE(short[] dst, int off, int len) throws IOException {
+		while(len > 0) {
+			int n = Math.min(len, buf.length / 2);
+			ensure(n * 2);
+			for(int i = 0; i < n; ++i, pos += 2)
+				dst[off++] = (short) ((buf[pos] & 0xff) | (buf[pos + 1] << 8));
+			len -= n;
+		}
+	}
+
+	/**
+	 * 从流中批量读取短整形数据填满数组
+	 *
+	 * @param dst
+	 * 		目标数组，以Little-Endian格式解析
+	 * @throws IOException 文件已达到末尾
+	 */
+	public void readShortsLE(short[] dst) throws IOException {
+		readShortsLE(dst, 0, dst.length);
+	}
+
+	/**
+	 * 从流中批量读取四字节整形数据
+	 * <br>
+	 * 流位置向前推进len * 4个字节
+	 *
+	 * @param dst
+	 * 		目标数组，以Little-Endian格式解析
+	 * @param off
+	 * 		目标数组起始位置
+	 * @param len
+	 * 		读取的整形个数
+	 * @throws IOException 文件已达到末尾
+	 */
+	public void readIntsLE(int[] dst, int off, int len) throws IOException {
+		while(len > 0) {
+			int n = Math.min(len, buf.length / 4);
+			ensure(n * 4);
+			for(int i = 0; i < n; ++i, pos += 4)
+				dst[off++] = getIntLE(buf, pos);
+			len -= n;
+		}
+	}
+
+	/**
+	 * 从流中批量读取四字节整形数据填满数组
+	 *
+	 * @param dst
+	 * 		目标数组，以Little-Endian格式解析
+	 * @throws IOException 文件已达到末尾
+	 */
+	public void readIntsLE(int[] dst) throws IOException {
+		readIntsLE(dst, 0, dst.length);
+	}
+
+	private static int getIntLE(byte[] b, int i) {
+		return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) | ((b[i + 2] & 0xff) << 16) | (b[i + 3] << 24);
+	}
+
+	/**
+	 * 关闭文件
+	 */
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2017 JOOTNET Project
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Support: https://github.com/jootnet/mir2.core
+ */
+package com.github.jootnet.mir2.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * 带缓冲的文件二进制写入类
+ * <br>
+ * 与{@link BinaryWriter}逐字节调用{@link RandomAccessFile#write(int)}不同，此类先将数据编码到缓冲区，缓冲区满或调用{@link #flush()}时一次性写入文件
+ * <br>
+ * 以<b>LE</b>结尾的函数以<b>Little-Endian</b>格式写入，以<b>sLE</b>结尾的函数批量写入数组
+ * <br>
+ * 此类不是线程安全的
+ *
+ * @author 云中双月
+ */
+public final class BufferedBinaryWriter implements Closeable, Flushable {
+
+	/** 默认缓冲区大小 */
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	private final RandomAccessFile raf;
+	private final byte[] buf;
+	/* 缓冲区中待写入的字节数 */
+	private int count;
+
+	/**
+	 * 以默认缓冲区大小打开文件<br>
+	 * 文件已存在时会清空原有内容
+	 *
+	 * @param file
+	 * 		要写入的文件
+	 * @throws IOException
+	 * 		文件无法创建或写入
+	 */
+	public BufferedBinaryWriter(File file) throws IOException {
+		this(file, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * 以指定缓冲区大小打开文件<br>
+	 * 文件已存在时会清空原有内容
+	 *
+	 * @param file
+	 * 		要写入的文件
+	 * @param bufferSize
+	 * 		缓冲区大小(字节)，最小为8
+	 * @throws IOException
+	 * 		文件无法创建或写入
+	 */
+	public BufferedBinaryWriter(File file, int bufferSize) throws IOException {
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		buf = new byte[Math.max(bufferSize, 8)];
+	}
+
+	/* 确保缓冲区中至少有n个字节的剩余空间，n不能超过缓冲区大小 */
+	private void ensure(int n) throws IOException {
+		if(buf.length - count < n)
+			flush();
+	}
+
+	/**
+	 * 写入一个字节
+	 *
+	 * @param v
+	 * 		要写入的字节，只使用低8位
+	 * @throws IOException
+	 * 		写入过程中发生的I/O异常
+	 */
+	public void writeByte(int v) throws IOException {
+		ensure(1);
+		buf[count++] = (byte) v;
+	}
+
+	/**
+	 * 写入字节数组中的一段数据
+	 *
+	 * @param b
+	 * 		数据
+	 * @param off
+	 * 		数据起始位置
+	 * @param len
+	 * 		写入的字节数
+	 * @throws IOException
+	 * 		写入过程中发生的I/O异常
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(len >= buf.length) {
+			// 大块数据直接写入文件，不经过缓冲区
+			flush();
+			raf.write(b, off, len);
+			return;
+		}
+		ensure(len);
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	/**
+	 * 写入整个字节数组
+	 *
+	 * @param b
+	 * 		数据
+	 * @throws IOException
+	 * 		写入过程中发生的I/O异常
+	 */
+	public void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+
+	/**
+	 * 以低位在前(Little-Endian)的方式写入两个字节数据(一个short类型数据)
+	 *
+	 * @param v
+	 * 		要写入的short
+	 * @throws IOException
+	 * 		写入过程中发生的I/O异常
+	 */
+	public void writeShortLE(short v) throws IOException {
+		ensure(2);
+		buf[count++] = (byte) v;
+		buf[count++] = (byte) (v >>> 8);
+	}
+
+	/**
+	 * 以低位在前(Little-Endian)的方式写入四个字节数据(一个int类型数据)
+	 *
+	 * @param v
+	 * 		要写入的int
+	 * @throws IOException
+	 * 		写入过程中发生的I/O异常
+	 */
+	public void writeIntLE(int v) throws IOException {
+		ensure(4);
+		putIntLE(v);
+	}
+
+	/**
+	 * 以低位在前(Little-Endian)的方式写入八个字节数据(一个long类型数据)
+	 *
+	 * @param v
+	 * 		要写入的long
+	 * @throws IOException
+	 * 		写入过程中发生的I/O异常
+	 */
+	public void writeLongLE(long v) throws IOException {
+		ensure(8);
+		putIntLE((int) v);
+		putIntLE((int) (v >>> 32));
+	}
+
+	/**
+	 * 以低位在前(Little-Endian)的方式批量写入short类型数据
+	 *
+	 * @param src
+	 * 		数据
+	 * @param off
+	 * 		数据起始位置
+	 * @param len
+	 * 		写入的short个数
+	 * @throws IOException
+	 * 		写入过程中发生的I/O异常
+	 */
+	public void writeShortsLE(short[] src, int off, int len) throws IOException {
+		while(len > 0) {
+			int n = Math.min(len, buf.length / 2);
+			ensure(n * 2);
+			for(int i = 0; i < n; ++i) {
+				short v = src[off++];
+				buf[count++] = (byte) v;
+				buf[count++] = (byte) (v >>> 8);
+			}
+			len -= n;
+		}
+	}
+
+	/**
+	 * 以低位在前(Little-Endian)的方式写入整个short数组
+	 *
+	 * @param src
+	 * 		数据
+	 * @throws IOException
+	 * 		写入过程中发生的I/O异常
+	 */
+	public void writeShortsLE(short[] src) throws IOException {
+		writeShortsLE(src, 0, src.length);
+	}
+
+	/**
+	 * 以低位在前(Little-Endian)的方式批量写入int类型数据
+	 *
+	 * @param src
+	 * 		数据
+	 * @param off
+	 * 		数据起始位置
+	 * @param len
+	 * 		写入的int个数
+	 * @throws IOException
+	 * 		写入过程中发生的I/O异常
+	 */
+	public void writeIntsLE(int[] src, int off, int len) throws IOException {
+		while(len > 0) {
+			int n = Math.min(len, buf.length / 4);
+			ensure(n * 4);
+			for(int i = 0; i < n; ++i)
+				putIntLE(src[off++]);
+			len -= n;
+		}
+	}
+
+	/**
+	 * 以低位在前(Little-Endian)的方式写入整个int数组
+	 *
+	 * @param src
+	 * 		数据
+	 * @throws IOException
+	 * 		写入过程中发生的I/O异常
+	 */
+	public void writeIntsLE(int[] src) throws IOException {
+		writeIntsLE(src, 0, src.length);
+	}
+
+	private void putIntLE(int v) {
+		buf[count++] = (byte) v;
+		buf[count++] = (byte) (v >>> 8);
+		buf[count++] = (byte) (v >>> 16);
+		buf[count++] = (byte) (v >>> 24);
+	}
+
+	/**
+	 * 将缓冲区中的数据写入文件
+	 *
+	 * @throws IOException
+	 * 		写入过程中发生的I/O异常
+	 */
+	@Override
+	public void flush() throws IOException {
+		if(count > 0) {
+			raf.write(buf, 0, count);
+			count = 0;
+		}
+	}
+
+	/**
+	 * 写入缓冲区中剩余的数据并关闭文件
+	 *
+	 * @throws IOException
+	 * 		写入过程中发生的I/O异常
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 JOOTNET Project
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Support: https://github.com/jootnet/mir2.core
+ */
+package com.github.jootnet.mir2.core;
+
+/**
+ * 热血传奇调色板图片数据<br>
+ * 8位图片的原始存储形式，每个像素一个字节，是调色板中颜色的索引<br>
+ * 与{@link Texture}相比只占用三分之一内存，需要时再转换为RGB或ARGB数据，也可以将索引和调色板直接交给支持调色板纹理的显卡
+ * <br>
+ * 此类的对象创建后不再修改，可以在多个线程间共享
+ *
+ * @author 云中双月
+ */
+public final class IndexedTexture {
+
+	/**
+	 * 空图片
+	 */
+	public static final IndexedTexture EMPTY = new IndexedTexture(new byte[]{ 0 }, 1, 1, SDK.palletes);
+
+	private final byte[] indices;
+	private final int width;
+	private final int height;
+	private final byte[][] pallete;
+
+	/**
+	 * 从调色板索引创建图片数据
+	 *
+	 * @param indices
+	 * 		调色板索引<br>
+	 * 		每个像素一个字节，从图片左上角到右下角，行与行之间没有填充字节
+	 * @param width
+	 * 		图片宽度
+	 * @param height
+	 * 		图片高度
+	 * @param pallete
+	 * 		调色板<br>
+	 * 		256个颜色，每个颜色为ARGB格式，与{@link SDK#palletes}相同
+	 *
+	 * @throws IllegalArgumentException 传入的索引数据长度或调色板不符合要求
+	 */
+	public IndexedTexture(byte[] indices, int width, int height, byte[][] pallete) throws IllegalArgumentException {
+		if(indices == null || width < 1 || height < 1 || indices.length != width * height)
+			throw new IllegalArgumentException("indices length not match width * height !!!");
+		if(pallete == null || pallete.length != 256)
+			throw new IllegalArgumentException("pallete must contains 256 item");
+		this.indices = indices;
+		this.width = width;
+		this.height = height;
+		this.pallete = pallete;
+	}
+
+	/**
+	 * 获取图片宽度
+	 *
+	 * @return
+	 * 		图片宽度(像素)
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * 获取图片高度
+	 *
+	 * @return
+	 * 		图片高度(像素)
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * 获取调色板索引数据<br>
+	 * 每个像素一个字节，从图片左上角到右下角<br>
+	 * 返回的是内部数组，调用方不能修改
+	 *
+	 * @return
+	 * 		图片全部调色板索引
+	 */
+	public byte[] getIndices() {
+		return indices;
+	}
+
+	/**
+	 * 获取图片特定点的调色板索引
+	 *
+	 * @param x
+	 * 		横坐标(像素)
+	 * @param y
+	 * 		纵坐标(像素)
+	 * @return
+	 * 		调色板索引，0-255
+	 */
+	public int getIndex(int x, int y) {
+		return indices[x + y * width] & 0xff;
+	}
+
+	/**
+	 * 获取图片使用的调色板<br>
+	 * 返回的是内部数组，调用方不能修改
+	 *
+	 * @return
+	 * 		256个ARGB颜色
+	 */
+	public byte[][] getPallete() {
+		return pallete;
+	}
+
+	/**
+	 * 判断当前图片是否为空
+	 *
+	 * @return true表示当前图片为空
+	 */
+	public final boolean empty() {
+		return this == EMPTY;
+	}
+
+	/**
+	 * 转换为RGB图片数据
+	 *
+	 * @return 新的图片数据对象
+	 */
+	public Texture toTexture() {
+		if(empty())
+			return Texture.EMPTY;
+		byte[] sRGB = new byte[indices.length * 3];
+		if(pallete == SDK.palletes) {
+			int[] colors = SDK.palletesRGB;
+			for(int i = 0, _idx = 0; i < indices.length; ++i, _idx += 3) {
+				int c = colors[indices[i] & 0xff];
+				sRGB[_idx] = (byte) (c >> 16);
+				sRGB[_idx + 1] = (byte) (c >> 8);
+				sRGB[_idx + 2] = (byte) c;
+			}
+		} else {
+			for(int i = 0, _idx = 0; i < indices.length; ++i, _idx += 3) {
+				byte[] color = pallete[indices[i] & 0xff];
+				sRGB[_idx] = color[1];
+				sRGB[_idx + 1] = color[2];
+				sRGB[_idx + 2] = color[3];
+			}
+		}
+		return new Texture(sRGB, width, height);
+	}
+
+	/**
+	 * 转换为ARGB颜色数据<br>
+	 * 每个像素一个int，从图片左上角到右下角，调色板中第0个颜色(背景色)的透明度为0，其他颜色不透明
+	 *
+	 * @return 长度为宽度*高度的ARGB颜色数组
+	 */
+	public int[] toARGB() {
+		int[] argb = new int[indices.length];
+		toARGB(argb, 0);
+		return argb;
+	}
+
+	/**
+	 * 将ARGB颜色数据写入特定数组
+	 *
+	 * @param dst
+	 * 		目标数组，从指定位置开始至少需要宽度*高度个元素
+	 * @param off
+	 * 		目标数组起始位置
+	 *
+	 * @see #toARGB()
+	 */
+	public void toARGB(int[] dst, int off) {
+		int[] colors;
+		if(pallete == SDK.palletes) {
+			colors = SDK.palletesARGB;
+		} else {
+			colors = new int[256];
+			for(int i = 0; i < 256; ++i) {
+				byte[] color = pallete[i];
+				colors[i] = (i == 0 ? 0 : 0xff000000) | ((color[1] & 0xff) << 16) | ((color[2] & 0xff) << 8) | (color[3] & 0xff);
+			}
+		}
+		for(int i = 0; i < indices.length; ++i)
+			dst[off + i] = colors[indices[i] & 0xff];
+	}
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2017 JOOTNET Project
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Support: https://github.com/jootnet/mir2.core
+ */
+package com.github.jootnet.mir2.core;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 文件内存映射类
+ * <br>
+ * 将整个文件以只读方式映射到内存，所有读取函数都是按绝对位置读取，不会修改任何共享的文件指针
+ * <br>
+ * 因此多个线程可以同时读取同一个对象而无需加锁
+ * <br>
+ * {@link #close()}立即解除映射，文件随后可以被删除或覆盖；关闭时仍在进行的读取结束后才解除映射
+ * <br>
+ * 以<b>LE</b>结尾的函数将读取的字节以<b>Little-Endian</b>格式返回
+ *
+ * @author 云中双月
+ */
+public final class MappedFile implements Closeable {
+
+	/* 最高位表示已关闭，其余位为正在进行的读取数量 */
+	private static final int CLOSED = 0x80000000;
+
+	/* 映射的文件数据，解除映射后置空 */
+	private volatile ByteBuffer buffer;
+	private final AtomicInteger state = new AtomicInteger();
+	/* 文件长度 */
+	private final int length;
+
+	/**
+	 * 以只读方式映射整个文件
+	 *
+	 * @param file
+	 * 		要映射的文件
+	 * @throws IOException
+	 * 		文件不存在或大于2G或映射失败
+	 */
+	public MappedFile(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			long size = fc.size();
+			if(size > Integer.MAX_VALUE)
+				throw new IOException("file too large to map: " + file);
+			length = (int) size;
+			buffer = fc.map(MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+		} finally {
+			// 映射建立后即使关闭文件也依然有效
+			raf.close();
+		}
+	}
+
+	/**
+	 * 获取文件长度
+	 *
+	 * @return 文件字节数
+	 */
+	public int length() {
+		return length;
+	}
+
+	/* 开始一次读取，读取结束后需要调用exit */
+	private ByteBuffer enter() throws IOException {
+		for(;;) {
+			int st = state.get();
+			if((st & CLOSED) != 0)
+				throw new IOException("MappedFile closed");
+			if(state.compareAndSet(st, st + 1))
+				return buffer;
+		}
+	}
+
+	/* 结束一次读取，已关闭且是最后一个读取时解除映射 */
+	private void exit() {
+		if(state.decrementAndGet() == CLOSED)
+			unmap();
+	}
+
+	private void check(int position, int count) throws IOException {
+		if(position < 0 || count < 0 || position > length - count)
+			throw new EOFException();
+	}
+
+	/**
+	 * 读取特定位置的一个字节
+	 *
+	 * @param position
+	 * 		文件中的位置
+	 * @return 该位置的字节
+	 * @throws IOException 位置超出文件范围或文件已关闭
+	 */
+	public byte readByte(int position) throws IOException {
+		check(position, 1);
+		ByteBuffer bb = enter();
+		try {
+			return bb.get(position);
+		} finally {
+			exit();
+		}
+	}
+
+	/**
+	 * 读取特定位置的一个短整形数据
+	 *
+	 * @param position
+	 * 		文件中的位置
+	 * @return 一个短整形，以Little-Endian格式返回
+	 * @throws IOException 位置超出文件范围或文件已关闭
+	 */
+	public short readShortLE(int position) throws IOException {
+		check(position, 2);
+		ByteBuffer bb = enter();
+		try {
+			return bb.getShort(position);
+		} finally {
+			exit();
+		}
+	}
+
+	/**
+	 * 读取特定位置的一个无符号短整形数据
+	 *
+	 * @param position
+	 * 		文件中的位置
+	 * @return 一个无符号短整形，以Little-Endian格式返回
+	 * @throws IOException 位置超出文件范围或文件已关闭
+	 */
+	public int readUnsignedShortLE(int position) throws IOException {
+		return readShortLE(position) & 0xffff;
+	}
+
+	/**
+	 * 读取特定位置的一个四字节整形
+	 *
+	 * @param position
+	 * 		文件中的位置
+	 * @return 一个整形，以Little-Endian格式返回
+	 * @throws IOException 位置超出文件范围或文件已关闭
+	 */
+	public int readIntLE(int position) throws IOException {
+		check(position, 4);
+		ByteBuffer bb = enter();
+		try {
+			return bb.getInt(position);
+		} finally {
+			exit();
+		}
+	}
+
+	/**
+	 * 从特定位置读取一段数据到字节数组
+	 *
+	 * @param position
+	 * 		文件中的位置
+	 * @param b
+	 * 		目标数组
+	 * @param off
+	 * 		目标数组起始位置
+	 * @param len
+	 * 		读取的字节数
+	 * @throws IOException 位置超出文件范围或文件已关闭
+	 */
+	public void read(int position, byte[] b, int off, int len) throws IOException {
+		check(position, len);
+		ByteBuffer bb = enter();
+		try {
+			// duplicate出的对象拥有独立的position，不影响其他线程
+			ByteBuffer dup = bb.duplicate();
+			// 转为Buffer调用，避免链接到Java 9才有的ByteBuffer.position(int)
+			((Buffer) dup).position(position);
+			dup.get(b, off, len);
+		} finally {
+			exit();
+		}
+	}
+
+	/**
+	 * 从特定位置读取数据填满字节数组
+	 *
+	 * @param position
+	 * 		文件中的位置
+	 * @param b
+	 * 		目标数组
+	 * @throws IOException 位置超出文件范围或文件已关闭
+	 */
+	public void read(int position, byte[] b) throws IOException {
+		read(position, b, 0, b.length);
+	}
+
+	/**
+	 * 获取文件中一段数据的只读视图<br>
+	 * 返回的对象与文件共享内存，不产生拷贝，且使用Little-Endian字节序<br>
+	 * 视图不阻止{@link #close()}解除映射，关闭后不能再访问视图
+	 *
+	 * @param position
+	 * 		文件中的位置
+	 * @param len
+	 * 		视图长度
+	 * @return 文件数据的只读视图
+	 * @throws IOException 位置超出文件范围或文件已关闭
+	 */
+	public ByteBuffer slice(int position, int len) throws IOException {
+		check(position, len);
+		ByteBuffer bb = enter();
+		try {
+			ByteBuffer dup = bb.asReadOnlyBuffer();
+			((Buffer) dup).position(position);
+			((Buffer) dup).limit(position + len);
+			return dup.slice().order(ByteOrder.LITTLE_ENDIAN);
+		} finally {
+			exit();
+		}
+	}
+
+	/**
+	 * 关闭映射<br>
+	 * 没有读取在进行时立即解除映射，否则由最后一个读取结束时解除；之后的读取抛出IOException<br>
+	 * 虚拟机不支持主动解除映射时，映射内存在无引用后由虚拟机回收
+	 */
+	@Override
+	public void close() {
+		for(;;) {
+			int st = state.get();
+			if((st & CLOSED) != 0) return;
+			if(state.compareAndSet(st, st | CLOSED)) {
+				if(st == 0) unmap();
+				return;
+			}
+		}
+	}
+
+	private void unmap() {
+		ByteBuffer bb = buffer;
+		buffer = null;
+		if(bb != null)
+			Unmapper.unmap(bb);
+	}
+
+	/**
+	 * 主动解除内存映射<br>
+	 * Java 9及以上使用sun.misc.Unsafe.invokeCleaner，Java 8使用缓冲区的sun.misc.Cleaner，都不可用时等待虚拟机回收
+	 */
+	private static final class Unmapper {
+		private static final Object UNSAFE;
+		private static final Method INVOKE_CLEANER;
+
+		static {
+			Object unsafe = null;
+			Method invokeCleaner = null;
+			try {
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				Field f = unsafeClass.getDeclaredField("theUnsafe");
+				f.setAccessible(true);
+				unsafe = f.get(null);
+			} catch(Exception ex) {
+				// Java 8没有invokeCleaner
+				invokeCleaner = null;
+			}
+			UNSAFE = unsafe;
+			INVOKE_CLEANER = invokeCleaner;
+		}
+
+		static void unmap(ByteBuffer bb) {
+			try {
+				if(INVOKE_CLEANER != null) {
+					INVOKE_CLEANER.invoke(UNSAFE, bb);
+					return;
+				}
+				Method cleaner = bb.getClass().getMethod("cleaner");
+				cleaner.setAccessible(true);
+				Object c = cleaner.invoke(bb);
+				if(c != null)
+					c.getClass().getMethod("clean").invoke(c);
+			} catch(Exception ex) {
+				// 无法主动解除映射，由虚拟机回收
+			}
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 JOOTNET Project
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Support: https://github.com/jootnet/mir2.core
+ */
+package com.github.jootnet.mir2.core;
+
+/**
+ * 像素字节格式<br>
+ * 用于将图片直接解码到调用方提供的字节数组或缓冲区<br>
+ * 带透明通道的格式中，8位图片调色板第0个颜色以及16位图片中的纯黑色(背景色)透明度为0，其他颜色不透明
+ *
+ * @author 云中双月
+ */
+public enum PixelFormat {
+
+	/** 每像素3字节，依次为R G B，与{@link Texture}相同 */
+	RGB(3),
+	/** 每像素4字节，依次为R G B A，对应OpenGL的GL_RGBA */
+	RGBA(4),
+	/** 每像素4字节，依次为B G R A，对应OpenGL的GL_BGRA以及Windows位图 */
+	BGRA(4),
+	/** 每像素4字节，依次为A R G B */
+	ARGB(4);
+
+	private final int bytesPerPixel;
+
+	private PixelFormat(int bytesPerPixel) {
+		this.bytesPerPixel = bytesPerPixel;
+	}
+
+	/**
+	 * 获取每个像素占用的字节数
+	 *
+	 * @return 字节数
+	 */
+	public int getBytesPerPixel() {
+		return bytesPerPixel;
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 JOOTNET Project
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Support: https://github.com/jootnet/mir2.core
+ */
+package com.github.jootnet.mir2.core;
+
+/**
+ * 图片像素处理内核<br>
+ * 对连续的RGB字节数据做整数定点运算与查表，分量按无符号数处理<br>
+ * 循环体不含浮点运算，逐字节的简单循环可以被虚拟机编译为向量指令
+ *
+ * @author 云中双月
+ */
+final class PixelKernels {
+
+	private PixelKernels() {}
+
+	/* 灰度系数，0.299 0.587 0.114放大65536倍，三者之和为65536 */
+	private static final int GRAY_R = 19595;
+	private static final int GRAY_G = 38470;
+	private static final int GRAY_B = 65536 - GRAY_R - GRAY_G;
+
+	/**
+	 * 将透明度转换为定点数
+	 *
+	 * @param alpha
+	 * 		透明度，超出0到1的部分按0或1处理
+	 * @return 0到256之间的整数，256表示不透明
+	 */
+	static int fixed(float alpha) {
+		if(!(alpha > 0)) return 0;
+		if(alpha >= 1) return 256;
+		return (int) (alpha * 256 + 0.5f);
+	}
+
+	/**
+	 * 转换为灰度，三个分量都设置为亮度值
+	 *
+	 * @param rgb
+	 * 		RGB数据
+	 * @param off
+	 * 		起始位置
+	 * @param n
+	 * 		像素个数
+	 */
+	static void gray(byte[] rgb, int off, int n) {
+		for(int end = off + n * 3; off < end; off += 3) {
+			byte l = (byte) (((rgb[off] & 0xff) * GRAY_R + (rgb[off + 1] & 0xff) * GRAY_G + (rgb[off + 2] & 0xff) * GRAY_B + 32768) >>> 16);
+			rgb[off] = l;
+			rgb[off + 1] = l;
+			rgb[off + 2] = l;
+		}
+	}
+
+	/**
+	 * 反色
+	 *
+	 * @param rgb
+	 * 		RGB数据
+	 * @param off
+	 * 		起始位置
+	 * @param len
+	 * 		字节数
+	 */
+	static void inverse(byte[] rgb, int off, int len) {
+		for(int end = off + len; off < end; ++off)
+			rgb[off] = (byte) ~rgb[off];
+	}
+
+	/**
+	 * 按透明度缩放分量
+	 *
+	 * @param rgb
+	 * 		RGB数据
+	 * @param off
+	 * 		起始位置
+	 * @param len
+	 * 		字节数
+	 * @param a
+	 * 		定点透明度，见{@link #fixed(float)}
+	 */
+	static void scale(byte[] rgb, int off, int len, int a) {
+		if(a == 256) return;
+		int t = a << 8;
+		for(int end = off + len; off < end; ++off)
+			rgb[off] = MUL[t | (rgb[off] & 0xff)];
+	}
+
+	/**
+	 * 将源数据混合到目标数据
+	 *
+	 * @param mode
+	 * 		混合方式
+	 * @param dst
+	 * 		目标RGB数据
+	 * @param d
+	 * 		目标起始位置
+	 * @param src
+	 * 		源RGB数据
+	 * @param s
+	 * 		源起始位置
+	 * @param n
+	 * 		像素个数
+	 * @param a
+	 * 		定点透明度，见{@link #fixed(float)}
+	 * @param key
+	 * 		透明色，从高位到低位依次为0 R G B，源颜色为透明色的像素跳过；为-1时没有透明色
+	 */
+	static void blend(Texture.BlendMode mode, byte[] dst, int d, byte[] src, int s, int n, int a, int key) {
+		if(key == -1) {
+			blend(mode, dst, d, src, s, n * 3, a);
+			return;
+		}
+		// 透明色把一行分成若干段，每段连续的不透明像素一次混合
+		int run = 0;
+		for(int i = 0; i < n; ++i) {
+			int p = s + i * 3;
+			if((((src[p] & 0xff) << 16) | ((src[p + 1] & 0xff) << 8) | (src[p + 2] & 0xff)) != key) {
+				++run;
+				continue;
+			}
+			if(run > 0)
+				blend(mode, dst, d + (i - run) * 3, src, s + (i - run) * 3, run * 3, a);
+			run = 0;
+		}
+		if(run > 0)
+			blend(mode, dst, d + (n - run) * 3, src, s + (n - run) * 3, run * 3, a);
+	}
+
+	private static void blend(Texture.BlendMode mode, byte[] dst, int d, byte[] src, int s, int len, int a) {
+		switch (mode) {
+		case ADD:
+			add(dst, d, src, s, len, a);
+			break;
+		case OVERLAY:
+			overlay(dst, d, src, s, len, a);
+			break;
+		default:
+			normal(dst, d, src, s, len, a);
+			break;
+		}
+	}
+
+	/* D + (S - D) * a，结果总在S与D之间 */
+	private static void normal(byte[] dst, int d, byte[] src, int s, int len, int a) {
+		if(a == 256) {
+			System.arraycopy(src, s, dst, d, len);
+			return;
+		}
+		for(int end = d + len; d < end; ++d, ++s) {
+			int c = dst[d] & 0xff;
+			dst[d] = (byte) (c + ((((src[s] & 0xff) - c) * a + 128) >> 8));
+		}
+	}
+
+	/* min(S * a + D, 255)，超过255时(255 - v)为负数，右移31位得到全1 */
+	private static void add(byte[] dst, int d, byte[] src, int s, int len, int a) {
+		int t = a << 8;
+		for(int end = d + len; d < end; ++d, ++s) {
+			int v = (dst[d] & 0xff) + (MUL[t | (src[s] & 0xff)] & 0xff);
+			dst[d] = (byte) (v | ((255 - v) >> 31));
+		}
+	}
+
+	private static void overlay(byte[] dst, int d, byte[] src, int s, int len, int a) {
+		int t = a << 8;
+		for(int end = d + len; d < end; ++d, ++s)
+			dst[d] = OVERLAY[((dst[d] & 0xff) << 8) | (MUL[t | (src[s] & 0xff)] & 0xff)];
+	}
+
+	/* 乘法表，MUL[a << 8 | v]为v * a / 256四舍五入，a从0到256 */
+	private static final byte[] MUL = new byte[257 << 8];
+	/* Overlay表，OVERLAY[D << 8 | C]，按当前图像分量D选择相乘或滤色 */
+	private static final byte[] OVERLAY = new byte[256 << 8];
+
+	static {
+		for(int a = 0; a <= 256; ++a)
+			for(int v = 0; v < 256; ++v)
+				MUL[(a << 8) | v] = (byte) ((v * a + 128) >> 8);
+		for(int base = 0; base < 256; ++base)
+			for(int c = 0; c < 256; ++c)
+				OVERLAY[(base << 8) | c] = (byte) (base < 128 ? 2 * base * c / 255 : 255 - 2 * (255 - base) * (255 - c) / 255);
+	}
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2017 JOOTNET Project
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Support: https://github.com/jootnet/mir2.core
+ */
+package com.github.jootnet.mir2.core;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 图片像素存储<br>
+ * 像素按从左上角到右下角的顺序编号，所有函数以像素序号定位，读写的RGB数据为每像素三字节
+ *
+ * @author 云中双月
+ */
+abstract class PixelStorage {
+
+	/**
+	 * 获取存储方式
+	 *
+	 * @return 存储方式
+	 */
+	abstract Texture.Storage kind();
+
+	/**
+	 * 获取单个像素的颜色
+	 *
+	 * @param index
+	 * 		像素序号
+	 * @return 从高位到低位依次为0 R G B
+	 */
+	abstract int getRGB(int index);
+
+	/**
+	 * 读取连续像素的RGB数据
+	 *
+	 * @param index
+	 * 		起始像素序号
+	 * @param dst
+	 * 		目标数组
+	 * @param off
+	 * 		目标数组起始位置
+	 * @param n
+	 * 		像素个数
+	 */
+	abstract void read(int index, byte[] dst, int off, int n);
+
+	/**
+	 * 写入连续像素的RGB数据，ARGB存储的透明度保持不变
+	 *
+	 * @param index
+	 * 		起始像素序号
+	 * @param src
+	 * 		RGB数据
+	 * @param off
+	 * 		数据起始位置
+	 * @param n
+	 * 		像素个数
+	 */
+	abstract void write(int index, byte[] src, int off, int n);
+
+	/**
+	 * 读取连续像素的ARGB颜色，不带透明度的存储方式透明度为0xff
+	 *
+	 * @param index
+	 * 		起始像素序号
+	 * @param dst
+	 * 		目标数组
+	 * @param off
+	 * 		目标数组起始位置
+	 * @param n
+	 * 		像素个数
+	 */
+	abstract void readPacked(int index, int[] dst, int off, int n);
+
+	/**
+	 * 复制连续像素到另一个相同存储方式的存储，ARGB存储连同透明度一起复制
+	 *
+	 * @param index
+	 * 		起始像素序号
+	 * @param dst
+	 * 		目标存储
+	 * @param dstIndex
+	 * 		目标起始像素序号
+	 * @param n
+	 * 		像素个数
+	 */
+	abstract void copyTo(int index, PixelStorage dst, int dstIndex, int n);
+
+	/**
+	 * 复制前n个像素，存储方式不变
+	 *
+	 * @param n
+	 * 		像素个数
+	 * @return 新的存储
+	 */
+	abstract PixelStorage copy(int n);
+
+	/**
+	 * 以指定方式存储的前n个像素
+	 *
+	 * @param kind
+	 * 		存储方式
+	 * @param n
+	 * 		像素个数
+	 * @return 新的存储，与当前存储不共享数据
+	 */
+	final PixelStorage convert(Texture.Storage kind, int n) {
+		if(kind == kind()) return copy(n);
+		PixelStorage dst = allocate(kind, n);
+		if(dst instanceof Packed && this instanceof Packed) {
+			System.arraycopy(((Packed) this).argb, 0, ((Packed) dst).argb, 0, n);
+		} else if(dst instanceof Packed) {
+			readPacked(0, ((Packed) dst).argb, 0, n);
+		} else {
+			// 分块转换，避免一次性创建整张图片的临时数组
+			byte[] chunk = new byte[Math.min(n, 4096) * 3];
+			for(int i = 0; i < n; i += chunk.length / 3) {
+				int m = Math.min(n - i, chunk.length / 3);
+				read(i, chunk, 0, m);
+				dst.write(i, chunk, 0, m);
+			}
+		}
+		return dst;
+	}
+
+	/**
+	 * 创建指定方式的存储，像素全部为黑色
+	 *
+	 * @param kind
+	 * 		存储方式
+	 * @param n
+	 * 		像素个数
+	 * @return 新的存储
+	 */
+	static PixelStorage allocate(Texture.Storage kind, int n) {
+		switch (kind) {
+		case PACKED:
+			int[] argb = new int[n];
+			Arrays.fill(argb, 0xff000000);
+			return new Packed(argb);
+		case DIRECT:
+			return new Direct(ByteBuffer.allocateDirect(n * 3));
+		default:
+			return new Heap(new byte[n * 3]);
+		}
+	}
+
+	/** 堆内字节数组，每像素三字节 */
+	static final class Heap extends PixelStorage {
+		final byte[] rgb;
+
+		Heap(byte[] rgb) {
+			this.rgb = rgb;
+		}
+
+		@Override
+		Texture.Storage kind() {
+			return Texture.Storage.HEAP;
+		}
+
+		@Override
+		int getRGB(int index) {
+			int i = index * 3;
+			return ((rgb[i] & 0xff) << 16) | ((rgb[i + 1] & 0xff) << 8) | (rgb[i + 2] & 0xff);
+		}
+
+		@Override
+		void read(int index, byte[] dst, int off, int n) {
+			System.arraycopy(rgb, index * 3, dst, off, n * 3);
+		}
+
+		@Override
+		void write(int index, byte[] src, int off, int n) {
+			System.arraycopy(src, off, rgb, index * 3, n * 3);
+		}
+
+		@Override
+		void readPacked(int index, int[] dst, int off, int n) {
+			for(int i = index * 3, end = off + n; off < end; ++off, i += 3)
+				dst[off] = 0xff000000 | ((rgb[i] & 0xff) << 16) | ((rgb[i + 1] & 0xff) << 8) | (rgb[i + 2] & 0xff);
+		}
+
+		@Override
+		void copyTo(int index, PixelStorage dst, int dstIndex, int n) {
+			System.arraycopy(rgb, index * 3, ((Heap) dst).rgb, dstIndex * 3, n * 3);
+		}
+
+		@Override
+		PixelStorage copy(int n) {
+			byte[] c = new byte[n * 3];
+			System.arraycopy(rgb, 0, c, 0, c.length);
+			return new Heap(c);
+		}
+	}
+
+	/** 堆内int数组，每像素一个ARGB颜色 */
+	static final class Packed extends PixelStorage {
+		final int[] argb;
+
+		Packed(int[] argb) {
+			this.argb = argb;
+		}
+
+		@Override
+		Texture.Storage kind() {
+			return Texture.Storage.PACKED;
+		}
+
+		@Override
+		int getRGB(int index) {
+			return argb[index] & 0xffffff;
+		}
+
+		@Override
+		void read(int index, byte[] dst, int off, int n) {
+			for(int end = index + n; index < end; ++index, off += 3) {
+				int c = argb[index];
+				dst[off] = (byte) (c >> 16);
+				dst[off + 1] = (byte) (c >> 8);
+				dst[off + 2] = (byte) c;
+			}
+		}
+
+		@Override
+		void write(int index, byte[] src, int off, int n) {
+			for(int end = index + n; index < end; ++index, off += 3)
+				argb[index] = (argb[index] & 0xff000000) | ((src[off] & 0xff) << 16) | ((src[off + 1] & 0xff) << 8) | (src[off + 2] & 0xff);
+		}
+
+		@Override
+		void readPacked(int index, int[] dst, int off, int n) {
+			System.arraycopy(argb, index, dst, off, n);
+		}
+
+		@Override
+		void copyTo(int index, PixelStorage dst, int dstIndex, int n) {
+			System.arraycopy(argb, index, ((Packed) dst).argb, dstIndex, n);
+		}
+
+		@Override
+		PixelStorage copy(int n) {
+			int[] c = new int[n];
+			System.arraycopy(argb, 0, c, 0, n);
+			return new Packed(c);
+		}
+	}
+
+	/** 堆外缓冲区，每像素三字节 */
+	static final class Direct extends PixelStorage {
+		final ByteBuffer rgb;
+
+		Direct(ByteBuffer rgb) {
+			this.rgb = rgb;
+		}
+
+		@Override
+		Texture.Storage kind() {
+			return Texture.Storage.DIRECT;
+		}
+
+		@Override
+		int getRGB(int index) {
+			int i = index * 3;
+			return ((rgb.get(i) & 0xff) << 16) | ((rgb.get(i + 1) & 0xff) << 8) | (rgb.get(i + 2) & 0xff);
+		}
+
+		@Override
+		void read(int index, byte[] dst, int off, int n) {
+			// duplicate出的对象拥有独立的position，不影响其他线程
+			// 转为Buffer调用，避免链接到Java 9才有的ByteBuffer.position(int)等方法
+			ByteBuffer dup = rgb.duplicate();
+			((Buffer) dup).position(index * 3);
+			dup.get(dst, off, n * 3);
+		}
+
+		@Override
+		void write(int index, byte[] src, int off, int n) {
+			ByteBuffer dup = rgb.duplicate();
+			((Buffer) dup).position(index * 3);
+			dup.put(src, off, n * 3);
+		}
+
+		@Override
+		void readPacked(int index, int[] dst, int off, int n) {
+			for(int i = index * 3, end = off + n; off < end; ++off, i += 3)
+				dst[off] = 0xff000000 | ((rgb.get(i) & 0xff) << 16) | ((rgb.get(i + 1) & 0xff) << 8) | (rgb.get(i + 2) & 0xff);
+		}
+
+		@Override
+		void copyTo(int index, PixelStorage dst, int dstIndex, int n) {
+			ByteBuffer src = rgb.duplicate();
+			((Buffer) src).position(index * 3);
+			((Buffer) src).limit(index * 3 + n * 3);
+			ByteBuffer d = ((Direct) dst).rgb.duplicate();
+			((Buffer) d).position(dstIndex * 3);
+			d.put(src);
+		}
+
+		@Override
+		PixelStorage copy(int n) {
+			ByteBuffer c = ByteBuffer.allocateDirect(n * 3);
+			ByteBuffer dup = rgb.duplicate();
+			((Buffer) dup).position(0);
+			((Buffer) dup).limit(n * 3);
+			c.put(dup);
+			((Buffer) c).clear();
+			return new Direct(c);
+		}
+	}
+}
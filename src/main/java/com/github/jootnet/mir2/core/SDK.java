@@ -1153,4 +1153,68 @@ public final class SDK {
 		palletes[255][2] = -1;
 		palletes[255][3] = -1;
 	}
+	
+	/**
+	 * 调色板对应的RGB颜色<br>
+	 * 每个颜色一个int，从高位到低位依次为0 R G B<br>
+	 * 由{@link #palletes}计算得到，修改{@link #palletes}后需要调用{@link #refreshPalletes()}
+	 */
+	public static final int[] palletesRGB = new int[256];
+	/**
+	 * 调色板对应的ARGB颜色<br>
+	 * 每个颜色一个int，从高位到低位依次为A R G B，第0个颜色(背景色)透明，其他颜色不透明
+	 * 
+	 * @see #palletesRGB
+	 */
+	public static final int[] palletesARGB = new int[256];
+	/**
+	 * 调色板对应的RGBA颜色<br>
+	 * 每个颜色一个int，从高位到低位依次为R G B A，透明度与{@link #palletesARGB}相同
+	 * 
+	 * @see #palletesRGB
+	 */
+	public static final int[] palletesRGBA = new int[256];
+	/**
+	 * 调色板对应的BGRA颜色<br>
+	 * 每个颜色一个int，从高位到低位依次为B G R A，透明度与{@link #palletesARGB}相同
+	 * 
+	 * @see #palletesRGB
+	 */
+	public static final int[] palletesBGRA = new int[256];
+	/**
+	 * 16位色(RGB565)对应的RGB颜色<br>
+	 * 以16位像素值(无符号)为下标，每个颜色一个int，从高位到低位依次为0 R G B
+	 */
+	public static final int[] rgb565RGB = new int[65536];
+	/**
+	 * 16位色(RGB565)对应的ARGB颜色<br>
+	 * 以16位像素值(无符号)为下标，纯黑色(背景色)透明，其他颜色不透明
+	 */
+	public static final int[] rgb565ARGB = new int[65536];
+	static {
+		for(int i = 0; i < 65536; ++i) {
+			int rgb = ((i & 0xf800) << 8) | ((i & 0x7e0) << 5) | ((i & 0x1f) << 3);
+			rgb565RGB[i] = rgb;
+			rgb565ARGB[i] = i == 0 ? 0 : 0xff000000 | rgb;
+		}
+		refreshPalletes();
+	}
+	
+	/**
+	 * 根据{@link #palletes}重新计算调色板查找表<br>
+	 * 修改调色板后调用，之后解码的图片使用新的颜色
+	 */
+	public static final void refreshPalletes() {
+		for(int i = 0; i < 256; ++i) {
+			byte[] color = palletes[i];
+			int r = color[1] & 0xff;
+			int g = color[2] & 0xff;
+			int b = color[3] & 0xff;
+			int a = i == 0 ? 0 : 0xff;
+			palletesRGB[i] = (r << 16) | (g << 8) | b;
+			palletesARGB[i] = (a << 24) | (r << 16) | (g << 8) | b;
+			palletesRGBA[i] = (r << 24) | (g << 16) | (b << 8) | a;
+			palletesBGRA[i] = (b << 24) | (g << 16) | (r << 8) | a;
+		}
+	}
 }
@@ -16,11 +16,17 @@
  */
 package com.github.jootnet.mir2.core;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /**
  * 热血传奇图片数据<br>
- * 使用三字节sRGB方式存放色彩数据<br>
+ * 默认使用三字节sRGB方式存放色彩数据，也可以存放为ARGB整数或堆外缓冲区，见{@link Storage}<br>
  * 图片不支持透明色，背景为黑色<br>
- * 使用双缓冲加速图像处理
+ * 使用双缓冲加速图像处理<br>
+ * 图片创建时引用计数为1，{@link #retain()}增加计数，{@link #release()}减少计数，计数归零后图片变为空图片，
+ * 像素数组来自{@link TexturePool}的图片会将数组放回缓冲池
  * 
  * @author 云中双月
  */
@@ -32,15 +38,54 @@ public final class Texture implements Cloneable {
 	 */
 	public static final Texture EMPTY = new Texture(new byte[]{SDK.palletes[EMPTY_COLOR_INDEX][1],SDK.palletes[EMPTY_COLOR_INDEX][2],SDK.palletes[EMPTY_COLOR_INDEX][3]}, 1, 1);
 	
+	/**
+	 * 像素存储方式<br>
+	 * 不同存储方式的图片对外接口相同，图像处理在堆内字节数组上最快
+	 */
+	public enum Storage {
+		/** 堆内字节数组，每像素R G B三个字节 */
+		HEAP,
+		/** 堆内int数组，每像素一个ARGB颜色，按字对齐，保留透明度 */
+		PACKED,
+		/** 堆外缓冲区，每像素R G B三个字节，不占用垃圾回收器管理的堆内存 */
+		DIRECT
+	}
+	
+	/**
+	 * 图像混合方式<br>
+	 * 以下说明中S为目标图像分量，D为当前图像分量，a为透明度
+	 * 
+	 * @see Texture#blend(Texture, int, int, float, BlendMode)
+	 */
+	public enum BlendMode {
+		/** 普通混合，S * a + D * (1 - a) */
+		NORMAL,
+		/** 加亮混合，min(S * a + D, 255)，黑色不改变当前图像 */
+		ADD,
+		/** Overlay混合，叠加色C = S * a，D小于128时为2 * D * C / 255，否则为255 - 2 * (255 - D) * (255 - C) / 255 */
+		OVERLAY
+	}
+	
+	/* 堆内字节数组存储时的像素数组，其他存储方式为null */
 	private byte[] pixels;
+	/* 像素存储，释放后为null */
+	private PixelStorage storage;
 	private int width;
 	private int height;
-	private volatile boolean dirty;
+	/* 左上角像素在存储中的序号与相邻两行的像素序号差，视图图片与所属图片共享存储 */
+	private int offset;
+	private int stride;
+	/* 视图图片所属的图片，其他图片为null */
+	private Texture parent;
+	/* 合并后的修改区域，每四个元素为一个区域的左 上 右 下(右下不包含)，由proc_locker保护 */
+	private int[] dirtyRects;
+	private int dirtyCount;
 	
-	private boolean emptyHoldFlag;
-	private static byte[] emptyPixels;
-	private static long clearCount;
-	private static Object clear_locker = new Object();
+	/* 引用计数 */
+	private volatile int refs = 1;
+	private static final AtomicIntegerFieldUpdater<Texture> REFS = AtomicIntegerFieldUpdater.newUpdater(Texture.class, "refs");
+	/* 像素数组所属的缓冲池，不是从缓冲池创建的图片为null */
+	private final TexturePool pool;
 	private Object proc_locker = new Object();
 	
 	/**
@@ -63,17 +108,89 @@ public final class Texture implements Cloneable {
 		return height;
 	}
 	
+	/**
+	 * 获取像素存储方式
+	 * 
+	 * @return 存储方式
+	 */
+	public Storage getStorage() {
+		PixelStorage _storage = storage;
+		return _storage == null ? Storage.HEAP : _storage.kind();
+	}
+	
 	/**
 	 * 获取图片色彩数据<br>
 	 * 每一个像素点以R G B三个byte的分量存储<br>
 	 * 即返回的数据长度为图片宽度*图片高度*3大小<br>
-	 * 从图片左上角到右下角
+	 * 从图片左上角到右下角<br>
+	 * {@link Storage#HEAP}方式返回内部数组，其他存储方式和视图图片({@link #view(int, int, int, int)})返回数据副本<br>
+	 * 图片释放({@link #release()})后返回null
 	 * 
 	 * @return
 	 * 		图片全部颜色数据
 	 */
 	public byte[] getRGBs() {
-		return pixels;
+		PixelStorage _storage = storage;
+		if(_storage == null) return null;
+		byte[] _pixels = pixels;
+		if(_pixels != null && parent == null) return _pixels;
+		byte[] sRGB = new byte[width * height * 3];
+		for(int i = 0; i < height; ++i)
+			_storage.read(index(0, i), sRGB, i * width * 3, width);
+		return sRGB;
+	}
+	
+	/**
+	 * 将图片一行的色彩数据读取到数组中，不创建新的对象
+	 * 
+	 * @param y
+	 * 		行号
+	 * @param dst
+	 * 		目标数组，从起始位置开始至少需要图片宽度*3个元素
+	 * @param off
+	 * 		目标数组起始位置
+	 * 
+	 * @throws IndexOutOfBoundsException 行号超出图片范围或目标数组空间不足
+	 */
+	public void getRGBs(int y, byte[] dst, int off) {
+		if(y < 0 || y >= height)
+			throw new IndexOutOfBoundsException("y: " + y);
+		storage.read(index(0, y), dst, off, width);
+	}
+	
+	/**
+	 * 获取图片特定点色彩数据，不创建新的对象
+	 * 
+	 * @param x
+	 * 		横坐标(像素)
+	 * @param y
+	 * 		纵坐标(像素)
+	 * @return
+	 * 		特定点颜色，从高位到低位依次为0 R G B，坐标超出图片范围时为0；
+	 * 		视图({@link #view(int, int, int, int)})按视图自身的宽高判断，不会读取到视图外的原图片像素
+	 */
+	public int getRGBPacked(int x, int y) {
+		if(x < 0 || y < 0 || x >= width || y >= height) return 0;
+		return storage.getRGB(index(x, y));
+	}
+	
+	/**
+	 * 将图片一行的颜色读取到数组中，不创建新的对象<br>
+	 * 每个像素一个ARGB颜色，{@link Storage#PACKED}方式保留存储的透明度，其他方式透明度为0xff
+	 * 
+	 * @param y
+	 * 		行号
+	 * @param dst
+	 * 		目标数组，从起始位置开始至少需要图片宽度个元素
+	 * @param off
+	 * 		目标数组起始位置
+	 * 
+	 * @throws IndexOutOfBoundsException 行号超出图片范围或目标数组空间不足
+	 */
+	public void getRGBPacked(int y, int[] dst, int off) {
+		if(y < 0 || y >= height)
+			throw new IndexOutOfBoundsException("y: " + y);
+		storage.readPacked(index(0, y), dst, off, width);
 	}
 	
 	/**
@@ -87,13 +204,8 @@ public final class Texture implements Cloneable {
 	 * 		特定点色彩数据，三个字节依次表示RGB分量
 	 */
 	public byte[] getRGB(int x, int y) {
-		if(x > width - 1 || y > height - 1) return new byte[]{0,0,0};
-		int _idx = (x + y * width) * 3;
-		byte[] ret = new byte[3];
-		ret[0] = pixels[_idx];
-		ret[1] = pixels[_idx + 1];
-		ret[2] = pixels[_idx + 2];
-		return ret;
+		int rgb = getRGBPacked(x, y);
+		return new byte[] { (byte) (rgb >> 16), (byte) (rgb >> 8), (byte) rgb };
 	}
 	
 	/**
@@ -110,7 +222,7 @@ public final class Texture implements Cloneable {
 	 * @throws IllegalArgumentException 传入的像素数据长度不符合要求
 	 */
 	public Texture(byte[] sRGB, int width, int height) throws IllegalArgumentException {
-		this(sRGB, width, height, true);
+		this(sRGB, width, height, (TexturePool) null);
 	}
 	
 	/**
@@ -124,17 +236,112 @@ public final class Texture implements Cloneable {
 	 * @param height
 	 * 		图片高度
 	 * @param emptyHoldFlag
-	 * 		是否存储一个空的字节数组，用于在将图片清空时快速反应
+	 * 		不再使用，{@link #clear()}直接填充像素数组
 	 * 
 	 * @throws IllegalArgumentException 传入的像素数据长度不符合要求
+	 * 
+	 * @deprecated 使用{@link #Texture(byte[], int, int)}
 	 */
+	@Deprecated
 	public Texture(byte[] sRGB, int width, int height, boolean emptyHoldFlag) throws IllegalArgumentException {
+		this(sRGB, width, height, (TexturePool) null);
+	}
+	
+	Texture(byte[] sRGB, int width, int height, TexturePool pool) throws IllegalArgumentException {
 		if(sRGB != null && width > 0 && height > 0 && sRGB.length != (width * height * 3))
 			throw new IllegalArgumentException("sRGB length not match width * height * 3 !!!");
 		this.pixels = sRGB;
+		this.storage = sRGB == null ? null : new PixelStorage.Heap(sRGB);
+		this.width = width;
+		this.height = height;
+		this.stride = width;
+		this.pool = pool;
+	}
+	
+	/**
+	 * 从ARGB颜色数组创建图片数据，存储方式为{@link Storage#PACKED}<br>
+	 * 图片直接使用传入的数组，不复制
+	 * 
+	 * @param argb
+	 * 		每个像素一个ARGB颜色，从图片左上角到右下角
+	 * @param width
+	 * 		图片宽度
+	 * @param height
+	 * 		图片高度
+	 * 
+	 * @throws IllegalArgumentException 传入的颜色数据长度不符合要求
+	 */
+	public Texture(int[] argb, int width, int height) throws IllegalArgumentException {
+		if(argb == null || width < 1 || height < 1 || argb.length != width * height)
+			throw new IllegalArgumentException("argb length not match width * height !!!");
+		this.storage = new PixelStorage.Packed(argb);
+		this.width = width;
+		this.height = height;
+		this.stride = width;
+		this.pool = null;
+	}
+	
+	/**
+	 * 从缓冲区创建图片数据，存储方式为{@link Storage#DIRECT}<br>
+	 * 图片使用缓冲区当前位置开始的数据，与缓冲区共享内存，不复制
+	 * 
+	 * @param sRGB
+	 * 		每个像素占用三个字节进行存储，从图片左上角到右下角，必须是RGB顺序<br>
+	 * 		通常是{@link ByteBuffer#allocateDirect(int)}创建的堆外缓冲区
+	 * @param width
+	 * 		图片宽度
+	 * @param height
+	 * 		图片高度
+	 * 
+	 * @throws IllegalArgumentException 缓冲区剩余数据长度小于图片宽度*图片高度*3
+	 */
+	public Texture(ByteBuffer sRGB, int width, int height) throws IllegalArgumentException {
+		if(sRGB == null || width < 1 || height < 1 || sRGB.remaining() < width * height * 3)
+			throw new IllegalArgumentException("sRGB remaining less than width * height * 3 !!!");
+		this.storage = new PixelStorage.Direct(sRGB.slice());
+		this.width = width;
+		this.height = height;
+		this.stride = width;
+		this.pool = null;
+	}
+	
+	private Texture(PixelStorage storage, int width, int height) {
+		this.storage = storage;
+		if(storage instanceof PixelStorage.Heap)
+			this.pixels = ((PixelStorage.Heap) storage).rgb;
+		this.width = width;
+		this.height = height;
+		this.stride = width;
+		this.pool = null;
+	}
+	
+	/* 视图图片，与所属图片共享存储和处理锁 */
+	private Texture(Texture parent, int x, int y, int width, int height) {
+		this.parent = parent;
+		this.storage = parent.storage;
+		this.pixels = parent.pixels;
+		this.offset = parent.index(x, y);
+		this.stride = parent.stride;
 		this.width = width;
 		this.height = height;
-		this.emptyHoldFlag = emptyHoldFlag;
+		this.pool = null;
+		this.proc_locker = parent.proc_locker;
+	}
+	
+	/**
+	 * 以指定方式存储的图片副本<br>
+	 * 例如将缓存的图片转为{@link Storage#DIRECT}以减少堆内存占用
+	 * 
+	 * @param kind
+	 * 		存储方式
+	 * @return 新的图片对象，与当前图片不共享数据
+	 */
+	public final Texture toStorage(Storage kind) {
+		if(empty())
+			return EMPTY;
+		synchronized (proc_locker) {
+			return new Texture(copyStorage(kind, 0, 0, width, height), width, height);
+		}
 	}
 	
 	/**
@@ -143,51 +350,157 @@ public final class Texture implements Cloneable {
 	 * @return true表示当前图片为空，不可用于任何处理/绘制/序列化
 	 */
 	public final boolean empty() {
-		return this == EMPTY || pixels == null || pixels.length == 0 || width < 1 || height < 1;
+		return this == EMPTY || storage == null || (pixels != null && pixels.length == 0) || width < 1 || height < 1;
 	}
 	
 	/**
 	 * 判断当前图片是否被修改过<br>
-	 * 当前函数返回之后，图片会被置为未修改，即下次调用会返回false
+	 * 当前函数返回之后，图片会被置为未修改，即下次调用会返回false，同时清空记录的修改区域
+	 * 
+	 * @return 上次调用此函数或{@link #takeDirtyRegions()}之后图片是否被修改过
 	 * 
-	 * @return 上次调用此函数之后图片是否被修改过
+	 * @see #takeDirtyRegions()
 	 */
 	public final boolean dirty() {
 		synchronized (proc_locker) {
-			boolean _dirty = dirty;
-			dirty = false;
+			boolean _dirty = dirtyCount > 0;
+			dirtyCount = 0;
 			return _dirty;
 		}
 	}
 	
-	protected void finalize() {
-		if(emptyHoldFlag) {
-			synchronized (clear_locker) {
-				clearCount--;
-				if(clearCount < 1) {
-					clearCount = 0;
-					emptyPixels = null;
-				}
+	/**
+	 * 取出图片被修改过的区域<br>
+	 * 每次修改的区域会与相交或相邻的区域合并，区域数量过多时合并为浪费面积最小的区域<br>
+	 * 取出与重置是原子的，当前函数返回之后图片会被置为未修改<br>
+	 * 上传显卡纹理等场景可以只更新返回的区域<br>
+	 * 直接修改{@link #getRGBs()}返回的数组不会被记录
+	 * 
+	 * @return 上次调用此函数或{@link #dirty()}之后被修改过的区域，互不重叠；没有修改时为空数组
+	 * 
+	 * @see #dirty()
+	 */
+	public final Region[] takeDirtyRegions() {
+		synchronized (proc_locker) {
+			Region[] regions = new Region[dirtyCount];
+			for(int i = 0; i < dirtyCount; ++i) {
+				int k = i * 4;
+				regions[i] = new Region(dirtyRects[k], dirtyRects[k + 1], dirtyRects[k + 2] - dirtyRects[k], dirtyRects[k + 3] - dirtyRects[k + 1]);
 			}
+			dirtyCount = 0;
+			return regions;
 		}
 	}
 	
+	/**
+	 * 增加引用计数<br>
+	 * 将图片交给其他使用者时调用，每次调用需要对应一次{@link #release()}
+	 * 
+	 * @return 当前图片
+	 * @throws IllegalStateException 图片已被释放
+	 */
+	public final Texture retain() {
+		if(this == EMPTY) return this;
+		for(;;) {
+			int r = refs;
+			if(r < 1)
+				throw new IllegalStateException("texture already released");
+			if(REFS.compareAndSet(this, r, r + 1))
+				return this;
+		}
+	}
+	
+	/**
+	 * 减少引用计数<br>
+	 * 计数归零后图片变为空图片，不能再使用，像素数组来自{@link TexturePool}时放回缓冲池，
+	 * 之前通过{@link #getRGBs()}取得的数组此后可能被其他图片重用<br>
+	 * 不调用此函数的图片由垃圾回收器正常回收，像素数组不会放回缓冲池；已释放的图片再次调用此函数没有效果
+	 */
+	public final void release() {
+		if(this == EMPTY) return;
+		for(;;) {
+			int r = refs;
+			if(r < 1) return;
+			if(REFS.compareAndSet(this, r, r - 1)) {
+				if(r > 1) return;
+				break;
+			}
+		}
+		byte[] _pixels;
+		// 等待正在进行的图像处理结束
+		synchronized (proc_locker) {
+			_pixels = pixels;
+			pixels = null;
+			storage = null;
+		}
+		if(pool != null && _pixels != null)
+			pool.recycle(_pixels);
+		if(parent != null)
+			parent.release();
+	}
+	
 	/**
 	 * 创建当前图片数据的克隆，完整克隆<br>
 	 * 如需创建当前图片部分区域的克隆，则使用{@link #clip(int, int, int, int)}
 	 * 
 	 * @return 当前图片完整克隆
 	 * 
+	 * @see #copy()
 	 * @see #clip(int, int, int, int)
 	 */
 	@Override
 	protected Object clone() throws CloneNotSupportedException {
+		return copy();
+	}
+	
+	/**
+	 * 复制当前图片数据，创建独立的图片<br>
+	 * 存储方式不变，视图图片复制后不再与所属图片共享数据
+	 * 
+	 * @return 新的图片对象，与当前图片不共享数据
+	 * 
+	 * @see #view(int, int, int, int)
+	 */
+	public final Texture copy() {
+		if(empty())
+			return EMPTY;
+		synchronized (proc_locker) {
+			return new Texture(copyStorage(storage.kind(), 0, 0, width, height), width, height);
+		}
+	}
+	
+	/**
+	 * 创建当前图片部分区域的视图<br>
+	 * 视图与当前图片共享像素数据，不分配像素数组也不复制数据，对任意一方的修改另一方都可见，
+	 * 对视图的修改同时记录为当前图片的修改区域({@link #takeDirtyRegions()})<br>
+	 * 视图持有当前图片的一个引用({@link #retain()})，视图释放时一并释放；需要独立的数据时使用{@link #copy()}<br>
+	 * 视图上的读写都按视图自身的坐标和宽高检查范围，超出视图的坐标不会访问到原图片的其他像素<br>
+	 * 适合从图集中切分图片或取出地图块区域
+	 * 
+	 * @param x
+	 * 		区域起始x坐标
+	 * @param y
+	 * 		区域起始y坐标
+	 * @param w
+	 * 		区域宽度
+	 * @param h
+	 * 		区域高度
+	 * @return 视图图片
+	 * 
+	 * @throws IllegalArgumentException 区域为空或超出图片范围
+	 */
+	public final Texture view(int x, int y, int w, int h) throws IllegalArgumentException {
+		if(x < 0 || y < 0 || w < 1 || h < 1 || x + w > width || y + h > height)
+			throw new IllegalArgumentException("view region out of texture bounds !!!");
 		if(empty())
 			return EMPTY;
+		// 视图的视图直接指向最初的图片，共享的存储始终由它持有
+		Texture root = parent == null ? this : parent;
 		synchronized (proc_locker) {
-			byte[] sRGB = new byte[pixels.length];
-			System.arraycopy(pixels, 0, sRGB, 0, pixels.length);
-			return new Texture(sRGB, width, height);
+			if(empty())
+				return EMPTY;
+			root.retain();
+			return new Texture(root, x + offset % stride, y + offset / stride, w, h);
 		}
 	}
 	
@@ -215,21 +528,15 @@ public final class Texture implements Cloneable {
 		if(x < 0 || x > width || y < 0 || y > height) return EMPTY;
 		synchronized (proc_locker) {
 			int rx = x + w;
-			if(rx >= width)
-				rx = width - 1;
+			if(rx > width)
+				rx = width;
 			int by = y + h;
-			if(by >= height)
-				by = height - 1;
-			byte[] npixels = new byte[(rx - x) * (by - y) * 3];
-			for(int i = y; i < by; ++i) {
-				for(int j = x; j < rx; ++j) {
-					int _idx = (j + i * width) * 3;
-					npixels[(j - x + (i - y) * width) * 3] = pixels[_idx];
-					npixels[(j - x + (i - y) * width) * 3 + 1] = pixels[_idx + 1];
-					npixels[(j - x + (i - y) * width) * 3 + 2] = pixels[_idx + 2];
-				}
-			}
-			return new Texture(npixels, rx -x, by -y);
+			if(by > height)
+				by = height;
+			int nw = rx - x;
+			int nh = by - y;
+			if(nw < 1 || nh < 1) return EMPTY;
+			return new Texture(copyStorage(storage.kind(), x, y, nw, nh), nw, nh);
 		}
 	}
 	
@@ -243,18 +550,8 @@ public final class Texture implements Cloneable {
 	public final void clear() {
 		if(empty()) return;
 		synchronized (proc_locker) {
-			if(!emptyHoldFlag) {
-				byte[] _emptyPixels = new byte[pixels.length];
-				System.arraycopy(_emptyPixels, 0, pixels, 0, _emptyPixels.length);
-			} else {
-				synchronized (clear_locker) {
-					if(emptyPixels == null || emptyPixels.length < pixels.length)
-						emptyPixels = new byte[pixels.length];
-					System.arraycopy(emptyPixels, 0, pixels, 0, pixels.length);
-					clearCount++;
-				}
-			}
-			dirty = true;
+			rows(0, 0, width, height, CLEAR);
+			markDirty(0, 0, width, height);
 		}
 	}
 	
@@ -280,23 +577,18 @@ public final class Texture implements Cloneable {
 		if(x < 0 || x > width || y < 0 || y > height) return;
 		synchronized (proc_locker) {
 			int rx = x + w;
-			if(rx >= width)
-				rx = width - 1;
+			if(rx > width)
+				rx = width;
 			int by = y + h;
-			if(by >= height)
-				by = height - 1;
-			for(int i = y; i < by; ++i) {
-				for(int j = x; j < rx; ++j) {
-					int _idx = (j + i * width) * 3;
-					pixels[_idx] = pixels[_idx + 1] = pixels[_idx + 2] = 0;
-				}
-			}
-			dirty = true;
+			if(by > height)
+				by = height;
+			rows(x, y, rx, by, CLEAR);
+			markDirty(x, y, rx, by);
 		}
 	}
 	
 	/**
-	 * 将图片转换为灰白<br>
+	 * 将图片转换为灰白，像素三个分量都设置为其亮度值<br>
 	 * 将图片全部区域转换为灰白<br>
 	 * 如果需要转换部分区域为灰白则使用{@link #toGray(int, int, int, int)}
 	 * 
@@ -305,17 +597,13 @@ public final class Texture implements Cloneable {
 	public final void toGray() {
 		if(empty()) return;
 		synchronized (proc_locker) {
-			for(int i = 0; i < pixels.length - 2; i += 3) {
-				pixels[i] *= 0.299;
-				pixels[i + 1] *= 0.587;
-				pixels[i + 2] *= 0.114;
-			}
-			dirty = true;
+			rows(0, 0, width, height, GRAY);
+			markDirty(0, 0, width, height);
 		}
 	}
 	
 	/**
-	 * 将图片转换为灰白<br>
+	 * 将图片转换为灰白，像素三个分量都设置为其亮度值<br>
 	 * 将图片部分区域转换为灰白<br>
 	 * 如果区域的右方或下方超出图片宽高则忽略超出部分，但左上方不可超出，如果超出则直接不进行处理<br>
 	 * 如果需要转换全部区域为灰白则使用{@link #toGray()}
@@ -336,20 +624,13 @@ public final class Texture implements Cloneable {
 		if(x < 0 || x > width || y < 0 || y > height) return;
 		synchronized (proc_locker) {
 			int rx = x + w;
-			if(rx >= width)
-				rx = width - 1;
+			if(rx > width)
+				rx = width;
 			int by = y + h;
-			if(by >= height)
-				by = height - 1;
-			for(int i = y; i < by; ++i) {
-				for(int j = x; j < rx; ++j) {
-					int _idx = (j + i * width) * 3;
-					pixels[_idx] *= 0.299;
-					pixels[_idx + 1] *= 0.587;
-					pixels[_idx + 2] *= 0.114;
-				}
-			}
-			dirty = true;
+			if(by > height)
+				by = height;
+			rows(x, y, rx, by, GRAY);
+			markDirty(x, y, rx, by);
 		}
 	}
 	
@@ -363,10 +644,8 @@ public final class Texture implements Cloneable {
 	public final void inverse() {
 		if(empty()) return;
 		synchronized (proc_locker) {
-			for(int i = 0; i < pixels.length; ++i) {
-				pixels[i] ^= 0xff;
-			}
-			dirty = true;
+			rows(0, 0, width, height, INVERSE);
+			markDirty(0, 0, width, height);
 		}
 	}
 	
@@ -392,20 +671,13 @@ public final class Texture implements Cloneable {
 		if(x < 0 || x > width || y < 0 || y > height) return;
 		synchronized (proc_locker) {
 			int rx = x + w;
-			if(rx >= width)
-				rx = width - 1;
+			if(rx > width)
+				rx = width;
 			int by = y + h;
-			if(by >= height)
-				by = height - 1;
-			for(int i = y; i < by; ++i) {
-				for(int j = x; j < rx; ++j) {
-					int _idx = (j + i * width) * 3;
-					pixels[_idx] ^= 0xff;
-					pixels[_idx + 1] ^= 0xff;
-					pixels[_idx + 2] ^= 0xff;
-				}
-			}
-			dirty = true;
+			if(by > height)
+				by = height;
+			rows(x, y, rx, by, INVERSE);
+			markDirty(x, y, rx, by);
 		}
 	}
 	
@@ -414,17 +686,15 @@ public final class Texture implements Cloneable {
 	 * 将图片全部区域进行透明度处理<br>
 	 * 如果需要对部分区域进行透明度处理则使用{@link #alpha(float, int, int, int, int)}
 	 * 
-	 * @param alpha 透明度
+	 * @param alpha 透明度，0到1之间，超出部分按0或1处理
 	 * 
 	 * @see #alpha(float, int, int, int, int)
 	 */
 	public final void alpha(float alpha) {
 		if(empty()) return;
 		synchronized (proc_locker) {
-			for(int i = 0; i < pixels.length; ++i) {
-				pixels[i] *= alpha;
-			}
-			dirty = true;
+			rows(0, 0, width, height, alphaOp(alpha));
+			markDirty(0, 0, width, height);
 		}
 	}
 	
@@ -434,7 +704,7 @@ public final class Texture implements Cloneable {
 	 * 如果区域的右方或下方超出图片宽高则忽略超出部分，但左上方不可超出，如果超出则直接不进行处理<br>
 	 * 如果需要对全部区域进行透明度处理则使用{@link #alpha(float)}
 	 * 
-	 * @param alpha 透明度
+	 * @param alpha 透明度，0到1之间，超出部分按0或1处理
 	 * 
 	 * @param x
 	 * 		要处理的区域起始x坐标
@@ -452,28 +722,21 @@ public final class Texture implements Cloneable {
 		if(x < 0 || x > width || y < 0 || y > height) return;
 		synchronized (proc_locker) {
 			int rx = x + w;
-			if(rx >= width)
-				rx = width - 1;
+			if(rx > width)
+				rx = width;
 			int by = y + h;
-			if(by >= height)
-				by = height - 1;
-			for(int i = y; i < by; ++i) {
-				for(int j = x; j < rx; ++j) {
-					int _idx = (j + i * width) * 3;
-					pixels[_idx] *= alpha;
-					pixels[_idx + 1] *= alpha;
-					pixels[_idx + 2] *= alpha;
-				}
-			}
-			dirty = true;
+			if(by > height)
+				by = height;
+			rows(x, y, rx, by, alphaOp(alpha));
+			markDirty(x, y, rx, by);
 		}
 	}
 	
 	/**
 	 * 将一副目标图像混合到当前图像上<br>
 	 * 使用普通的图像叠加方式<br>
-	 * 即直接使用目标rgb作为新图片的rgb<br>
-	 * 如果需要使用Overlay方式，则使用{@link #blendAdd(Texture, int, int, float)}方式<br>
+	 * 即按透明度将目标rgb与当前rgb线性混合，透明度为1时直接使用目标rgb作为新图片的rgb<br>
+	 * 如果需要使用加亮方式，则使用{@link #blendAdd(Texture, int, int, float)}方式<br>
 	 * 如果需要支持透明色，则使用{@link #blendNormalTransparent(Texture, int, int, float, byte, byte, byte)}
 	 * 此操作不改变目标图像数据，即使传递了alpha参数
 	 * 
@@ -486,41 +749,20 @@ public final class Texture implements Cloneable {
 	 * @param alpha
 	 * 		目标图像透明度
 	 * 
+	 * @see #blend(Texture, int, int, float, BlendMode)
 	 * @see #blendAdd(Texture, int, int, float)
 	 * @see #blendAddTransparent(Texture, int, int, float, byte, byte, byte)
 	 * @see #blendNormalTransparent(Texture, int, int, float, byte, byte, byte)
 	 */
 	public final void blendNormal(Texture tar, int locx, int locy, float alpha) {
-		if(empty()) return;
-		if(tar.empty()) return;
-		synchronized (proc_locker) {
-			int x = locx;
-			int y = locy;
-			if(x < 0 || x > width || y < 0 || y < height) return;
-			int rx = x + tar.width;
-			if(rx >= width)
-				rx = width - 1;
-			int by = y + tar.height;
-			if(by >= height)
-				by = height - 1;
-			for(int i = y; i < by; ++i) {
-				for(int j = x; j < rx; ++j) {
-					int _idx_this = (j + i * width) * 3;
-					int _idx_that = (j - x + (i - y) * width) * 3;
-					pixels[_idx_this] = (byte) (tar.pixels[_idx_that] * alpha);
-					pixels[_idx_this + 1] = (byte) (tar.pixels[_idx_that + 1] * alpha);
-					pixels[_idx_this + 2] = (byte) (tar.pixels[_idx_that + 2] * alpha);
-				}
-			}
-			dirty = true;
-		}
+		blend(tar, locx, locy, alpha, BlendMode.NORMAL);
 	}
 	
 	/**
 	 * 将一副目标图像混合到当前图像上<br>
 	 * 使用普通的图像叠加方式<br>
-	 * 即直接使用目标rgb作为新图片的rgb<br>
-	 * 如果需要使用Overlay方式，则使用{@link #blendAddTransparent(Texture, int, int, float, byte, byte, byte)}方式<br>
+	 * 即按透明度将目标rgb与当前rgb线性混合，透明度为1时直接使用目标rgb作为新图片的rgb<br>
+	 * 如果需要使用加亮方式，则使用{@link #blendAddTransparent(Texture, int, int, float, byte, byte, byte)}方式<br>
 	 * 此操作不改变目标图像数据，即使传递了alpha参数<br>
 	 * 支持透明色，即如果目标坐标目标图片的颜色是给定值则忽略
 	 * 
@@ -539,45 +781,20 @@ public final class Texture implements Cloneable {
 	 * @param b
 	 * 		透明色分量
 	 * 
+	 * @see #blendTransparent(Texture, int, int, float, BlendMode, byte, byte, byte)
 	 * @see #blendAdd(Texture, int, int, float)
 	 * @see #blendAddTransparent(Texture, int, int, float, byte, byte, byte)
 	 * @see #blendNormal(Texture, int, int, float)
 	 */
 	public final void blendNormalTransparent(Texture tar, int locx, int locy, float alpha, byte r, byte g, byte b) {
-		if(empty()) return;
-		if(tar.empty()) return;
-		synchronized (proc_locker) {
-			int x = locx;
-			int y = locy;
-			if(x < 0 || x > width || y < 0 || y < height) return;
-			int rx = x + tar.width;
-			if(rx >= width)
-				rx = width - 1;
-			int by = y + tar.height;
-			if(by >= height)
-				by = height - 1;
-			for(int i = y; i < by; ++i) {
-				for(int j = x; j < rx; ++j) {
-					int _idx_this = (j + i * width) * 3;
-					int _idx_that = (j - x + (i - y) * width) * 3;
-					byte _r = tar.pixels[_idx_that];
-					byte _g = tar.pixels[_idx_that + 1];
-					byte _b = tar.pixels[_idx_that + 2];
-					if(r != _r || _g != g || _b != b) {
-						pixels[_idx_this] = (byte) (_r * alpha);
-						pixels[_idx_this + 1] = (byte) (_g * alpha);
-						pixels[_idx_this + 2] = (byte) (_b * alpha);
-					}
-				}
-			}
-			dirty = true;
-		}
+		blendTransparent(tar, locx, locy, alpha, BlendMode.NORMAL, r, g, b);
 	}
 	
 	/**
 	 * 将一副目标图像混合到当前图像上<br>
-	 * 使用Overlay的图像叠加方式<br>
-	 * 即显卡的Add混合模式，在OpenGL里是glBlendFunc(GL_SRC_COLOR, GL_ONE)<br>
+	 * 使用加亮的图像叠加方式<br>
+	 * 即显卡的Add混合模式，在OpenGL里是glBlendFunc(GL_SRC_ALPHA, GL_ONE)，分量相加超过255时取255<br>
+	 * 黑色不改变当前图像，适合传奇中的魔法特效<br>
 	 * 如果需要使用普通方式，则使用{@link #blendNormal(Texture, int, int, float)}方式<br>
 	 * 如需支持透明色，则使用{@link #blendNormalTransparent(Texture, int, int, float, byte, byte, byte)}
 	 * 此操作不改变目标图像数据，即使传递了alpha参数
@@ -591,43 +808,19 @@ public final class Texture implements Cloneable {
 	 * @param alpha
 	 * 		目标图像透明度
 	 * 
+	 * @see #blend(Texture, int, int, float, BlendMode)
 	 * @see #blendNormal(Texture, int, int, float)
 	 * @see #blendNormalTransparent(Texture, int, int, float, byte, byte, byte)
 	 * @see #blendAddTransparent(Texture, int, int, float, byte, byte, byte)
 	 */
 	public final void blendAdd(Texture tar, int locx, int locy, float alpha) {
-		if(empty()) return;
-		if(tar.empty()) return;
-		synchronized (proc_locker) {
-			int x = locx;
-			int y = locy;
-			if(x < 0 || x > width || y < 0 || y < height) return;
-			int rx = x + tar.width;
-			if(rx >= width)
-				rx = width - 1;
-			int by = y + tar.height;
-			if(by >= height)
-				by = height - 1;
-			for(int i = y; i < by; ++i) {
-				for(int j = x; j < rx; ++j) {
-					int _idx_this = (j + i * width) * 3;
-					int _idx_that = (j - x + (i - y) * width) * 3;
-					byte r = (byte) (tar.pixels[_idx_that] * alpha);
-					byte g = (byte) (tar.pixels[_idx_that + 1] * alpha);
-					byte b = (byte) (tar.pixels[_idx_that + 2] * alpha);
-					pixels[_idx_this] = (byte) ((r < 128) ? (2 * pixels[_idx_this] * r / 255) : (255 - 2 * (255 - pixels[_idx_this]) * (255 - r) / 255));
-					pixels[_idx_this + 1] = (byte) ((g < 128) ? (2 * pixels[_idx_this + 1] * g / 255) : (255 - 2 * (255 - pixels[_idx_this + 1]) * (255 - g) / 255));
-					pixels[_idx_this + 2] = (byte) ((b < 128) ? (2 * pixels[_idx_this + 2] * b / 255) : (255 - 2 * (255 - pixels[_idx_this + 2]) * (255 - b) / 255));
-				}
-			}
-		}
-		dirty = true;
+		blend(tar, locx, locy, alpha, BlendMode.ADD);
 	}
 	
 	/**
 	 * 将一副目标图像混合到当前图像上<br>
-	 * 使用Overlay的图像叠加方式<br>
-	 * 即显卡的Add混合模式，在OpenGL里是glBlendFunc(GL_SRC_COLOR, GL_ONE)<br>
+	 * 使用加亮的图像叠加方式<br>
+	 * 即显卡的Add混合模式，在OpenGL里是glBlendFunc(GL_SRC_ALPHA, GL_ONE)，分量相加超过255时取255<br>
 	 * 如果需要使用普通方式，则使用{@link #blendNormalTransparent(Texture, int, int, float, byte, byte, byte)}方式<br>
 	 * 此操作不改变目标图像数据，即使传递了alpha参数<br>
 	 * 支持透明色，即如果目标坐标目标图片的颜色是给定值则忽略
@@ -647,38 +840,312 @@ public final class Texture implements Cloneable {
 	 * @param b
 	 * 		透明色分量
 	 * 
+	 * @see #blendTransparent(Texture, int, int, float, BlendMode, byte, byte, byte)
 	 * @see #blendNormal(Texture, int, int, float)
 	 * @see #blendNormalTransparent(Texture, int, int, float, byte, byte, byte)
 	 * @see #blendAdd(Texture, int, int, float)
 	 */
 	public final void blendAddTransparent(Texture tar, int locx, int locy, float alpha, byte r, byte g, byte b) {
+		blendTransparent(tar, locx, locy, alpha, BlendMode.ADD, r, g, b);
+	}
+	
+	/**
+	 * 将一副目标图像以指定方式混合到当前图像上<br>
+	 * 目标图像可以部分超出当前图像，超出部分忽略<br>
+	 * 此操作不改变目标图像数据，即使传递了alpha参数
+	 * 
+	 * @param tar
+	 * 		目标图像
+	 * @param locx
+	 * 		图像叠加起始X坐标，可以为负数
+	 * @param locy
+	 * 		图像叠加起始Y坐标，可以为负数
+	 * @param alpha
+	 * 		目标图像透明度，0到1之间
+	 * @param mode
+	 * 		混合方式
+	 * 
+	 * @see #blendTransparent(Texture, int, int, float, BlendMode, byte, byte, byte)
+	 */
+	public final void blend(Texture tar, int locx, int locy, float alpha, BlendMode mode) {
+		blend(tar, locx, locy, PixelKernels.fixed(alpha), mode, -1);
+	}
+	
+	/**
+	 * 将一副目标图像以指定方式混合到当前图像上<br>
+	 * 目标图像可以部分超出当前图像，超出部分忽略<br>
+	 * 此操作不改变目标图像数据，即使传递了alpha参数<br>
+	 * 支持透明色，即如果目标坐标目标图片的颜色是给定值则忽略
+	 * 
+	 * @param tar
+	 * 		目标图像
+	 * @param locx
+	 * 		图像叠加起始X坐标，可以为负数
+	 * @param locy
+	 * 		图像叠加起始Y坐标，可以为负数
+	 * @param alpha
+	 * 		目标图像透明度，0到1之间
+	 * @param mode
+	 * 		混合方式
+	 * @param r
+	 * 		透明色R分量
+	 * @param g
+	 * 		透明色G分量
+	 * @param b
+	 * 		透明色B分量
+	 * 
+	 * @see #blend(Texture, int, int, float, BlendMode)
+	 */
+	public final void blendTransparent(Texture tar, int locx, int locy, float alpha, BlendMode mode, byte r, byte g, byte b) {
+		blend(tar, locx, locy, PixelKernels.fixed(alpha), mode, ((r & 0xff) << 16) | ((g & 0xff) << 8) | (b & 0xff));
+	}
+	
+	/**
+	 * 图片中的矩形区域
+	 * 
+	 * @see Texture#takeDirtyRegions()
+	 */
+	public static final class Region {
+		private final int x;
+		private final int y;
+		private final int width;
+		private final int height;
+		
+		Region(int x, int y, int width, int height) {
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+		}
+		
+		/**
+		 * 获取区域左上角横坐标
+		 * 
+		 * @return 横坐标(像素)
+		 */
+		public int getX() {
+			return x;
+		}
+		
+		/**
+		 * 获取区域左上角纵坐标
+		 * 
+		 * @return 纵坐标(像素)
+		 */
+		public int getY() {
+			return y;
+		}
+		
+		/**
+		 * 获取区域宽度
+		 * 
+		 * @return 宽度(像素)
+		 */
+		public int getWidth() {
+			return width;
+		}
+		
+		/**
+		 * 获取区域高度
+		 * 
+		 * @return 高度(像素)
+		 */
+		public int getHeight() {
+			return height;
+		}
+		
+		@Override
+		public String toString() {
+			return "Region[" + x + "," + y + " " + width + "x" + height + "]";
+		}
+	}
+	
+	/* 记录的修改区域数量上限 */
+	private static final int MAX_DIRTY_REGIONS = 16;
+	
+	/* 记录x到rx、y到by(不包含)的区域被修改，调用方需持有proc_locker */
+	private void markDirty(int x, int y, int rx, int by) {
+		if(rx <= x || by <= y) return;
+		if(parent != null) {
+			int px = offset % stride, py = offset / stride;
+			parent.markDirty(x + px, y + py, rx + px, by + py);
+		}
+		if(dirtyRects == null)
+			dirtyRects = new int[(MAX_DIRTY_REGIONS + 1) * 4];
+		int[] r = dirtyRects;
+		// 与已有区域反复合并，直到新区域不再与任何区域相交或相邻
+		for(int i = 0; i < dirtyCount;) {
+			int k = i * 4;
+			if(x <= r[k + 2] && r[k] <= rx && y <= r[k + 3] && r[k + 1] <= by) {
+				x = Math.min(x, r[k]);
+				y = Math.min(y, r[k + 1]);
+				rx = Math.max(rx, r[k + 2]);
+				by = Math.max(by, r[k + 3]);
+				removeDirty(i);
+				i = 0;
+			} else {
+				++i;
+			}
+		}
+		int k = dirtyCount++ * 4;
+		r[k] = x;
+		r[k + 1] = y;
+		r[k + 2] = rx;
+		r[k + 3] = by;
+		if(dirtyCount > MAX_DIRTY_REGIONS) {
+			// 合并新区域与使合并后多出面积最小的区域，合并后可能与其他区域相交，重新记录
+			int best = 0;
+			long bestWaste = Long.MAX_VALUE;
+			for(int i = 0; i < dirtyCount - 1; ++i) {
+				int j = i * 4;
+				long union = (long) (Math.max(rx, r[j + 2]) - Math.min(x, r[j])) * (Math.max(by, r[j + 3]) - Math.min(y, r[j + 1]));
+				long waste = union - (long) (rx - x) * (by - y) - (long) (r[j + 2] - r[j]) * (r[j + 3] - r[j + 1]);
+				if(waste < bestWaste) {
+					bestWaste = waste;
+					best = i;
+				}
+			}
+			int j = best * 4;
+			int ux = Math.min(x, r[j]), uy = Math.min(y, r[j + 1]), urx = Math.max(rx, r[j + 2]), uby = Math.max(by, r[j + 3]);
+			dirtyCount--;
+			removeDirty(best);
+			markDirty(ux, uy, urx, uby);
+		}
+	}
+	
+	private void removeDirty(int i) {
+		int last = --dirtyCount;
+		if(i != last)
+			System.arraycopy(dirtyRects, last * 4, dirtyRects, i * 4, 4);
+	}
+	
+	/** 图片区域逐行处理 */
+	private abstract static class RowOp {
+		/**
+		 * 处理一行中连续的像素
+		 * 
+		 * @param rgb
+		 * 		RGB数据
+		 * @param off
+		 * 		起始位置
+		 * @param n
+		 * 		像素个数
+		 */
+		abstract void apply(byte[] rgb, int off, int n);
+	}
+	
+	private static final RowOp CLEAR = new RowOp() {
+		@Override
+		void apply(byte[] rgb, int off, int n) {
+			Arrays.fill(rgb, off, off + n * 3, (byte) 0);
+		}
+	};
+	
+	private static final RowOp GRAY = new RowOp() {
+		@Override
+		void apply(byte[] rgb, int off, int n) {
+			PixelKernels.gray(rgb, off, n);
+		}
+	};
+	
+	private static final RowOp INVERSE = new RowOp() {
+		@Override
+		void apply(byte[] rgb, int off, int n) {
+			PixelKernels.inverse(rgb, off, n * 3);
+		}
+	};
+	
+	private static RowOp alphaOp(float alpha) {
+		final int a = PixelKernels.fixed(alpha);
+		return new RowOp() {
+			@Override
+			void apply(byte[] rgb, int off, int n) {
+				PixelKernels.scale(rgb, off, n * 3, a);
+			}
+		};
+	}
+	
+	/* 对x到rx、y到by(不包含)的区域逐行处理，调用方需持有proc_locker；非字节数组存储的行复制到临时数组处理后写回 */
+	private void rows(int x, int y, int rx, int by, RowOp op) {
+		int n = rx - x;
+		if(n < 1) return;
+		if(pixels != null) {
+			if(n == stride) {
+				// 整行区域在数组中是连续的，一次处理
+				op.apply(pixels, index(0, y) * 3, n * (by - y));
+				return;
+			}
+			for(int i = y; i < by; ++i)
+				op.apply(pixels, index(x, i) * 3, n);
+			return;
+		}
+		byte[] row = new byte[n * 3];
+		for(int i = y; i < by; ++i) {
+			int index = index(x, i);
+			storage.read(index, row, 0, n);
+			op.apply(row, 0, n);
+			storage.write(index, row, 0, n);
+		}
+	}
+	
+	/* 将目标图像裁剪到当前图像范围内逐行混合，key为-1表示没有透明色 */
+	private void blend(Texture tar, int locx, int locy, int a, BlendMode mode, int key) {
 		if(empty()) return;
 		if(tar.empty()) return;
+		if(mode == null)
+			throw new IllegalArgumentException("mode must not be null");
 		synchronized (proc_locker) {
-			int x = locx;
-			int y = locy;
-			if(x < 0 || x > width || y < 0 || y < height) return;
-			int rx = x + tar.width;
-			if(rx >= width)
-				rx = width - 1;
-			int by = y + tar.height;
-			if(by >= height)
-				by = height - 1;
+			int x = Math.max(locx, 0);
+			int y = Math.max(locy, 0);
+			int rx = Math.min(locx + tar.width, width);
+			int by = Math.min(locy + tar.height, height);
+			int n = rx - x;
+			if(n < 1 || by <= y) return;
+			byte[] srow = tar.pixels == null ? new byte[n * 3] : null;
+			byte[] drow = pixels == null ? new byte[n * 3] : null;
 			for(int i = y; i < by; ++i) {
-				for(int j = x; j < rx; ++j) {
-					int _idx_this = (j + i * width) * 3;
-					int _idx_that = (j - x + (i - y) * width) * 3;
-					byte _r = (byte) (tar.pixels[_idx_that] * alpha);
-					byte _g = (byte) (tar.pixels[_idx_that + 1] * alpha);
-					byte _b = (byte) (tar.pixels[_idx_that + 2] * alpha);
-					if(r != _r || _g != g || _b != b) {
-						pixels[_idx_this] = (byte) ((_r < 128) ? (2 * pixels[_idx_this] * _r / 255) : (255 - 2 * (255 - pixels[_idx_this]) * (255 - _r) / 255));
-						pixels[_idx_this + 1] = (byte) ((_g < 128) ? (2 * pixels[_idx_this + 1] * _g / 255) : (255 - 2 * (255 - pixels[_idx_this + 1]) * (255 - _g) / 255));
-						pixels[_idx_this + 2] = (byte) ((_b < 128) ? (2 * pixels[_idx_this + 2] * _b / 255) : (255 - 2 * (255 - pixels[_idx_this + 2]) * (255 - _b) / 255));
-					}
+				int sindex = tar.index(x - locx, i - locy);
+				byte[] src = tar.pixels;
+				int s = sindex * 3;
+				if(src == null) {
+					tar.storage.read(sindex, srow, 0, n);
+					src = srow;
+					s = 0;
 				}
+				int dindex = index(x, i);
+				if(pixels != null) {
+					PixelKernels.blend(mode, pixels, dindex * 3, src, s, n, a, key);
+				} else {
+					storage.read(dindex, drow, 0, n);
+					PixelKernels.blend(mode, drow, 0, src, s, n, a, key);
+					storage.write(dindex, drow, 0, n);
+				}
+			}
+			markDirty(x, y, rx, by);
+		}
+	}
+	
+	/* 图片坐标对应的像素在存储中的序号 */
+	private int index(int x, int y) {
+		return offset + x + y * stride;
+	}
+	
+	/* 以指定方式复制x y开始w*h的区域，调用方需持有proc_locker */
+	private PixelStorage copyStorage(Storage kind, int x, int y, int w, int h) {
+		if(w == stride && offset == 0 && x == 0 && y == 0)
+			// 整张紧凑存储的图片
+			return storage.convert(kind, w * h);
+		PixelStorage dst = PixelStorage.allocate(kind, w * h);
+		if(kind == storage.kind()) {
+			for(int i = 0; i < h; ++i)
+				storage.copyTo(index(x, y + i), dst, i * w, w);
+		} else {
+			byte[] row = new byte[w * 3];
+			for(int i = 0; i < h; ++i) {
+				storage.read(index(x, y + i), row, 0, w);
+				dst.write(i * w, row, 0, w);
 			}
 		}
-		dirty = true;
+		return dst;
 	}
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 JOOTNET Project
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Support: https://github.com/jootnet/mir2.core
+ */
+package com.github.jootnet.mir2.core;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 图片像素缓冲池<br>
+ * 按缓冲区字节数分级存放被释放({@link Texture#release()})的像素数组，图片库解码时优先从池中取出相同大小的数组，
+ * 减少短时间使用的精灵图片带来的垃圾回收压力<br>
+ * 池中数组总字节数不超过设定值，超出时释放的数组直接丢弃<br>
+ * <br>
+ * 只有显式调用{@link Texture#release()}的图片才会将数组放回池中，没有释放就不再被引用的图片由垃圾回收器正常回收，
+ * 因此不调用release的调用方可以一直持有{@link Texture#getRGBs()}返回的数组
+ *
+ * @author 云中双月
+ */
+public final class TexturePool {
+
+	/** 默认缓冲池容量(字节) */
+	public static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+
+	private static final TexturePool DEFAULT = new TexturePool(DEFAULT_MAX_BYTES);
+
+	/* 以数组字节数为级别 */
+	private final ConcurrentHashMap<Integer, Queue<byte[]>> classes = new ConcurrentHashMap<Integer, Queue<byte[]>>();
+	private final AtomicLong pooledBytes = new AtomicLong();
+	private volatile long maxBytes;
+
+	/**
+	 * 获取全局共享的缓冲池<br>
+	 * 图片库解码时使用此缓冲池
+	 *
+	 * @return 全局缓冲池
+	 */
+	public static TexturePool getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * 创建一个缓冲池
+	 *
+	 * @param maxBytes
+	 * 		池中数组总字节数上限
+	 */
+	public TexturePool(long maxBytes) {
+		setMaxBytes(maxBytes);
+	}
+
+	/**
+	 * 设置池中数组总字节数上限<br>
+	 * 上限变小时不会立即丢弃已有数组，之后取出的数组不再放回直到总量低于上限
+	 *
+	 * @param maxBytes
+	 * 		总字节数上限，为0时不缓存任何数组
+	 */
+	public void setMaxBytes(long maxBytes) {
+		if(maxBytes < 0)
+			throw new IllegalArgumentException("maxBytes must not be negative");
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * 获取池中数组总字节数上限
+	 *
+	 * @return 总字节数上限
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * 获取池中数组当前总字节数
+	 *
+	 * @return 总字节数
+	 */
+	public long pooledBytes() {
+		return pooledBytes.get();
+	}
+
+	/**
+	 * 丢弃池中所有数组
+	 */
+	public void clear() {
+		for(Queue<byte[]> q : classes.values()) {
+			byte[] pixels;
+			while((pixels = q.poll()) != null)
+				pooledBytes.addAndGet(-pixels.length);
+		}
+	}
+
+	/**
+	 * 创建像素数组来自缓冲池的图片<br>
+	 * 像素数据内容未定义，调用方需要写入全部像素<br>
+	 * 图片使用完后调用{@link Texture#release()}将数组放回缓冲池
+	 *
+	 * @param width
+	 * 		图片宽度
+	 * @param height
+	 * 		图片高度
+	 * @return 新的图片对象，宽度或高度小于1时为不使用缓冲池的空图片
+	 */
+	public Texture texture(int width, int height) {
+		if(width < 1 || height < 1)
+			return new Texture(new byte[0], width, height);
+		int length = width * height * 3;
+		byte[] pixels = null;
+		Queue<byte[]> q = classes.get(length);
+		if(q != null && (pixels = q.poll()) != null)
+			pooledBytes.addAndGet(-length);
+		if(pixels == null)
+			pixels = new byte[length];
+		return new Texture(pixels, width, height, this);
+	}
+
+	/* 图片被释放，放回数组 */
+	void recycle(byte[] pixels) {
+		int length = pixels.length;
+		if(pooledBytes.addAndGet(length) > maxBytes) {
+			pooledBytes.addAndGet(-length);
+			return;
+		}
+		Queue<byte[]> q = classes.get(length);
+		if(q == null) {
+			Queue<byte[]> created = new ConcurrentLinkedQueue<byte[]>();
+			q = classes.putIfAbsent(length, created);
+			if(q == null) q = created;
+		}
+		q.offer(pixels);
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 JOOTNET Project
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Support: https://github.com/jootnet/mir2.core
+ */
+package com.github.jootnet.mir2.core.image;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.github.jootnet.mir2.core.IndexedTexture;
+import com.github.jootnet.mir2.core.PixelFormat;
+import com.github.jootnet.mir2.core.Texture;
+
+/**
+ * 带解码缓存的图片库<br>
+ * 包装一个图片库，{@link #tex(int)}优先从{@link TextureCache}获取已解码的图片，避免重复解压和调色板转换
+ * <pre>
+ * ImageLibrary tiles = new CachedImageLibrary(ImageLibraries.get("Tiles", "data/Tiles"));
+ * </pre>
+ * 返回的图片对象在多次调用之间共享，调用方不能修改其像素数据
+ *
+ * @author 云中双月
+ *
+ * @see TextureCache
+ */
+public final class CachedImageLibrary implements ImageLibrary {
+
+	private final ImageLibrary lib;
+	private final TextureCache cache;
+
+	/**
+	 * 使用全局图片缓存包装图片库
+	 *
+	 * @param lib
+	 * 		被包装的图片库
+	 */
+	public CachedImageLibrary(ImageLibrary lib) {
+		this(lib, TextureCache.getDefault());
+	}
+
+	/**
+	 * 使用指定图片缓存包装图片库
+	 *
+	 * @param lib
+	 * 		被包装的图片库
+	 * @param cache
+	 * 		图片缓存
+	 */
+	public CachedImageLibrary(ImageLibrary lib, TextureCache cache) {
+		if(lib == null || cache == null)
+			throw new IllegalArgumentException("lib and cache must not be null");
+		this.lib = lib;
+		this.cache = cache;
+	}
+
+	/**
+	 * 获取被包装的图片库
+	 *
+	 * @return 图片库
+	 */
+	public ImageLibrary getLibrary() {
+		return lib;
+	}
+
+	/**
+	 * 获取使用的图片缓存
+	 *
+	 * @return 图片缓存
+	 */
+	public TextureCache getCache() {
+		return cache;
+	}
+
+	@Override
+	public int count() {
+		return lib.count();
+	}
+
+	@Override
+	public Texture tex(int index) {
+		return cache.get(lib, index);
+	}
+
+	@Override
+	public Texture[] tex(int[] indices) {
+		return cache.get(lib, indices);
+	}
+
+	@Override
+	public Texture[] texRange(int from, int to) {
+		TextureBatch.checkRange(from, to);
+		int[] indices = new int[to - from];
+		for(int i = 0; i < indices.length; ++i)
+			indices[i] = from + i;
+		return cache.get(lib, indices);
+	}
+
+	/**
+	 * 获取调色板图片，8位图片库整体常驻内存时使用此函数只需要三分之一的缓存空间
+	 */
+	@Override
+	public IndexedTexture texIndexed(int index) {
+		return cache.getIndexed(lib, index);
+	}
+
+	/**
+	 * 直接由被包装的图片库解码，不经过缓存
+	 */
+	@Override
+	public boolean tex(int index, byte[] dst, int offset, int stride, PixelFormat format) {
+		return lib.tex(index, dst, offset, stride, format);
+	}
+
+	/**
+	 * 直接由被包装的图片库解码，不经过缓存
+	 */
+	@Override
+	public boolean tex(int index, int[] dst, int offset, int stride) {
+		return lib.tex(index, dst, offset, stride);
+	}
+
+	/**
+	 * 直接由被包装的图片库解码，不经过缓存
+	 */
+	@Override
+	public boolean tex(int index, ByteBuffer dst, int stride, PixelFormat format) {
+		return lib.tex(index, dst, stride, format);
+	}
+
+	@Override
+	public ImageInfo info(int index) {
+		return lib.info(index);
+	}
+
+	/**
+	 * 固定图片，固定的图片不会被淘汰
+	 *
+	 * @param index
+	 * 		图片索引
+	 *
+	 * @see TextureCache#pin(ImageLibrary, int)
+	 */
+	public void pin(int index) {
+		cache.pin(lib, index);
+	}
+
+	/**
+	 * 取消固定图片
+	 *
+	 * @param index
+	 * 		图片索引
+	 *
+	 * @see TextureCache#unpin(ImageLibrary, int)
+	 */
+	public void unpin(int index) {
+		cache.unpin(lib, index);
+	}
+
+	/**
+	 * 从缓存中移除此图片库的所有图片并关闭被包装的图片库
+	 */
+	@Override
+	public void close() throws IOException {
+		cache.invalidateAll(lib);
+		lib.close();
+	}
+}
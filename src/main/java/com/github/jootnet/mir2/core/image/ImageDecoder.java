@@ -0,0 +1,432 @@
+/*
+ * Copyright 2017 JOOTNET Project
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Support: https://github.com/jootnet/mir2.core
+ */
+package com.github.jootnet.mir2.core.image;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.github.jootnet.mir2.core.IndexedTexture;
+import com.github.jootnet.mir2.core.PixelFormat;
+import com.github.jootnet.mir2.core.SDK;
+
+/**
+ * 图片库共用的像素数据转换函数<br>
+ * 解码到调用方缓冲区时使用每个线程各自的临时数组，重复解码不产生新的对象
+ *
+ * @author 云中双月
+ */
+final class ImageDecoder {
+
+	private ImageDecoder() { }
+
+	private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	/**
+	 * 获取当前线程的临时数组<br>
+	 * 数组只增不减，保留当前线程解码过的最大图片所需的空间
+	 *
+	 * @return 当前线程的临时数组
+	 */
+	static Scratch scratch() {
+		return SCRATCH.get();
+	}
+
+	/** 线程私有的临时数组以及可复用的解码目标 */
+	static final class Scratch {
+		private byte[] data = new byte[0];
+		private byte[] pixels = new byte[0];
+		private int[] row = new int[0];
+		private byte[] rowBytes = new byte[0];
+		private final ByteArrayTarget byteArrayTarget = new ByteArrayTarget(this);
+		private final IntArrayTarget intArrayTarget = new IntArrayTarget(this);
+		private final ByteBufferTarget byteBufferTarget = new ByteBufferTarget(this);
+
+		/**
+		 * 存放从文件读取的原始数据
+		 *
+		 * @param n
+		 * 		需要的字节数
+		 * @return 长度不小于n的数组，内容未定义
+		 */
+		byte[] data(int n) {
+			if(data.length < n) data = new byte[n];
+			return data;
+		}
+
+		/**
+		 * 存放解压后的像素数据
+		 *
+		 * @param n
+		 * 		需要的字节数
+		 * @return 长度不小于n的数组，内容未定义
+		 */
+		byte[] pixels(int n) {
+			if(pixels.length < n) pixels = new byte[n];
+			return pixels;
+		}
+
+		int[] row(int n) {
+			if(row.length < n) row = new int[n];
+			return row;
+		}
+
+		byte[] rowBytes(int n) {
+			if(rowBytes.length < n) rowBytes = new byte[n];
+			return rowBytes;
+		}
+
+		/**
+		 * 以字节数组为解码目标
+		 *
+		 * @throws IllegalArgumentException 数组空间不足以存放整张图片
+		 */
+		Target target(byte[] dst, int offset, int stride, PixelFormat format, int width, int height) {
+			checkBounds(dst.length, offset, stride, width * format.getBytesPerPixel(), height);
+			ByteArrayTarget t = byteArrayTarget;
+			t.dst = dst;
+			t.offset = offset;
+			t.stride = stride;
+			t.format = format;
+			return t;
+		}
+
+		/**
+		 * 以int数组为解码目标，每个元素一个ARGB像素
+		 *
+		 * @throws IllegalArgumentException 数组空间不足以存放整张图片
+		 */
+		Target target(int[] dst, int offset, int stride, int width, int height) {
+			checkBounds(dst.length, offset, stride, width, height);
+			IntArrayTarget t = intArrayTarget;
+			t.dst = dst;
+			t.offset = offset;
+			t.stride = stride;
+			return t;
+		}
+
+		/**
+		 * 以缓冲区为解码目标，从缓冲区当前位置开始写入，不改变缓冲区位置
+		 *
+		 * @throws IllegalArgumentException 缓冲区剩余空间不足以存放整张图片
+		 */
+		Target target(ByteBuffer dst, int stride, PixelFormat format, int width, int height) {
+			checkBounds(dst.limit(), dst.position(), stride, width * format.getBytesPerPixel(), height);
+			ByteBufferTarget t = byteBufferTarget;
+			t.dst = dst;
+			t.offset = dst.position();
+			t.stride = stride;
+			t.format = format;
+			return t;
+		}
+	}
+
+	private static void checkBounds(int capacity, int offset, int stride, int rowLength, int height) {
+		if(offset < 0 || stride < rowLength || (long) offset + (long) (height - 1) * stride + rowLength > capacity)
+			throw new IllegalArgumentException("destination too small for " + height + " rows of " + rowLength + " with stride " + stride);
+	}
+
+	/** 解码目标，逐行接收ARGB像素 */
+	abstract static class Target {
+		final Scratch scratch;
+
+		Target(Scratch scratch) {
+			this.scratch = scratch;
+		}
+
+		/**
+		 * 写入一行像素
+		 *
+		 * @param y
+		 * 		行号，从上到下
+		 * @param argb
+		 * 		ARGB像素
+		 * @param width
+		 * 		像素个数
+		 */
+		abstract void row(int y, int[] argb, int width);
+
+		/** 解码结束，释放对目标数组的引用 */
+		abstract void done();
+	}
+
+	private static final class ByteArrayTarget extends Target {
+		private byte[] dst;
+		private int offset;
+		private int stride;
+		private PixelFormat format;
+
+		ByteArrayTarget(Scratch scratch) {
+			super(scratch);
+		}
+
+		@Override
+		void row(int y, int[] argb, int width) {
+			pack(argb, width, dst, offset + y * stride, format);
+		}
+
+		@Override
+		void done() {
+			dst = null;
+		}
+	}
+
+	private static final class IntArrayTarget extends Target {
+		private int[] dst;
+		private int offset;
+		private int stride;
+
+		IntArrayTarget(Scratch scratch) {
+			super(scratch);
+		}
+
+		@Override
+		void row(int y, int[] argb, int width) {
+			System.arraycopy(argb, 0, dst, offset + y * stride, width);
+		}
+
+		@Override
+		void done() {
+			dst = null;
+		}
+	}
+
+	private static final class ByteBufferTarget extends Target {
+		private ByteBuffer dst;
+		private int offset;
+		private int stride;
+		private PixelFormat format;
+
+		ByteBufferTarget(Scratch scratch) {
+			super(scratch);
+		}
+
+		@Override
+		void row(int y, int[] argb, int width) {
+			int n = width * format.getBytesPerPixel();
+			byte[] bytes = scratch.rowBytes(n);
+			pack(argb, width, bytes, 0, format);
+			// 批量写入一行，结束后恢复缓冲区位置；转为Buffer调用，避免链接到Java 9才有的ByteBuffer.position(int)
+			int position = dst.position();
+			((Buffer) dst).position(offset + y * stride);
+			dst.put(bytes, 0, n);
+			((Buffer) dst).position(position);
+		}
+
+		@Override
+		void done() {
+			dst = null;
+		}
+	}
+
+	/* 将一行ARGB像素按格式写入字节数组 */
+	private static void pack(int[] argb, int width, byte[] dst, int d, PixelFormat format) {
+		switch (format) {
+		case RGB:
+			for(int i = 0; i < width; ++i) {
+				int c = argb[i];
+				dst[d++] = (byte) (c >> 16);
+				dst[d++] = (byte) (c >> 8);
+				dst[d++] = (byte) c;
+			}
+			break;
+		case RGBA:
+			for(int i = 0; i < width; ++i) {
+				int c = argb[i];
+				dst[d++] = (byte) (c >> 16);
+				dst[d++] = (byte) (c >> 8);
+				dst[d++] = (byte) c;
+				dst[d++] = (byte) (c >>> 24);
+			}
+			break;
+		case BGRA:
+			for(int i = 0; i < width; ++i) {
+				int c = argb[i];
+				dst[d++] = (byte) c;
+				dst[d++] = (byte) (c >> 8);
+				dst[d++] = (byte) (c >> 16);
+				dst[d++] = (byte) (c >>> 24);
+			}
+			break;
+		case ARGB:
+			for(int i = 0; i < width; ++i) {
+				int c = argb[i];
+				dst[d++] = (byte) (c >>> 24);
+				dst[d++] = (byte) (c >> 16);
+				dst[d++] = (byte) (c >> 8);
+				dst[d++] = (byte) c;
+			}
+			break;
+		}
+	}
+
+	/**
+	 * 将BMP格式的像素数据解码到目标<br>
+	 * BMP数据从下到上存放，每行开头有填充字节
+	 *
+	 * @param pixels
+	 * 		像素数据
+	 * @param off
+	 * 		像素数据在数组中的起始位置
+	 * @param width
+	 * 		图片宽度
+	 * @param height
+	 * 		图片高度
+	 * @param bit
+	 * 		色深度，8或16
+	 * @param t
+	 * 		解码目标
+	 */
+	static void decodeBmp(byte[] pixels, int off, int width, int height, int bit, Target t) {
+		int stride = SDK.widthBytes(bit * width);
+		for(int h = height - 1, p_index = off; h >= 0; --h, p_index += stride)
+			decodeBmpRow(pixels, p_index, width, bit, h, t);
+	}
+
+	/**
+	 * 将BMP格式的一行像素数据解码到目标<br>
+	 * 用于逐行解压的数据
+	 *
+	 * @param pixels
+	 * 		像素数据
+	 * @param off
+	 * 		此行数据(包括行首填充字节)在数组中的起始位置
+	 * @param width
+	 * 		图片宽度
+	 * @param bit
+	 * 		色深度，8或16
+	 * @param y
+	 * 		行号，从上到下
+	 * @param t
+	 * 		解码目标
+	 */
+	static void decodeBmpRow(byte[] pixels, int off, int width, int bit, int y, Target t) {
+		int[] row = t.scratch.row(width);
+		// 跳过填充字节
+		int p_index = off + SDK.skipBytes(bit, width);
+		if(bit == 8) {
+			int[] argb = SDK.palletesARGB;
+			for(int w = 0; w < width; ++w)
+				row[w] = argb[pixels[p_index + w] & 0xff];
+		} else {
+			int[] argb = SDK.rgb565ARGB;
+			for(int w = 0, p = p_index; w < width; ++w, p += 2)
+				row[w] = argb[(pixels[p] & 0xff) | ((pixels[p + 1] & 0xff) << 8)];
+		}
+		t.row(y, row, width);
+	}
+
+	/**
+	 * 将从上到下存放、没有填充字节的调色板索引解码到目标
+	 *
+	 * @param indices
+	 * 		调色板索引
+	 * @param off
+	 * 		索引在数组中的起始位置
+	 * @param width
+	 * 		图片宽度
+	 * @param height
+	 * 		图片高度
+	 * @param t
+	 * 		解码目标
+	 */
+	static void decodeIndices(byte[] indices, int off, int width, int height, Target t) {
+		int[] row = t.scratch.row(width);
+		int[] argb = SDK.palletesARGB;
+		for(int h = 0, p_index = off; h < height; ++h, p_index += width) {
+			for(int w = 0; w < width; ++w)
+				row[w] = argb[indices[p_index + w] & 0xff];
+			t.row(h, row, width);
+		}
+	}
+
+	/**
+	 * 将BMP格式的像素数据转换为RGB数据<br>
+	 * BMP数据从下到上存放，每行开头有填充字节
+	 *
+	 * @param pixels
+	 * 		像素数据
+	 * @param off
+	 * 		像素数据在数组中的起始位置
+	 * @param width
+	 * 		图片宽度
+	 * @param height
+	 * 		图片高度
+	 * @param bit
+	 * 		色深度，8或16，其他值全部填0
+	 * @param sRGB
+	 * 		目标数组，从左上角到右下角，长度至少为宽度*高度*3
+	 */
+	static void rgb(byte[] pixels, int off, int width, int height, int bit, byte[] sRGB) {
+		if(bit != 8 && bit != 16) {
+			Arrays.fill(sRGB, 0, width * height * 3, (byte) 0);
+			return;
+		}
+		int stride = SDK.widthBytes(bit * width);
+		// 跳过填充字节
+		int p_index = off + SDK.skipBytes(bit, width);
+		for(int h = height - 1; h >= 0; --h, p_index += stride) {
+			int _idx = h * width * 3;
+			if(bit == 8) {
+				int[] colors = SDK.palletesRGB;
+				for(int w = 0; w < width; ++w, _idx += 3) {
+					int c = colors[pixels[p_index + w] & 0xff];
+					sRGB[_idx] = (byte) (c >> 16);
+					sRGB[_idx + 1] = (byte) (c >> 8);
+					sRGB[_idx + 2] = (byte) c;
+				}
+			} else {
+				int[] colors = SDK.rgb565RGB;
+				for(int w = 0, p = p_index; w < width; ++w, p += 2, _idx += 3) {
+					int c = colors[(pixels[p] & 0xff) | ((pixels[p + 1] & 0xff) << 8)];
+					sRGB[_idx] = (byte) (c >> 16);
+					sRGB[_idx + 1] = (byte) (c >> 8);
+					sRGB[_idx + 2] = (byte) c;
+				}
+			}
+		}
+	}
+
+	/**
+	 * 将BMP格式的8位像素数据转换为调色板图片<br>
+	 * BMP数据从下到上存放，每行开头有填充字节
+	 *
+	 * @param pixels
+	 * 		像素数据
+	 * @param off
+	 * 		像素数据在数组中的起始位置
+	 * @param width
+	 * 		图片宽度
+	 * @param height
+	 * 		图片高度
+	 * @return 调色板图片
+	 */
+	static IndexedTexture indexed8(byte[] pixels, int off, int width, int height) {
+		byte[] indices = new byte[width * height];
+		int stride = SDK.widthBytes(8 * width);
+		// 跳过填充字节
+		int p_index = off + SDK.skipBytes(8, width);
+		for(int h = height - 1; h >= 0; --h, p_index += stride)
+			System.arraycopy(pixels, p_index, indices, h * width, width);
+		return new IndexedTexture(indices, width, height, SDK.palletes);
+	}
+}
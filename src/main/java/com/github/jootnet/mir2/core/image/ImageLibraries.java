@@ -16,20 +16,32 @@
  */
 package com.github.jootnet.mir2.core.image;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.github.jootnet.mir2.core.SDK;
 
 /**
- * 图片库管理工具类
+ * 图片库管理工具类<br>
+ * 已缓存的图片库获取时不加锁；同一名称的图片库无论多少线程同时请求都只加载一次，加载不同图片库互不阻塞
  * 
  * @author 云中双月
  */
 public final class ImageLibraries {
 
-	private static Map<String, ImageLibrary> libraries = new HashMap<String, ImageLibrary>();
-	private static Object lib_locker = new Object();
+	private static ConcurrentMap<String, LoadTask> libraries = new ConcurrentHashMap<String, LoadTask>();
+	/* 异步加载线程池，首次异步加载时创建 */
+	private static volatile ExecutorService loader;
+	private static Object loader_locker = new Object();
 	
 	/**
 	 * 从指定路径中解析出一个图片库并存入内存缓存
@@ -43,71 +55,207 @@ public final class ImageLibraries {
 	 * @return 图片库对象
 	 */
 	public static final ImageLibrary get(String libName, String libPath) {
-		synchronized (lib_locker) {
-			if(libraries.containsKey(libName))
-				return libraries.get(libName);
-			try{
-				if(SDK.hasFileExtension(libPath)) {
-					String ext = SDK.getFileExtension(libPath);
-					if(ext.equals("WIL")) {
-						WIL wil = new WIL(libPath);
-						if(wil.isLoaded()) {
-							libraries.put(libName, wil);
-							return wil;
-						}
-					}
-					if(ext.equals("WIS")) {
-						WIS wis = new WIS(libPath);
-						if(wis.isLoaded()) {
-							libraries.put(libName, wis);
-							return wis;
-						}
-					}
-					if(ext.equals("WZL")) {
-						WZL wzl = new WZL(libPath);
-						if(wzl.isLoaded()) {
-							libraries.put(libName, wzl);
-							return wzl;
-						}
-					}
-				} else {
-					String wzlPath = SDK.changeFileExtension(libPath, "wzl");
-					WZL wzl = new WZL(wzlPath);
-					if(wzl.isLoaded()) {
-						libraries.put(libName, wzl);
-						return wzl;
-					}
-					String wisPath = SDK.changeFileExtension(libPath, "wis");
-					WIS wis = new WIS(wisPath);
-					if(wis.isLoaded()) {
-						libraries.put(libName, wis);
-						return wis;
-					}
-					String wilPath = SDK.changeFileExtension(libPath, "wil");
-					WIL wil = new WIL(wilPath);
-					if(wil.isLoaded()) {
-						libraries.put(libName, wil);
-						return wil;
-					}
-				}
-				return null;
-			}catch(RuntimeException ex) {
-				ex.printStackTrace();
-				return null;
+		return get(libName, libPath, false);
+	}
+	
+	/**
+	 * 从指定路径中解析出一个图片库并存入内存缓存<br>
+	 * 如果其他线程正在加载同一名称的图片库，则等待其加载完成
+	 * 
+	 * @param libName
+	 * 		图片库名称<br>
+	 * 		用于系统缓存的key
+	 * @param libPath
+	 * 		图片库全路径<br>
+	 * 		可以不带后缀，如果未给定后缀则会尝试多种可能
+	 * @param mapped
+	 * 		是否使用内存映射模式<br>
+	 * 		内存映射模式下库文件只映射一次，图片数据按位置直接读取，多线程读取同一个库时互不阻塞<br>
+	 * 		适用于多线程大量读取的场景，会占用与库文件大小相当的虚拟地址空间
+	 * @return 图片库对象，加载失败返回null
+	 */
+	public static final ImageLibrary get(String libName, String libPath, boolean mapped) {
+		LoadTask task = libraries.get(libName);
+		if(task == null) {
+			LoadTask newTask = new LoadTask(libName, libPath, mapped);
+			task = libraries.putIfAbsent(libName, newTask);
+			if(task == null) {
+				// 由当前线程加载
+				task = newTask;
+				task.run();
+			}
+		}
+		return await(task);
+	}
+	
+	/**
+	 * 在后台线程中解析一个图片库并存入内存缓存
+	 * 
+	 * @param libName
+	 * 		图片库名称<br>
+	 * 		用于系统缓存的key
+	 * @param libPath
+	 * 		图片库全路径<br>
+	 * 		可以不带后缀，如果未给定后缀则会尝试多种可能
+	 * @return 图片库加载结果，加载失败时结果为null
+	 * 
+	 * @see #get(String, String)
+	 */
+	public static final Future<ImageLibrary> getAsync(String libName, String libPath) {
+		return getAsync(libName, libPath, false);
+	}
+	
+	/**
+	 * 在后台线程中解析一个图片库并存入内存缓存<br>
+	 * 如果该图片库已缓存或正在加载，则直接返回已有的加载结果
+	 * 
+	 * @param libName
+	 * 		图片库名称<br>
+	 * 		用于系统缓存的key
+	 * @param libPath
+	 * 		图片库全路径<br>
+	 * 		可以不带后缀，如果未给定后缀则会尝试多种可能
+	 * @param mapped
+	 * 		是否使用内存映射模式
+	 * @return 图片库加载结果，加载失败时结果为null
+	 * 
+	 * @see #get(String, String, boolean)
+	 */
+	public static final Future<ImageLibrary> getAsync(String libName, String libPath, boolean mapped) {
+		LoadTask task = libraries.get(libName);
+		if(task == null) {
+			LoadTask newTask = new LoadTask(libName, libPath, mapped);
+			task = libraries.putIfAbsent(libName, newTask);
+			if(task == null) {
+				task = newTask;
+				loader().execute(task);
 			}
 		}
+		return task;
 	}
 	
 	/**
-	 * 从缓存在系统的图片库集合中移除特定编号的图片库
+	 * 从缓存在系统的图片库集合中移除特定编号的图片库<br>
+	 * 图片库随即关闭，正在进行的读取会在结束后再释放文件<br>
+	 * 如果图片库仍在加载，则加载完成后立即关闭
 	 * 
 	 * @param libName
 	 * 		图片库编号
 	 */
 	public static final void remove(String libName) {
-		synchronized (lib_locker) {
-			if(libraries.containsKey(libName))
-				libraries.remove(libName);
+		LoadTask task = libraries.remove(libName);
+		if(task != null && task.isDone())
+			close(await(task));
+	}
+	
+	private static ImageLibrary await(LoadTask task) {
+		try {
+			return task.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException ex) {
+			ex.printStackTrace();
+			return null;
+		}
+	}
+	
+	private static void close(ImageLibrary lib) {
+		if(lib == null) return;
+		try {
+			lib.close();
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+	
+	private static ExecutorService loader() {
+		ExecutorService es = loader;
+		if(es == null) {
+			synchronized (loader_locker) {
+				es = loader;
+				if(es == null) {
+					final AtomicInteger seq = new AtomicInteger();
+					es = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "mir2-lib-loader-" + seq.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+					loader = es;
+				}
+			}
+		}
+		return es;
+	}
+	
+	/**
+	 * 图片库加载任务<br>
+	 * 加载失败时从缓存中移除，以便之后重试；加载完成前已被移除则关闭加载出的图片库
+	 */
+	private static final class LoadTask extends FutureTask<ImageLibrary> {
+		
+		private final String libName;
+		
+		LoadTask(final String libName, final String libPath, final boolean mapped) {
+			super(new Callable<ImageLibrary>() {
+				@Override
+				public ImageLibrary call() {
+					return load(libPath, mapped);
+				}
+			});
+			this.libName = libName;
+		}
+		
+		@Override
+		protected void done() {
+			ImageLibrary lib = isCancelled() ? null : await(this);
+			if(lib == null)
+				libraries.remove(libName, this);
+			else if(libraries.get(libName) != this)
+				close(lib);
+		}
+	}
+	
+	private static ImageLibrary load(String libPath, boolean mapped) {
+		try{
+			if(SDK.hasFileExtension(libPath)) {
+				String ext = SDK.getFileExtension(libPath);
+				if(ext.equals("WIL")) {
+					WIL wil = new WIL(libPath, mapped);
+					if(wil.isLoaded())
+						return wil;
+				}
+				if(ext.equals("WIS")) {
+					WIS wis = new WIS(libPath, mapped);
+					if(wis.isLoaded())
+						return wis;
+				}
+				if(ext.equals("WZL")) {
+					WZL wzl = new WZL(libPath, mapped);
+					if(wzl.isLoaded())
+						return wzl;
+				}
+			} else {
+				String wzlPath = SDK.changeFileExtension(libPath, "wzl");
+				WZL wzl = new WZL(wzlPath, mapped);
+				if(wzl.isLoaded())
+					return wzl;
+				String wisPath = SDK.changeFileExtension(libPath, "wis");
+				WIS wis = new WIS(wisPath, mapped);
+				if(wis.isLoaded())
+					return wis;
+				String wilPath = SDK.changeFileExtension(libPath, "wil");
+				WIL wil = new WIL(wilPath, mapped);
+				if(wil.isLoaded())
+					return wil;
+			}
+			return null;
+		}catch(RuntimeException ex) {
+			ex.printStackTrace();
+			return null;
 		}
 	}
 }
@@ -17,7 +17,10 @@
 package com.github.jootnet.mir2.core.image;
 
 import java.io.Closeable;
+import java.nio.ByteBuffer;
 
+import com.github.jootnet.mir2.core.IndexedTexture;
+import com.github.jootnet.mir2.core.PixelFormat;
 import com.github.jootnet.mir2.core.Texture;
 
 /**
@@ -35,7 +38,9 @@ public interface ImageLibrary extends Closeable {
 	int count();
 	
 	/**
-	 * 获取图片库中指定索引的图片数据
+	 * 获取图片库中指定索引的图片数据<br>
+	 * 像素数组取自{@link com.github.jootnet.mir2.core.TexturePool}，图片用完后调用{@link Texture#release()}可以将数组放回缓冲池；
+	 * 不调用release时数组归调用方所有，不会被重用
 	 * 
 	 * @param index
 	 * 		图片索引
@@ -43,6 +48,100 @@ public interface ImageLibrary extends Closeable {
 	 */
 	Texture tex(int index);
 	
+	/**
+	 * 批量获取图片库中多个图片数据<br>
+	 * 按图片数据在文件中的位置排序，相邻的数据合并为一次读取，然后并行解码<br>
+	 * 加载动画等需要大量连续图片时比逐个调用{@link #tex(int)}快得多
+	 * 
+	 * @param indices
+	 * 		图片索引，可以无序或重复
+	 * @return 与索引一一对应的图片数据
+	 */
+	Texture[] tex(int[] indices);
+	
+	/**
+	 * 批量获取图片库中连续索引的图片数据
+	 * 
+	 * @param from
+	 * 		起始索引(包含)
+	 * @param to
+	 * 		结束索引(不包含)
+	 * @return 图片数据，第i个元素对应索引from + i，长度为to - from；图片库已关闭或图片不存在时对应元素为{@link Texture#EMPTY}
+	 * @throws IllegalArgumentException to小于from，图片库已关闭时同样抛出
+	 * 
+	 * @see #tex(int[])
+	 */
+	Texture[] texRange(int from, int to);
+	
+	/**
+	 * 获取图片库中指定索引的调色板图片数据<br>
+	 * 不展开为RGB数据，只占用{@link #tex(int)}三分之一的内存<br>
+	 * 只有8位图片有调色板，16位图片返回{@link IndexedTexture#EMPTY}，可以通过{@link #info(int)}中的色深度判断
+	 * 
+	 * @param index
+	 * 		图片索引
+	 * @return 对应调色板图片数据
+	 */
+	IndexedTexture texIndexed(int index);
+	
+	/**
+	 * 将图片库中指定索引的图片解码到调用方提供的字节数组<br>
+	 * 不创建{@link Texture}对象，图片宽高通过{@link #info(int)}获取<br>
+	 * 解码使用线程私有的临时数组，重复调用不产生新的对象
+	 * 
+	 * @param index
+	 * 		图片索引
+	 * @param dst
+	 * 		目标数组
+	 * @param offset
+	 * 		图片左上角像素在目标数组中的位置
+	 * @param stride
+	 * 		目标数组中相邻两行起始位置的字节差，不小于图片宽度*每像素字节数
+	 * @param format
+	 * 		像素格式
+	 * @return true表示解码成功 false表示图片为空或数据错误
+	 * @throws IllegalArgumentException 目标数组空间不足以存放整张图片
+	 */
+	boolean tex(int index, byte[] dst, int offset, int stride, PixelFormat format);
+	
+	/**
+	 * 将图片库中指定索引的图片解码到调用方提供的int数组<br>
+	 * 每个元素为一个ARGB像素，透明度规则见{@link PixelFormat}
+	 * 
+	 * @param index
+	 * 		图片索引
+	 * @param dst
+	 * 		目标数组
+	 * @param offset
+	 * 		图片左上角像素在目标数组中的位置
+	 * @param stride
+	 * 		目标数组中相邻两行起始位置的元素个数差，不小于图片宽度
+	 * @return true表示解码成功 false表示图片为空或数据错误
+	 * @throws IllegalArgumentException 目标数组空间不足以存放整张图片
+	 * 
+	 * @see #tex(int, byte[], int, int, PixelFormat)
+	 */
+	boolean tex(int index, int[] dst, int offset, int stride);
+	
+	/**
+	 * 将图片库中指定索引的图片解码到调用方提供的缓冲区<br>
+	 * 从缓冲区当前位置开始写入，不改变缓冲区的位置，可以直接用于上传显卡纹理
+	 * 
+	 * @param index
+	 * 		图片索引
+	 * @param dst
+	 * 		目标缓冲区，可以是直接缓冲区
+	 * @param stride
+	 * 		相邻两行起始位置的字节差，不小于图片宽度*每像素字节数
+	 * @param format
+	 * 		像素格式
+	 * @return true表示解码成功 false表示图片为空或数据错误
+	 * @throws IllegalArgumentException 缓冲区剩余空间不足以存放整张图片
+	 * 
+	 * @see #tex(int, byte[], int, int, PixelFormat)
+	 */
+	boolean tex(int index, ByteBuffer dst, int stride, PixelFormat format);
+	
 	/**
 	 * 获取图片库中指定索引的图片信息
 	 * 
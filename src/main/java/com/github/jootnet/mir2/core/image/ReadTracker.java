@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 JOOTNET Project
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Support: https://github.com/jootnet/mir2.core
+ */
+package com.github.jootnet.mir2.core.image;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 图片库读取计数<br>
+ * 记录正在进行的读取操作数量，关闭图片库时如果仍有读取在进行，则推迟到最后一个读取结束时再释放文件和内存<br>
+ * 关闭之后开始的读取直接失败
+ * <pre>
+ * if(!reads.enter()) return ...;
+ * try {
+ *     // 读取
+ * } finally {
+ *     if(reads.exit()) release();
+ * }
+ * </pre>
+ *
+ * @author 云中双月
+ */
+final class ReadTracker {
+
+	/* 最高位表示已关闭，其余位为正在进行的读取数量 */
+	private static final int CLOSED = 0x80000000;
+	private final AtomicInteger state = new AtomicInteger();
+
+	/**
+	 * 开始一次读取
+	 *
+	 * @return true表示可以读取 false表示库已关闭
+	 */
+	boolean enter() {
+		for(;;) {
+			int s = state.get();
+			if((s & CLOSED) != 0) return false;
+			if(state.compareAndSet(s, s + 1)) return true;
+		}
+	}
+
+	/**
+	 * 结束一次读取
+	 *
+	 * @return true表示库已关闭且当前是最后一个读取，调用方需要释放资源
+	 */
+	boolean exit() {
+		return state.decrementAndGet() == CLOSED;
+	}
+
+	/**
+	 * 标记库为关闭状态，多次调用只有第一次有效
+	 *
+	 * @return true表示当前没有读取在进行，调用方需要立即释放资源
+	 */
+	boolean close() {
+		for(;;) {
+			int s = state.get();
+			if((s & CLOSED) != 0) return false;
+			if(state.compareAndSet(s, s | CLOSED)) return s == 0;
+		}
+	}
+
+	/**
+	 * 获取当前是否没有读取在进行
+	 *
+	 * @return true表示库未关闭且没有正在进行的读取
+	 */
+	boolean isIdle() {
+		return state.get() == 0;
+	}
+
+	/**
+	 * 获取库是否已关闭
+	 *
+	 * @return true表示已调用过{@link #close()}
+	 */
+	boolean isClosed() {
+		return (state.get() & CLOSED) != 0;
+	}
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2017 JOOTNET Project
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Support: https://github.com/jootnet/mir2.core
+ */
+package com.github.jootnet.mir2.core.image;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.github.jootnet.mir2.core.Texture;
+
+/**
+ * 批量读取图片<br>
+ * 将请求按图片数据在文件中的位置排序，位置相邻(间隔不超过{@link #MERGE_GAP})的数据合并为一次读取，
+ * 全部读取完成后再并行解码<br>
+ * 动画帧在库文件中通常是连续存放的，一组帧只需要一次文件读取
+ *
+ * @author 云中双月
+ */
+final class TextureBatch {
+
+	/* 两段数据之间的间隔不超过此值时合并读取，间隔部分的数据读取后丢弃 */
+	private static final int MERGE_GAP = 8 * 1024;
+	/* 一次合并读取的最大字节数 */
+	private static final int MAX_CHUNK = 8 * 1024 * 1024;
+	/* 请求数量不少于此值时并行解码 */
+	private static final int PARALLEL_THRESHOLD = 4;
+
+	private TextureBatch() { }
+
+	/**
+	 * 图片库的批量读取接口
+	 */
+	interface Source {
+
+		/**
+		 * 获取图片数据在文件中的起始位置
+		 *
+		 * @param index
+		 * 		图片索引
+		 * @return 起始位置，负数表示此图片不从库文件读取，改用{@link #tex(int)}单独获取
+		 */
+		long position(int index);
+
+		/**
+		 * 获取图片数据字节数
+		 *
+		 * @param index
+		 * 		图片索引
+		 * @return 字节数
+		 */
+		int length(int index);
+
+		/**
+		 * 获取库文件字节数，超出文件末尾的图片改用{@link #tex(int)}单独获取
+		 *
+		 * @return 字节数
+		 * @throws IOException
+		 * 		读取失败
+		 */
+		long size() throws IOException;
+
+		/**
+		 * 从库文件读取一段数据
+		 *
+		 * @param position
+		 * 		文件中的位置
+		 * @param b
+		 * 		目标数组
+		 * @param off
+		 * 		目标数组起始位置
+		 * @param len
+		 * 		读取的字节数
+		 * @throws IOException
+		 * 		读取失败
+		 */
+		void read(long position, byte[] b, int off, int len) throws IOException;
+
+		/**
+		 * 从已读取的数据解码图片
+		 *
+		 * @param index
+		 * 		图片索引
+		 * @param data
+		 * 		数据
+		 * @param off
+		 * 		图片数据在数组中的起始位置
+		 * @param len
+		 * 		图片数据字节数
+		 * @return 图片数据
+		 * @throws Exception
+		 * 		数据错误
+		 */
+		Texture decode(int index, byte[] data, int off, int len) throws Exception;
+
+		/**
+		 * 单独获取一张图片
+		 *
+		 * @param index
+		 * 		图片索引
+		 * @return 图片数据
+		 */
+		Texture tex(int index);
+	}
+
+	/**
+	 * 批量读取图片
+	 *
+	 * @param src
+	 * 		图片库
+	 * @param indices
+	 * 		图片索引，可以重复、无序
+	 * @return 与索引一一对应的图片数据，读取失败的为{@link Texture#EMPTY}
+	 */
+	static Texture[] tex(Source src, int[] indices) {
+		long size;
+		try {
+			size = src.size();
+		} catch(IOException ex) {
+			size = Long.MAX_VALUE;
+		}
+		int n = indices.length;
+		Texture[] result = new Texture[n];
+		byte[][] datas = new byte[n][];
+		int[] dataOffsets = new int[n];
+		int[] lengths = new int[n];
+		// 高32位为数据位置，低32位为请求序号，排序后即为按位置排列的请求
+		long[] keys = new long[n];
+		int count = 0;
+		for(int i = 0; i < n; ++i) {
+			long position = src.position(indices[i]);
+			if(position < 0) {
+				result[i] = src.tex(indices[i]);
+				continue;
+			}
+			int length = src.length(indices[i]);
+			// 索引文件中的错误数据可能使长度为负或超出文件末尾，这些图片单独获取
+			if(length <= 0 || position + length > size) {
+				result[i] = src.tex(indices[i]);
+				continue;
+			}
+			lengths[i] = length;
+			keys[count++] = (position << 32) | i;
+		}
+		Arrays.sort(keys, 0, count);
+		int chunkFirst = 0;
+		while(chunkFirst < count) {
+			long chunkStart = keys[chunkFirst] >>> 32;
+			long chunkEnd = chunkStart + lengths[(int) keys[chunkFirst]];
+			int chunkLast = chunkFirst + 1;
+			for(; chunkLast < count; ++chunkLast) {
+				long position = keys[chunkLast] >>> 32;
+				long end = Math.max(chunkEnd, position + lengths[(int) keys[chunkLast]]);
+				if(position > chunkEnd + MERGE_GAP || end - chunkStart > MAX_CHUNK) break;
+				chunkEnd = end;
+			}
+			try {
+				byte[] chunk = new byte[(int) (chunkEnd - chunkStart)];
+				src.read(chunkStart, chunk, 0, chunk.length);
+				for(int k = chunkFirst; k < chunkLast; ++k) {
+					int i = (int) keys[k];
+					datas[i] = chunk;
+					dataOffsets[i] = (int) ((keys[k] >>> 32) - chunkStart);
+				}
+			} catch(Exception ex) {
+				// 读取失败时逐个读取以免影响其他图片
+				for(int k = chunkFirst; k < chunkLast; ++k) {
+					int i = (int) keys[k];
+					result[i] = src.tex(indices[i]);
+				}
+			}
+			chunkFirst = chunkLast;
+		}
+		DecodeTask task = new DecodeTask(src, indices, datas, dataOffsets, lengths, result, 0, n);
+		if(count >= PARALLEL_THRESHOLD)
+			ForkJoinPool.commonPool().invoke(task);
+		else
+			task.compute();
+		return result;
+	}
+
+	/**
+	 * 批量读取连续索引的图片
+	 *
+	 * @param src
+	 * 		图片库
+	 * @param from
+	 * 		起始索引(包含)
+	 * @param to
+	 * 		结束索引(不包含)
+	 * @return 图片数据，第i个元素对应索引from + i
+	 * @throws IllegalArgumentException to小于from
+	 */
+	static Texture[] texRange(Source src, int from, int to) {
+		checkRange(from, to);
+		int[] indices = new int[to - from];
+		for(int i = 0; i < indices.length; ++i)
+			indices[i] = from + i;
+		return tex(src, indices);
+	}
+
+	/* ImageLibrary#texRange的参数检查，图片库关闭时也需要检查 */
+	static void checkRange(int from, int to) {
+		if(to < from)
+			throw new IllegalArgumentException("to < from");
+	}
+
+	/** 解码任务，对半拆分后由线程池并行执行 */
+	private static final class DecodeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Source src;
+		private final int[] indices;
+		private final byte[][] datas;
+		private final int[] dataOffsets;
+		private final int[] lengths;
+		private final Texture[] result;
+		private final int from;
+		private final int to;
+
+		DecodeTask(Source src, int[] indices, byte[][] datas, int[] dataOffsets, int[] lengths, Texture[] result, int from, int to) {
+			this.src = src;
+			this.indices = indices;
+			this.datas = datas;
+			this.dataOffsets = dataOffsets;
+			this.lengths = lengths;
+			this.result = result;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from > 1 && getPool() != null) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new DecodeTask(src, indices, datas, dataOffsets, lengths, result, from, mid),
+						new DecodeTask(src, indices, datas, dataOffsets, lengths, result, mid, to));
+				return;
+			}
+			for(int i = from; i < to; ++i) {
+				if(datas[i] == null) continue;
+				try {
+					result[i] = src.decode(indices[i], datas[i], dataOffsets[i], lengths[i]);
+				} catch(Exception ex) {
+					ex.printStackTrace();
+					result[i] = Texture.EMPTY;
+				}
+			}
+		}
+	}
+}
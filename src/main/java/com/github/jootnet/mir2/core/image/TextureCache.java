@@ -0,0 +1,598 @@
+/*
+ * Copyright 2017 JOOTNET Project
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Support: https://github.com/jootnet/mir2.core
+ */
+package com.github.jootnet.mir2.core.image;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.jootnet.mir2.core.IndexedTexture;
+import com.github.jootnet.mir2.core.Texture;
+
+/**
+ * 已解码图片缓存<br>
+ * 以图片像素字节数计算占用，总占用不超过设定的内存预算，调色板图片({@link IndexedTexture})只占RGB图片的三分之一<br>
+ * 各分段共用同一个预算，占用不超过总预算的图片都可以放入缓存；超出预算时轮流淘汰各分段中最久未使用的图片<br>
+ * 超出预算时淘汰最久未使用的图片，但新图片的近期访问频率不高于被淘汰图片时不会进入缓存，避免偶尔访问一次的图片冲掉常用图片<br>
+ * 被固定({@link #pin(ImageLibrary, int)})的图片不会被淘汰，适用于界面元素等常驻图片<br>
+ * 缓存按键分段加锁，不同分段的访问互不阻塞
+ * <br>
+ * 缓存返回的图片对象是共享的，调用方不能修改其像素数据，需要修改时请先调用{@link Texture#copy()}创建独立的图片对象；
+ * 只读取部分区域时可以使用{@link Texture#view(int, int, int, int)}，视图持有图片的一个引用计数，图片被淘汰后视图仍然可用<br>
+ * 缓存持有图片的一个引用计数，返回图片前为调用方增加一个计数，调用方可以在用完后调用{@link Texture#release()}；
+ * 图片被淘汰或移除时缓存释放自己的计数，所有计数都释放后像素数组放回{@link com.github.jootnet.mir2.core.TexturePool}
+ *
+ * @author 云中双月
+ *
+ * @see CachedImageLibrary
+ */
+public final class TextureCache {
+
+	/** 默认缓存的内存预算(字节) */
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	private static final TextureCache DEFAULT = new TextureCache(DEFAULT_MAX_BYTES);
+
+	/* 分段数量，必须为2的幂 */
+	private static final int SEGMENT_COUNT = 16;
+
+	private final Segment[] segments;
+	/* 所有分段的总占用，在各分段的锁内修改 */
+	private final AtomicLong weight = new AtomicLong();
+	private volatile long maxBytes;
+	/* 下一次淘汰开始的分段 */
+	private int evictCursor;
+
+	/**
+	 * 获取全局共享的图片缓存<br>
+	 * 未指定缓存的{@link CachedImageLibrary}都使用此缓存，所有图片库共用同一个内存预算
+	 *
+	 * @return 全局图片缓存
+	 */
+	public static TextureCache getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * 创建一个图片缓存
+	 *
+	 * @param maxBytes
+	 * 		内存预算(字节)
+	 */
+	public TextureCache(long maxBytes) {
+		segments = new Segment[SEGMENT_COUNT];
+		for(int i = 0; i < SEGMENT_COUNT; ++i)
+			segments[i] = new Segment();
+		setMaxBytes(maxBytes);
+	}
+
+	/**
+	 * 设置内存预算<br>
+	 * 预算变小时立即淘汰超出的图片；单张图片的占用不超过预算即可放入缓存
+	 *
+	 * @param maxBytes
+	 * 		内存预算(字节)
+	 */
+	public void setMaxBytes(long maxBytes) {
+		if(maxBytes < 0)
+			throw new IllegalArgumentException("maxBytes must not be negative");
+		this.maxBytes = maxBytes;
+		trim(null);
+	}
+
+	/**
+	 * 获取内存预算
+	 *
+	 * @return 内存预算(字节)
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * 从缓存获取图片，缓存中没有时从图片库解码并尝试放入缓存
+	 *
+	 * @param lib
+	 * 		图片库
+	 * @param index
+	 * 		图片索引
+	 * @return 图片数据，调用方不能修改
+	 */
+	public Texture get(ImageLibrary lib, int index) {
+		Key key = new Key(lib, index, false);
+		Segment seg = segmentFor(key);
+		Texture tex = (Texture) seg.get(key);
+		if(tex != null) return tex;
+		// 解码不持有锁，同一张图片被并发请求时可能重复解码，结果以先放入的为准
+		tex = lib.tex(index);
+		if(tex == null || tex == Texture.EMPTY || tex.empty()) return tex;
+		tex = (Texture) seg.put(key, tex);
+		trim(key);
+		return tex;
+	}
+
+	/**
+	 * 从缓存获取调色板图片，缓存中没有时从图片库读取并尝试放入缓存<br>
+	 * 与{@link #get(ImageLibrary, int)}分别缓存，同一张图片两种形式都请求时各占一份内存
+	 *
+	 * @param lib
+	 * 		图片库
+	 * @param index
+	 * 		图片索引
+	 * @return 调色板图片数据
+	 */
+	public IndexedTexture getIndexed(ImageLibrary lib, int index) {
+		Key key = new Key(lib, index, true);
+		Segment seg = segmentFor(key);
+		IndexedTexture tex = (IndexedTexture) seg.get(key);
+		if(tex != null) return tex;
+		tex = lib.texIndexed(index);
+		if(tex == null || tex.empty()) return tex;
+		tex = (IndexedTexture) seg.put(key, tex);
+		trim(key);
+		return tex;
+	}
+
+	/**
+	 * 批量从缓存获取图片，缓存中没有的图片通过{@link ImageLibrary#tex(int[])}一次解码后尝试放入缓存
+	 *
+	 * @param lib
+	 * 		图片库
+	 * @param indices
+	 * 		图片索引
+	 * @return 与索引一一对应的图片数据，调用方不能修改
+	 */
+	public Texture[] get(ImageLibrary lib, int[] indices) {
+		Texture[] result = new Texture[indices.length];
+		int[] missIndices = new int[indices.length];
+		int[] missPositions = new int[indices.length];
+		int missCount = 0;
+		for(int i = 0; i < indices.length; ++i) {
+			Key key = new Key(lib, indices[i], false);
+			result[i] = (Texture) segmentFor(key).get(key);
+			if(result[i] == null) {
+				missIndices[missCount] = indices[i];
+				missPositions[missCount++] = i;
+			}
+		}
+		if(missCount == 0) return result;
+		Texture[] texs = lib.tex(Arrays.copyOf(missIndices, missCount));
+		for(int i = 0; i < missCount; ++i) {
+			Texture tex = texs[i];
+			if(tex != null && tex != Texture.EMPTY && !tex.empty()) {
+				Key key = new Key(lib, missIndices[i], false);
+				tex = (Texture) segmentFor(key).put(key, tex);
+				trim(key);
+			}
+			result[missPositions[i]] = tex;
+		}
+		return result;
+	}
+
+	/**
+	 * 固定图片，固定的图片不会被淘汰<br>
+	 * 可以在图片放入缓存之前调用，多次固定需要相同次数的{@link #unpin(ImageLibrary, int)}
+	 *
+	 * @param lib
+	 * 		图片库
+	 * @param index
+	 * 		图片索引
+	 */
+	public void pin(ImageLibrary lib, int index) {
+		Key key = new Key(lib, index, false);
+		segmentFor(key).pin(key);
+		key = new Key(lib, index, true);
+		segmentFor(key).pin(key);
+	}
+
+	/**
+	 * 取消固定图片<br>
+	 * 固定计数归零后图片重新参与淘汰
+	 *
+	 * @param lib
+	 * 		图片库
+	 * @param index
+	 * 		图片索引
+	 */
+	public void unpin(ImageLibrary lib, int index) {
+		Key key = new Key(lib, index, false);
+		segmentFor(key).unpin(key);
+		key = new Key(lib, index, true);
+		segmentFor(key).unpin(key);
+		trim(null);
+	}
+
+	/**
+	 * 从缓存中移除特定图片<br>
+	 * 图片库中的图片被修改后需要调用此函数
+	 *
+	 * @param lib
+	 * 		图片库
+	 * @param index
+	 * 		图片索引
+	 */
+	public void invalidate(ImageLibrary lib, int index) {
+		Key key = new Key(lib, index, false);
+		segmentFor(key).remove(key);
+		key = new Key(lib, index, true);
+		segmentFor(key).remove(key);
+	}
+
+	/**
+	 * 从缓存中移除图片库的所有图片，包括固定的图片
+	 *
+	 * @param lib
+	 * 		图片库
+	 */
+	public void invalidateAll(ImageLibrary lib) {
+		for(Segment seg : segments)
+			seg.removeAll(lib);
+	}
+
+	/**
+	 * 清空缓存，包括固定的图片和访问统计
+	 */
+	public void clear() {
+		for(Segment seg : segments)
+			seg.clear();
+	}
+
+	/**
+	 * 获取缓存命中次数
+	 *
+	 * @return 命中次数
+	 */
+	public long hitCount() {
+		long sum = 0;
+		for(Segment seg : segments)
+			synchronized (seg) {
+				sum += seg.hits;
+			}
+		return sum;
+	}
+
+	/**
+	 * 获取缓存未命中次数
+	 *
+	 * @return 未命中次数
+	 */
+	public long missCount() {
+		long sum = 0;
+		for(Segment seg : segments)
+			synchronized (seg) {
+				sum += seg.misses;
+			}
+		return sum;
+	}
+
+	/**
+	 * 获取因超出内存预算而被淘汰的图片数量
+	 *
+	 * @return 淘汰次数
+	 */
+	public long evictionCount() {
+		long sum = 0;
+		for(Segment seg : segments)
+			synchronized (seg) {
+				sum += seg.evictions;
+			}
+		return sum;
+	}
+
+	/**
+	 * 获取缓存中的图片数量
+	 *
+	 * @return 图片数量
+	 */
+	public int size() {
+		int sum = 0;
+		for(Segment seg : segments)
+			synchronized (seg) {
+				sum += seg.lru.size() + seg.pinned.size();
+			}
+		return sum;
+	}
+
+	/**
+	 * 获取缓存中图片占用的字节数
+	 *
+	 * @return 占用字节数
+	 */
+	public long weightedSize() {
+		return weight.get();
+	}
+
+	private Segment segmentFor(Key key) {
+		return segments[(key.hash ^ (key.hash >>> 16)) & (SEGMENT_COUNT - 1)];
+	}
+
+	/*
+	 * 总占用超出预算时轮流淘汰各分段最久未使用的图片，直到总占用不超过预算
+	 * 在不持有任何分段锁时调用，每次只锁一个分段；keep为刚放入的图片，其他图片都淘汰后才淘汰它
+	 */
+	private void trim(Key keep) {
+		int start = evictCursor;
+		while(weight.get() > maxBytes) {
+			boolean evicted = false;
+			for(int i = 0; i < SEGMENT_COUNT && weight.get() > maxBytes; ++i) {
+				int s = (start + i) & (SEGMENT_COUNT - 1);
+				if(segments[s].evictEldest(keep)) {
+					evicted = true;
+					evictCursor = s + 1;
+				}
+			}
+			if(evicted) continue;
+			// 剩余的只有固定的图片和keep
+			if(keep == null) return;
+			keep = null;
+		}
+	}
+
+	/* 图片占用字节数 */
+	private static long weigh(Object tex) {
+		if(tex instanceof IndexedTexture) {
+			IndexedTexture itex = (IndexedTexture) tex;
+			return (long) itex.getWidth() * itex.getHeight();
+		}
+		Texture rtex = (Texture) tex;
+		return (long) rtex.getWidth() * rtex.getHeight() * 3;
+	}
+
+	/* 增加引用计数，调色板图片不计数 */
+	private static Object retain(Object tex) {
+		if(tex instanceof Texture)
+			((Texture) tex).retain();
+		return tex;
+	}
+
+	private static void release(Object tex) {
+		if(tex instanceof Texture)
+			((Texture) tex).release();
+	}
+
+	/** 缓存键，图片库按对象本身区分 */
+	private static final class Key {
+		private final ImageLibrary lib;
+		private final int index;
+		/* 是否为调色板图片 */
+		private final boolean indexed;
+		private final int hash;
+
+		Key(ImageLibrary lib, int index, boolean indexed) {
+			this.lib = lib;
+			this.index = index;
+			this.indexed = indexed;
+			int h = System.identityHashCode(lib) * 0x9E3779B9 + (index << 1 | (indexed ? 1 : 0));
+			this.hash = h ^ (h >>> 15);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(this == obj) return true;
+			if(!(obj instanceof Key)) return false;
+			Key other = (Key) obj;
+			return lib == other.lib && index == other.index && indexed == other.indexed;
+		}
+	}
+
+	/** 缓存分段，所有操作在分段对象上同步 */
+	private final class Segment {
+		/* 参与淘汰的图片，按访问顺序排列，最久未使用的在前 */
+		private final LinkedHashMap<Key, Object> lru = new LinkedHashMap<Key, Object>(64, 0.75f, true);
+		/* 已固定的图片 */
+		private final Map<Key, Object> pinned = new HashMap<Key, Object>();
+		/* 固定计数，图片不在缓存中时也会记录 */
+		private final Map<Key, Integer> pins = new HashMap<Key, Integer>();
+		private final FrequencySketch sketch = new FrequencySketch();
+		private long weight;
+		private long hits;
+		private long misses;
+		private long evictions;
+
+		/* 命中时为调用方增加引用计数 */
+		synchronized Object get(Key key) {
+			sketch.increment(key.hash);
+			Object tex = lru.get(key);
+			if(tex == null)
+				tex = pinned.get(key);
+			if(tex == null) {
+				++misses;
+				return null;
+			}
+			++hits;
+			return retain(tex);
+		}
+
+		/* 放入缓存后缓存持有传入的计数，再为调用方增加一个计数；未放入时传入的计数仍属于调用方 */
+		synchronized Object put(Key key, Object tex) {
+			Object exist = lru.get(key);
+			if(exist == null) exist = pinned.get(key);
+			if(exist != null) {
+				release(tex);
+				return retain(exist);
+			}
+			if(pins.containsKey(key)) {
+				pinned.put(key, tex);
+				add(weigh(tex));
+				return retain(tex);
+			}
+			long w = weigh(tex);
+			if(w > maxBytes) return tex;
+			if(TextureCache.this.weight.get() + w > maxBytes) {
+				// 与最久未使用的图片比较访问频率，不高于它则不放入缓存
+				Iterator<Key> it = lru.keySet().iterator();
+				if(it.hasNext() && sketch.frequency(key.hash) <= sketch.frequency(it.next().hash))
+					return tex;
+			}
+			lru.put(key, retain(tex));
+			add(w);
+			return tex;
+		}
+
+		/* 分段与缓存的占用一起修改 */
+		private void add(long w) {
+			weight += w;
+			TextureCache.this.weight.addAndGet(w);
+		}
+
+		/* 淘汰本分段最久未使用的图片，最久未使用的是keep时不淘汰；返回是否淘汰了图片 */
+		synchronized boolean evictEldest(Key keep) {
+			Iterator<Map.Entry<Key, Object>> it = lru.entrySet().iterator();
+			if(!it.hasNext()) return false;
+			Map.Entry<Key, Object> e = it.next();
+			if(e.getKey().equals(keep)) return false;
+			Object tex = e.getValue();
+			add(-weigh(tex));
+			it.remove();
+			release(tex);
+			++evictions;
+			return true;
+		}
+
+		synchronized void pin(Key key) {
+			Integer count = pins.get(key);
+			pins.put(key, count == null ? 1 : count + 1);
+			Object tex = lru.remove(key);
+			if(tex != null)
+				pinned.put(key, tex);
+		}
+
+		synchronized void unpin(Key key) {
+			Integer count = pins.get(key);
+			if(count == null) return;
+			if(count > 1) {
+				pins.put(key, count - 1);
+				return;
+			}
+			pins.remove(key);
+			Object tex = pinned.remove(key);
+			if(tex != null)
+				lru.put(key, tex);
+		}
+
+		synchronized void remove(Key key) {
+			Object tex = lru.remove(key);
+			if(tex == null)
+				tex = pinned.remove(key);
+			if(tex != null) {
+				add(-weigh(tex));
+				release(tex);
+			}
+		}
+
+		synchronized void removeAll(ImageLibrary lib) {
+			removeAll(lru, lib);
+			removeAll(pinned, lib);
+			Iterator<Key> it = pins.keySet().iterator();
+			while(it.hasNext())
+				if(it.next().lib == lib)
+					it.remove();
+		}
+
+		private void removeAll(Map<Key, Object> map, ImageLibrary lib) {
+			Iterator<Map.Entry<Key, Object>> it = map.entrySet().iterator();
+			while(it.hasNext()) {
+				Map.Entry<Key, Object> e = it.next();
+				if(e.getKey().lib == lib) {
+					add(-weigh(e.getValue()));
+					it.remove();
+					release(e.getValue());
+				}
+			}
+		}
+
+		synchronized void clear() {
+			for(Object tex : lru.values())
+				release(tex);
+			for(Object tex : pinned.values())
+				release(tex);
+			lru.clear();
+			pinned.clear();
+			pins.clear();
+			sketch.clear();
+			add(-weight);
+			hits = 0;
+			misses = 0;
+			evictions = 0;
+		}
+	}
+
+	/**
+	 * 访问频率估计<br>
+	 * 4行4位计数器的Count-Min Sketch，计数总量达到上限后所有计数减半，使频率反映近期的访问情况
+	 */
+	private static final class FrequencySketch {
+		/* 每个long包含16个4位计数器 */
+		private static final int TABLE_SIZE = 1024;
+		private static final int SAMPLE_SIZE = TABLE_SIZE * 16;
+		private static final int[] SEEDS = { 0x97cb3127, 0x8a3b2f51, 0xc2b2ae35, 0x27d4eb2f };
+		private final long[] table = new long[TABLE_SIZE];
+		private int additions;
+
+		private static int indexOf(int hash, int row) {
+			int h = (hash ^ SEEDS[row]) * 0x85ebca6b;
+			h ^= h >>> 13;
+			return h;
+		}
+
+		int frequency(int hash) {
+			int min = 15;
+			for(int row = 0; row < 4; ++row) {
+				int h = indexOf(hash, row);
+				int shift = (h >>> 28) << 2;
+				int count = (int) ((table[h & (TABLE_SIZE - 1)] >>> shift) & 0xf);
+				if(count < min) min = count;
+			}
+			return min;
+		}
+
+		void increment(int hash) {
+			boolean added = false;
+			for(int row = 0; row < 4; ++row) {
+				int h = indexOf(hash, row);
+				int i = h & (TABLE_SIZE - 1);
+				int shift = (h >>> 28) << 2;
+				if(((table[i] >>> shift) & 0xf) < 15) {
+					table[i] += 1L << shift;
+					added = true;
+				}
+			}
+			if(added && ++additions >= SAMPLE_SIZE)
+				reset();
+		}
+
+		/* 所有计数减半 */
+		private void reset() {
+			for(int i = 0; i < TABLE_SIZE; ++i)
+				table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+			additions >>>= 1;
+		}
+
+		void clear() {
+			Arrays.fill(table, 0);
+			additions = 0;
+		}
+	}
+}
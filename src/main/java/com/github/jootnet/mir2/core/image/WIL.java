@@ -21,13 +21,21 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.github.jootnet.mir2.core.BinaryReader;
-import com.github.jootnet.mir2.core.BinaryWriter;
+import com.github.jootnet.mir2.core.BufferedBinaryReader;
+import com.github.jootnet.mir2.core.BufferedBinaryWriter;
+import com.github.jootnet.mir2.core.IndexedTexture;
+import com.github.jootnet.mir2.core.MappedFile;
+import com.github.jootnet.mir2.core.PixelFormat;
 import com.github.jootnet.mir2.core.SDK;
 import com.github.jootnet.mir2.core.Texture;
+import com.github.jootnet.mir2.core.TexturePool;
 
 /**
  * 热血传奇2WIL图片库
@@ -186,7 +194,7 @@ public final class WIL implements WriteableImageLibrary {
 	// 图片库名称
 	private String libName;
 	// 色深度
-	private int bitCount;
+	private volatile int bitCount;
 	// 当前图片库使用的调色板
 	private byte[] currentUsePallete = globalPallete;
 
@@ -195,7 +203,14 @@ public final class WIL implements WriteableImageLibrary {
 	 */
 	public volatile static boolean GLOBAL_ONLYWIL_MODE = true;
 
-	private int imageCount;
+	/**
+	 * 只用WIL解析图片时，是否使用索引缓存文件<br>
+	 * 开启时首次加载会在WIL同目录下生成.wilidx文件，之后加载直接读取该文件而不再逐个解析图片信息<br>
+	 * WIL文件大小或修改时间变化后缓存自动重建
+	 */
+	public volatile static boolean GLOBAL_INDEX_CACHE_MODE = true;
+
+	private volatile int imageCount;
 
 	/**
 	 * 获取库中图片数量
@@ -210,8 +225,9 @@ public final class WIL implements WriteableImageLibrary {
 	 * 版本标识 private int verFlag;
 	 */
 	/* 图片数据起始位置 */
-	private int[] offsetList;
-	private ImageInfo[] imageInfos;
+	private volatile int[] offsetList;
+	/* 图片信息，修改时整体替换为新数组(写时复制)，读取时无需加锁 */
+	private volatile ImageInfo[] imageInfos;
 
 	/**
 	 * 获取库中图片信息数组
@@ -224,8 +240,16 @@ public final class WIL implements WriteableImageLibrary {
 
 	/* WIL文件随机读取对象 */
 	private BinaryReader br_wil;
+	/* WIL文件内存映射对象，内存映射模式下使用 */
+	private volatile MappedFile mf_wil;
 	/* 临时文件夹 */
-	private File tmp_wil_dir;
+	private volatile File tmp_wil_dir;
+	/* 被替换的图片，图片信息和像素数据文件一起发布，读取时不会看到不匹配的两者 */
+	private final ConcurrentHashMap<Integer, Edit> edits = new ConcurrentHashMap<Integer, Edit>();
+	/* 像素数据文件版本号，每次替换图片都写入新文件，正在读取旧文件的线程不受影响 */
+	private int editVersion;
+	/* 被替换的像素数据文件，可能仍有读取在使用，没有读取在进行时删除，由write_locker保护 */
+	private final List<File> staleFiles = new ArrayList<File>();
 	private volatile boolean loaded;
 
 	/**
@@ -237,10 +261,29 @@ public final class WIL implements WriteableImageLibrary {
 		return loaded;
 	}
 
+	/* 正在进行的读取，用于关闭时等待读取结束 */
+	private final ReadTracker reads = new ReadTracker();
 	/* 文件指针读取锁 */
 	private Object wil_locker = new Object();
+	/* 修改锁，添加/替换/删除图片以及保存操作依次进行，不影响读取 */
+	private Object write_locker = new Object();
+	/* 加载时读取图片信息使用的缓冲区大小 */
+	private static final int HEADER_BUFFER_SIZE = 8 * 1024;
 
 	WIL(String wilPath) {
+		this(wilPath, false);
+	}
+
+	/**
+	 * 打开WIL图片库
+	 * 
+	 * @param wilPath
+	 *            WIL文件路径
+	 * @param mapped
+	 *            是否使用内存映射模式<br>
+	 *            内存映射模式下图片数据按位置直接从映射内存中读取，多线程读取时无需加锁
+	 */
+	WIL(String wilPath, boolean mapped) {
 		File f_wil = new File(wilPath);
 		if (!f_wil.exists())
 			return;
@@ -260,75 +303,85 @@ public final class WIL implements WriteableImageLibrary {
 			if (!wilOnlyMode && !f_wix.canRead())
 				return;
 			br_wil = new BinaryReader(f_wil, "r");
-			br_wil.skipBytes(44); // 跳过标题
-			imageCount = br_wil.readIntLE(); // 图片数量
+			if (mapped)
+				mf_wil = new MappedFile(f_wil);
+			// 图片信息分散在文件各处，使用较小的缓冲区
+			BufferedBinaryReader br_header = new BufferedBinaryReader(f_wil, HEADER_BUFFER_SIZE);
+			long wilLength = br_header.length();
+			br_header.skipBytes(44); // 跳过标题
+			imageCount = br_header.readIntLE(); // 图片数量
 			offsetList = new int[imageCount + 1];
-			offsetList[imageCount] = (int) br_wil.length();
-			bitCount = SDK.colorCountToBitCount(br_wil.readIntLE()); // 色深度
+			offsetList[imageCount] = (int) wilLength;
+			bitCount = SDK.colorCountToBitCount(br_header.readIntLE()); // 色深度
 			if (bitCount == 8) {
 				// 8位灰度图可能版本标识不为0，此时操作不一样
-				br_wil.skipBytes(4); // 忽略调色板
+				br_header.skipBytes(4); // 忽略调色板
 				// verFlag = br_wil.readIntLE();
 			}
 			if (!wilOnlyMode) {
-				BinaryReader br_wix = new BinaryReader(f_wix, "r");
+				// WIX文件很小，一次性读入缓冲区
+				BufferedBinaryReader br_wix = new BufferedBinaryReader(f_wix,
+						(int) Math.min(f_wix.length(), BufferedBinaryReader.DEFAULT_BUFFER_SIZE * 16));
 				br_wix.skipBytes(44); // 跳过标题
 				int indexCount = br_wix.readIntLE(); // 索引数量(也是图片数量)
 				// if(verFlag != 0)
 				// br_wix.skipBytes(4); // 版本标识不为0需要跳过4字节
-				for (int i = 0; i < indexCount; ++i) {
-					// 读取数据偏移量
-					offsetList[i] = br_wix.readIntLE();
-				}
+				// 读取数据偏移量
+				br_wix.readIntsLE(offsetList, 0, indexCount);
 				br_wix.close();
 			} else {
 				imageInfos = new ImageInfo[imageCount];
-				int lastOffset = 1024 + 4 + 4 + 4 + 44;
-				for (int i = 0; i < imageCount; ++i) {
-					offsetList[i] = lastOffset;
-					if (bitCount == 8) {
-						if (lastOffset + 9 > br_wil.length()) {
-							// 数据出错，直接赋值为空图片
-							imageInfos[i] = ImageInfo.EMPTY;
-							continue;
+				if (!GLOBAL_INDEX_CACHE_MODE || !WILIndex.read(f_wil, bitCount, offsetList, imageInfos)) {
+					int lastOffset = 1024 + 4 + 4 + 4 + 44;
+					for (int i = 0; i < imageCount; ++i) {
+						offsetList[i] = lastOffset;
+						if (bitCount == 8) {
+							if (lastOffset + 9 > wilLength) {
+								// 数据出错，直接赋值为空图片
+								imageInfos[i] = ImageInfo.EMPTY;
+								continue;
+							}
+						} else {
+							if (lastOffset + 12 > wilLength) {
+								// 数据出错，直接赋值为空图片
+								imageInfos[i] = ImageInfo.EMPTY;
+								continue;
+							}
 						}
-					} else {
-						if (lastOffset + 12 > br_wil.length()) {
-							// 数据出错，直接赋值为空图片
+						br_header.seek(lastOffset);
+						short w = (short) br_header.readUnsignedShortLE();
+						short h = (short) br_header.readUnsignedShortLE();
+						lastOffset += 8;
+						if (w == 1 && h == 1) {
+							// WIL可能有空图片，此时图片大小为1x1
+							if (bitCount == 8) {
+								lastOffset += 1;
+							} else {
+								lastOffset += 4;
+							}
 							imageInfos[i] = ImageInfo.EMPTY;
 							continue;
 						}
+						ImageInfo ii = new ImageInfo();
+						ii.setColorBit((byte) bitCount);
+						ii.setWidth(w);
+						ii.setHeight(h);
+						ii.setOffsetX(br_header.readShortLE());
+						ii.setOffsetY(br_header.readShortLE());
+						imageInfos[i] = ii;
+						lastOffset += SDK.widthBytes(bitCount * w) * h;
 					}
-					br_wil.seek(lastOffset);
-					short w = (short) br_wil.readUnsignedShortLE();
-					short h = (short) br_wil.readUnsignedShortLE();
-					lastOffset += 8;
-					if (w == 1 && h == 1) {
-						// WIL可能有空图片，此时图片大小为1x1
-						if (bitCount == 8) {
-							lastOffset += 1;
-						} else {
-							lastOffset += 4;
-						}
-						imageInfos[i] = ImageInfo.EMPTY;
-						continue;
-					}
-					ImageInfo ii = new ImageInfo();
-					ii.setColorBit((byte) bitCount);
-					ii.setWidth(w);
-					ii.setHeight(h);
-					ii.setOffsetX(br_wil.readShortLE());
-					ii.setOffsetY(br_wil.readShortLE());
-					imageInfos[i] = ii;
-					lastOffset += SDK.widthBytes(bitCount * w) * h;
+					if (GLOBAL_INDEX_CACHE_MODE)
+						WILIndex.write(f_wil, bitCount, offsetList, imageInfos);
 				}
+				br_header.close();
 				loaded = true;
 				return;
 			}
 			imageInfos = new ImageInfo[imageCount];
 			for (int i = 0; i < imageCount; ++i) {
 				int offset = offsetList[i];
-				if (offset + 9 > br_wil.length()) {
+				if (offset + 9 > wilLength) {
 					// 数据出错，直接赋值为空图片
 					imageInfos[i] = ImageInfo.EMPTY;
 					continue;
@@ -342,13 +395,14 @@ public final class WIL implements WriteableImageLibrary {
 				// 读取图片信息
 				ImageInfo ii = new ImageInfo();
 				ii.setColorBit((byte) bitCount);
-				br_wil.seek(offset);
-				ii.setWidth((short) br_wil.readUnsignedShortLE());
-				ii.setHeight((short) br_wil.readUnsignedShortLE());
-				ii.setOffsetX(br_wil.readShortLE());
-				ii.setOffsetY(br_wil.readShortLE());
+				br_header.seek(offset);
+				ii.setWidth((short) br_header.readUnsignedShortLE());
+				ii.setHeight((short) br_header.readUnsignedShortLE());
+				ii.setOffsetX(br_header.readShortLE());
+				ii.setOffsetY(br_header.readShortLE());
 				imageInfos[i] = ii;
 			}
+			br_header.close();
 			loaded = true;
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -360,113 +414,364 @@ public final class WIL implements WriteableImageLibrary {
 	}
 
 	/**
-	 * 关闭WIL对象，释放其引用的文件流以及内存占用
+	 * 关闭WIL对象，释放其引用的文件流以及内存占用<br>
+	 * 如果仍有读取在进行，则在最后一个读取结束时才真正释放
 	 */
-	public synchronized final void close() throws IOException {
+	public final void close() throws IOException {
+		if (reads.close())
+			release();
+	}
+
+	/* 释放文件流以及内存占用 */
+	private void release() {
 		offsetList = null;
 		imageInfos = null;
 		loaded = false;
 		synchronized (wil_locker) {
 			if (br_wil != null) {
-				br_wil.close();
+				try {
+					br_wil.close();
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
+			}
+			if (mf_wil != null) {
+				mf_wil.close();
+				mf_wil = null;
+			}
+			File dir = tmp_wil_dir;
+			if (dir != null) {
+				File[] files = dir.listFiles();
+				if (files != null)
+					for (File f : files)
+						f.delete();
+				dir.delete();
 			}
-			if (tmp_wil_dir != null)
-				tmp_wil_dir.delete();
+			edits.clear();
 		}
 	}
 
-	public synchronized final Texture tex(int index) {
-		if (!loaded)
-			return Texture.EMPTY;
-		if (index < 0)
-			return Texture.EMPTY;
-		if (index >= imageCount)
-			return Texture.EMPTY;
-		if (imageInfos[index] == ImageInfo.EMPTY)
+	/** 被替换的图片信息及其像素数据文件 */
+	private static final class Edit {
+		private final ImageInfo info;
+		private final File pixels;
+
+		Edit(ImageInfo info, File pixels) {
+			this.info = info;
+			this.pixels = pixels;
+		}
+	}
+
+	public final Texture tex(int index) {
+		if (!reads.enter())
 			return Texture.EMPTY;
 		try {
+			if (!loaded)
+				return Texture.EMPTY;
+			if (index < 0)
+				return Texture.EMPTY;
+			if (index >= imageCount)
+				return Texture.EMPTY;
+			// 图片信息和数据位置只读取一次快照，解码过程不持有任何锁
 			ImageInfo ii = imageInfos[index];
-			byte[] pixels = null;
-			if (tmp_wil_dir != null) {
-				File ftmpimg = new File(tmp_wil_dir.getAbsolutePath() + File.separator + index);
-				if (ftmpimg.exists()) {
-					FileInputStream fis = new FileInputStream(ftmpimg);
+			Edit edit = edits.get(index);
+			if (edit != null)
+				ii = edit.info;
+			if (ii == ImageInfo.EMPTY)
+				return Texture.EMPTY;
+			int bitCount = this.bitCount;
+			try {
+				byte[] pixels = null;
+				if (edit != null) {
+					FileInputStream fis = new FileInputStream(edit.pixels);
 					pixels = new byte[fis.available()];
 					fis.read(pixels);
 					fis.close();
 				}
+				if (pixels == null) {
+					int[] offsetList = this.offsetList;
+					int pixelLength = offsetList[index + 1] - offsetList[index];
+					pixels = new byte[pixelLength - 8];
+					readPixels(offsetList[index] + 8, pixels);
+					if (pixels.length == 1)
+						return blank(pixels[0]);
+				}
+				return decode(ii, bitCount, pixels, 0);
+			} catch (Exception ex) {
+				ex.printStackTrace();
+				return Texture.EMPTY;
 			}
-			if (pixels == null) {
-				synchronized (wil_locker) {
-					br_wil.seek(offsetList[index] + 8);
+		} finally {
+			if (reads.exit())
+				release();
+		}
+	}
+
+	public final IndexedTexture texIndexed(int index) {
+		if (!reads.enter())
+			return IndexedTexture.EMPTY;
+		try {
+			if (!loaded)
+				return IndexedTexture.EMPTY;
+			if (index < 0)
+				return IndexedTexture.EMPTY;
+			if (index >= imageCount)
+				return IndexedTexture.EMPTY;
+			ImageInfo ii = imageInfos[index];
+			Edit edit = edits.get(index);
+			if (edit != null)
+				ii = edit.info;
+			if (ii == ImageInfo.EMPTY)
+				return IndexedTexture.EMPTY;
+			if (bitCount != 8)
+				return IndexedTexture.EMPTY;
+			try {
+				byte[] pixels;
+				if (edit != null) {
+					FileInputStream fis = new FileInputStream(edit.pixels);
+					pixels = new byte[fis.available()];
+					fis.read(pixels);
+					fis.close();
+				} else {
+					int[] offsetList = this.offsetList;
 					int pixelLength = offsetList[index + 1] - offsetList[index];
 					pixels = new byte[pixelLength - 8];
-					br_wil.readFully(pixels);
-					if (pixels.length == 1) {
+					readPixels(offsetList[index] + 8, pixels);
+					if (pixels.length == 1)
 						// 空白图片
-						byte[] sRGB = new byte[3];
-						byte[] pallete = SDK.palletes[pixels[0] & 0xff];
-						sRGB[0] = pallete[1];
-						sRGB[1] = pallete[2];
-						sRGB[2] = pallete[3];
-						return new Texture(sRGB, 1, 1);
-					}
+						return new IndexedTexture(pixels, 1, 1, SDK.palletes);
 				}
+				return ImageDecoder.indexed8(pixels, 0, ii.getWidth(), ii.getHeight());
+			} catch (Exception ex) {
+				ex.printStackTrace();
+				return IndexedTexture.EMPTY;
 			}
-			byte[] sRGB = new byte[ii.getWidth() * ii.getHeight() * 3];
-			if (bitCount == 8) {
-				int p_index = 0;
-				for (int h = ii.getHeight() - 1; h >= 0; --h)
-					for (int w = 0; w < ii.getWidth(); ++w) {
-						// 跳过填充字节
-						if (w == 0)
-							p_index += SDK.skipBytes(8, ii.getWidth());
-						byte[] pallete = SDK.palletes[pixels[p_index++] & 0xff];
-						int _idx = (w + h * ii.getWidth()) * 3;
-						sRGB[_idx] = pallete[1];
-						sRGB[_idx + 1] = pallete[2];
-						sRGB[_idx + 2] = pallete[3];
+		} finally {
+			if (reads.exit())
+				release();
+		}
+	}
+
+	public final boolean tex(int index, byte[] dst, int offset, int stride, PixelFormat format) {
+		ImageInfo ii = info(index);
+		if (ii == ImageInfo.EMPTY) return false;
+		return decodeTo(index, ImageDecoder.scratch().target(dst, offset, stride, format, ii.getWidth(), ii.getHeight()));
+	}
+
+	public final boolean tex(int index, int[] dst, int offset, int stride) {
+		ImageInfo ii = info(index);
+		if (ii == ImageInfo.EMPTY) return false;
+		return decodeTo(index, ImageDecoder.scratch().target(dst, offset, stride, ii.getWidth(), ii.getHeight()));
+	}
+
+	public final boolean tex(int index, ByteBuffer dst, int stride, PixelFormat format) {
+		ImageInfo ii = info(index);
+		if (ii == ImageInfo.EMPTY) return false;
+		return decodeTo(index, ImageDecoder.scratch().target(dst, stride, format, ii.getWidth(), ii.getHeight()));
+	}
+
+	/* 解码到目标，原始数据使用线程私有的临时数组 */
+	private boolean decodeTo(int index, ImageDecoder.Target t) {
+		if (!reads.enter()) {
+			t.done();
+			return false;
+		}
+		try {
+			if (!loaded)
+				return false;
+			if (index < 0)
+				return false;
+			if (index >= imageCount)
+				return false;
+			ImageInfo ii = imageInfos[index];
+			Edit edit = edits.get(index);
+			if (edit != null)
+				ii = edit.info;
+			if (ii == ImageInfo.EMPTY)
+				return false;
+			int bitCount = this.bitCount;
+			try {
+				byte[] pixels;
+				if (edit != null) {
+					int length = (int) edit.pixels.length();
+					pixels = t.scratch.data(length);
+					FileInputStream fis = new FileInputStream(edit.pixels);
+					try {
+						int p = 0, r;
+						while (p < length && (r = fis.read(pixels, p, length - p)) > 0)
+							p += r;
+					} finally {
+						fis.close();
 					}
-			} else if (bitCount == 16) {
-				ByteBuffer bb = ByteBuffer.wrap(pixels);
-				bb.order(ByteOrder.LITTLE_ENDIAN);
-				int p_index = 0;
-				for (int h = ii.getHeight() - 1; h >= 0; --h)
-					for (int w = 0; w < ii.getWidth(); ++w, p_index += 2) {
-						// 跳过填充字节
-						if (w == 0)
-							p_index += SDK.skipBytes(16, ii.getWidth());
-						short pdata = bb.getShort(p_index);
-						byte r = (byte) ((pdata & 0xf800) >> 8);// 由于是与16位做与操作，所以多出了后面8位
-						byte g = (byte) ((pdata & 0x7e0) >> 3);// 多出了3位，在强转时前8位会自动丢失
-						byte b = (byte) ((pdata & 0x1f) << 3);// 少了3位
-						int _idx = (w + h * ii.getWidth()) * 3;
-						sRGB[_idx] = r;
-						sRGB[_idx + 1] = g;
-						sRGB[_idx + 2] = b;
+				} else {
+					int[] offsetList = this.offsetList;
+					int length = offsetList[index + 1] - offsetList[index] - 8;
+					pixels = t.scratch.data(length);
+					readPixels(offsetList[index] + 8, pixels, 0, length);
+					if (length == 1) {
+						// 空白图片
+						ImageDecoder.decodeIndices(pixels, 0, 1, 1, t);
+						return true;
 					}
+				}
+				ImageDecoder.decodeBmp(pixels, 0, ii.getWidth(), ii.getHeight(), bitCount, t);
+				return true;
+			} catch (Exception ex) {
+				ex.printStackTrace();
+				return false;
 			}
-			return new Texture(sRGB, ii.getWidth(), ii.getHeight());
-		} catch (Exception ex) {
-			ex.printStackTrace();
-			return Texture.EMPTY;
+		} finally {
+			t.done();
+			if (reads.exit())
+				release();
 		}
 	}
 
-	public synchronized final ImageInfo info(int index) {
-		if (!loaded)
-			return ImageInfo.EMPTY;
-		if (index < 0)
-			return ImageInfo.EMPTY;
-		if (index >= imageCount)
+	/* 空白图片 */
+	private static Texture blank(byte colorIndex) {
+		int rgb = SDK.palletesRGB[colorIndex & 0xff];
+		return new Texture(new byte[] { (byte) (rgb >> 16), (byte) (rgb >> 8), (byte) rgb }, 1, 1);
+	}
+
+	/* 从已读取的数据解码图片 */
+	private static Texture decode(ImageInfo ii, int bitCount, byte[] pixels, int off) {
+		Texture tex = TexturePool.getDefault().texture(ii.getWidth(), ii.getHeight());
+		try {
+			ImageDecoder.rgb(pixels, off, ii.getWidth(), ii.getHeight(), bitCount, tex.getRGBs());
+		} catch (RuntimeException ex) {
+			tex.release();
+			throw ex;
+		}
+		return tex;
+	}
+
+	public final Texture[] tex(int[] indices) {
+		if (!reads.enter()) {
+			Texture[] result = new Texture[indices.length];
+			Arrays.fill(result, Texture.EMPTY);
+			return result;
+		}
+		try {
+			return TextureBatch.tex(new BatchSource(), indices);
+		} finally {
+			if (reads.exit())
+				release();
+		}
+	}
+
+	public final Texture[] texRange(int from, int to) {
+		TextureBatch.checkRange(from, to);
+		if (!reads.enter()) {
+			Texture[] result = new Texture[to - from];
+			Arrays.fill(result, Texture.EMPTY);
+			return result;
+		}
+		try {
+			return TextureBatch.texRange(new BatchSource(), from, to);
+		} finally {
+			if (reads.exit())
+				release();
+		}
+	}
+
+	/** 批量读取，整个批次使用同一份图片信息和色深度快照 */
+	private final class BatchSource implements TextureBatch.Source {
+		private final ImageInfo[] infos = imageInfos;
+		private final int[] offsets = offsetList;
+		private final int bits = bitCount;
+		private final int count = imageCount;
+
+		@Override
+		public long position(int index) {
+			if (!loaded || index < 0 || index >= count)
+				return -1;
+			// 被替换的图片从临时文件读取
+			if (infos[index] == ImageInfo.EMPTY || edits.containsKey(index))
+				return -1;
+			return offsets[index] + 8;
+		}
+
+		@Override
+		public int length(int index) {
+			return offsets[index + 1] - offsets[index] - 8;
+		}
+
+		@Override
+		public long size() throws IOException {
+			MappedFile mf = mf_wil;
+			if (mf != null)
+				return mf.length();
+			synchronized (wil_locker) {
+				return br_wil.length();
+			}
+		}
+
+		@Override
+		public void read(long position, byte[] b, int off, int len) throws IOException {
+			readPixels((int) position, b, off, len);
+		}
+
+		@Override
+		public Texture decode(int index, byte[] data, int off, int len) {
+			if (len == 1)
+				return blank(data[off]);
+			return WIL.decode(infos[index], bits, data, off);
+		}
+
+		@Override
+		public Texture tex(int index) {
+			return WIL.this.tex(index);
+		}
+	}
+
+	public final ImageInfo info(int index) {
+		if (!reads.enter())
 			return ImageInfo.EMPTY;
-		return imageInfos[index];
+		try {
+			if (!loaded)
+				return ImageInfo.EMPTY;
+			if (index < 0)
+				return ImageInfo.EMPTY;
+			if (index >= imageCount)
+				return ImageInfo.EMPTY;
+			Edit edit = edits.get(index);
+			if (edit != null)
+				return edit.info;
+			return imageInfos[index];
+		} finally {
+			if (reads.exit())
+				release();
+		}
 	}
 
-	public synchronized int count() {
+	public int count() {
 		return imageCount;
 	}
 
+	/* 从库文件读取图片数据，内存映射模式下不加锁 */
+	private void readPixels(int position, byte[] pixels) throws IOException {
+		readPixels(position, pixels, 0, pixels.length);
+	}
+
+	/* 从库文件读取图片数据到数组的特定位置 */
+	private void readPixels(int position, byte[] b, int off, int len) throws IOException {
+		MappedFile mf = mf_wil;
+		if (mf != null) {
+			try {
+				mf.read(position, b, off, len);
+				return;
+			} catch (IOException ex) {
+				// 读取期间切换到了临时文件，此时从临时文件读取
+				if (mf_wil == mf)
+					throw ex;
+			}
+		}
+		synchronized (wil_locker) {
+			br_wil.seek(position);
+			br_wil.readFully(b, off, len);
+		}
+	}
+
 	/**
 	 * 创建新的库文件
 	 * 
@@ -486,201 +791,250 @@ public final class WIL implements WriteableImageLibrary {
 	}
 
 	@Override
-	public synchronized void save(String dir) {
-		if (!loaded)
-			return;
-		if (tmp_wil_dir == null)
-			return;
-		try {
-			File fdir = new File(dir);
-			if (!fdir.exists())
+	public void save(String dir) {
+		synchronized (write_locker) {
+			if (!loaded)
 				return;
-			if (!fdir.isDirectory())
+			if (tmp_wil_dir == null)
 				return;
-			File fwil = new File(fdir.getAbsolutePath() + File.separator + libName + ".wil");
-			if (fwil.exists())
-				fwil.delete();
-			File fwix = new File(fdir.getAbsolutePath() + File.separator + libName + ".wix");
-			if (fwix.exists())
-				fwix.delete();
-			fwil.createNewFile();
-			fwix.createNewFile();
-			BinaryWriter bw_wil = new BinaryWriter(fwil, "rw");
-			BinaryWriter bw_wix = new BinaryWriter(fwix, "rw");
-			bw_wil.write(wilTitle);
-			bw_wix.write(wixTitle);
-			bw_wil.writeIntLE(imageCount);
-			bw_wix.writeIntLE(imageCount);
-			bw_wil.writeIntLE(SDK.bitCountToColorCount(bitCount));
-			bw_wil.writeIntLE(1024);
-			// bw_wil.writeIntLE(0); // verFlag
-			bw_wil.write(currentUsePallete);
-			int lastOffset = 1024 + 4 + 4 + 4 + 44;
-			for (int i = 0; i < imageInfos.length; ++i) {
-				bw_wix.writeIntLE(lastOffset);
-				lastOffset += 8;
-				bw_wil.writeShortLE(imageInfos[i].getWidth() < 1 ? 1 : imageInfos[i].getWidth());
-				bw_wil.writeShortLE(imageInfos[i].getHeight() < 1 ? 1 : imageInfos[i].getHeight());
-				bw_wil.writeShortLE(imageInfos[i].getOffsetX());
-				bw_wil.writeShortLE(imageInfos[i].getOffsetY());
-				if (imageInfos[i] == ImageInfo.EMPTY
-						|| (imageInfos[i].getWidth() == 1 && imageInfos[i].getHeight() == 1)) {
-					if (bitCount == 8) {
-						lastOffset += 1;
-						bw_wil.writeByte(0);
-					} else {
-						lastOffset += 4;
-						bw_wil.writeByte(0);
-						bw_wil.writeByte(0);
-						bw_wil.writeByte(0);
-						bw_wil.writeByte(0);
-					}
-				} else {
-					int pixelsLength = SDK.widthBytes(bitCount * imageInfos[i].getWidth()) * imageInfos[i].getHeight();
-					lastOffset += pixelsLength;
-					File tmpFile = new File(tmp_wil_dir.getAbsolutePath() + File.separator + i);
-					if (tmpFile.exists()) {
-						byte[] pixels = new byte[pixelsLength];
-						FileInputStream fis = new FileInputStream(tmpFile);
-						fis.read(pixels);
-						fis.close();
-						bw_wil.write(pixels);
+			ImageInfo[] imageInfos = this.imageInfos;
+			int[] offsetList = this.offsetList;
+			int bitCount = this.bitCount;
+			try {
+				File fdir = new File(dir);
+				if (!fdir.exists())
+					return;
+				if (!fdir.isDirectory())
+					return;
+				File fwil = new File(fdir.getAbsolutePath() + File.separator + libName + ".wil");
+				if (fwil.exists())
+					fwil.delete();
+				File fwix = new File(fdir.getAbsolutePath() + File.separator + libName + ".wix");
+				if (fwix.exists())
+					fwix.delete();
+				fwil.createNewFile();
+				fwix.createNewFile();
+				BufferedBinaryWriter bw_wil = new BufferedBinaryWriter(fwil);
+				BufferedBinaryWriter bw_wix = new BufferedBinaryWriter(fwix);
+				bw_wil.write(wilTitle);
+				bw_wix.write(wixTitle);
+				bw_wil.writeIntLE(imageCount);
+				bw_wix.writeIntLE(imageCount);
+				bw_wil.writeIntLE(SDK.bitCountToColorCount(bitCount));
+				bw_wil.writeIntLE(1024);
+				// bw_wil.writeIntLE(0); // verFlag
+				bw_wil.write(currentUsePallete);
+				// 索引表先收集起来，最后一次性写入WIX
+				int[] offsets = new int[imageInfos.length];
+				short[] header = new short[4];
+				byte[] emptyPixels = new byte[bitCount == 8 ? 1 : 4];
+				int lastOffset = 1024 + 4 + 4 + 4 + 44;
+				for (int i = 0; i < imageInfos.length; ++i) {
+					Edit edit = edits.get(i);
+					ImageInfo ii = edit != null ? edit.info : imageInfos[i];
+					offsets[i] = lastOffset;
+					lastOffset += 8;
+					header[0] = ii.getWidth() < 1 ? 1 : ii.getWidth();
+					header[1] = ii.getHeight() < 1 ? 1 : ii.getHeight();
+					header[2] = ii.getOffsetX();
+					header[3] = ii.getOffsetY();
+					bw_wil.writeShortsLE(header);
+					if (ii == ImageInfo.EMPTY || (ii.getWidth() == 1 && ii.getHeight() == 1)) {
+						lastOffset += emptyPixels.length;
+						bw_wil.write(emptyPixels);
 					} else {
-						br_wil.seek(offsetList[i] + 8);
-						int pixelLength = offsetList[i + 1] - offsetList[i];
-						byte[] pixels = new byte[pixelLength - 8];
-						br_wil.readFully(pixels);
-						bw_wil.write(pixels);
+						int pixelsLength = SDK.widthBytes(bitCount * ii.getWidth()) * ii.getHeight();
+						lastOffset += pixelsLength;
+						if (edit != null) {
+							byte[] pixels = new byte[pixelsLength];
+							FileInputStream fis = new FileInputStream(edit.pixels);
+							fis.read(pixels);
+							fis.close();
+							bw_wil.write(pixels);
+						} else {
+							int pixelLength = offsetList[i + 1] - offsetList[i];
+							byte[] pixels = new byte[pixelLength - 8];
+							readPixels(offsetList[i] + 8, pixels);
+							bw_wil.write(pixels);
+						}
 					}
 				}
+				bw_wix.writeIntsLE(offsets);
+				bw_wil.close();
+				bw_wix.close();
+				// 同样大小且修改时间相同的旧索引缓存会被误认为有效，直接删除
+				File fidx = WILIndex.indexFile(fwil);
+				if (fidx.exists())
+					fidx.delete();
+				retire(null);
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				throw new RuntimeException(ex);
 			}
-			bw_wil.close();
-			bw_wix.close();
-		} catch (IOException ex) {
-			ex.printStackTrace();
-			throw new RuntimeException(ex);
 		}
 	}
 
+	/* 调用方需持有write_locker */
 	private void warmup(int index, int colorBit) throws IOException {
 		if (tmp_wil_dir == null) {
-			tmp_wil_dir = new File(new File(System.getProperty("java.io.tmpdir")).getAbsoluteFile() + File.separator
+			File dir = new File(new File(System.getProperty("java.io.tmpdir")).getAbsoluteFile() + File.separator
 					+ new Random().nextLong());
-			tmp_wil_dir.mkdir();
-			File flib = new File(tmp_wil_dir.getAbsolutePath() + File.separator + "lib");
-			FileOutputStream fos = new FileOutputStream(flib);
-			br_wil.seek(0);
-			byte[] buffer = new byte[1024 * 4];
-			int readCount = -1;
-			while ((readCount = br_wil.read(buffer)) > 0) {
-				fos.write(buffer, 0, readCount);
+			dir.mkdir();
+			File flib = new File(dir.getAbsolutePath() + File.separator + "lib");
+			synchronized (wil_locker) {
+				FileOutputStream fos = new FileOutputStream(flib);
+				br_wil.seek(0);
+				byte[] buffer = new byte[1024 * 4];
+				int readCount = -1;
+				while ((readCount = br_wil.read(buffer)) > 0) {
+					fos.write(buffer, 0, readCount);
+				}
+				fos.close();
+				br_wil.close();
+				br_wil = new BinaryReader(flib, "r");
+			}
+			// 原文件可能在保存时被覆盖，此后只从临时文件读取
+			MappedFile mf = mf_wil;
+			if (mf != null) {
+				mf_wil = null;
+				mf.close();
 			}
-			fos.close();
-			br_wil.close();
-			br_wil = new BinaryReader(flib, "r");
 			bitCount = colorBit;
+			tmp_wil_dir = dir;
 		}
 		if (bitCount != colorBit)
 			throw new IllegalArgumentException("colorBit not match bitCount!");
-		if (index > imageCount - 1) {
-			ImageInfo[] oldInfos = imageInfos;
-			imageInfos = new ImageInfo[index + 1];
-			for (int i = 0; i < oldInfos.length; ++i) {
-				imageInfos[i] = oldInfos[i];
-			}
+		ImageInfo[] oldInfos = imageInfos == null ? new ImageInfo[0] : imageInfos;
+		if (index >= oldInfos.length) {
+			ImageInfo[] newInfos = new ImageInfo[index + 1];
+			System.arraycopy(oldInfos, 0, newInfos, 0, oldInfos.length);
 			for (int i = oldInfos.length; i < index + 1; ++i)
-				imageInfos[i] = new ImageInfo();
+				newInfos[i] = new ImageInfo();
+			imageInfos = newInfos;
 		}
 	}
 
+	/* 创建替换后的图片信息，已发布的图片信息不再修改 */
+	private ImageInfo newInfo(int width, int height, int offsetX, int offsetY) {
+		ImageInfo ii = new ImageInfo();
+		ii.setColorBit((byte) bitCount);
+		ii.setWidth((short) width);
+		ii.setHeight((short) height);
+		ii.setOffsetX((short) offsetX);
+		ii.setOffsetY((short) offsetY);
+		return ii;
+	}
+
+	/* 发布替换后的图片，调用方需持有write_locker */
+	private void publish(int index, Edit edit) {
+		retire(edits.put(index, edit));
+	}
+
+	/*
+	 * 旧的像素数据文件在从edits移除后不会再被新的读取看到，
+	 * 因此某一时刻没有读取在进行时，之前移除的文件都可以删除；调用方需持有write_locker
+	 */
+	private void retire(Edit old) {
+		if (old != null)
+			staleFiles.add(old.pixels);
+		if (staleFiles.isEmpty() || !reads.isIdle())
+			return;
+		for (File f : staleFiles)
+			f.delete();
+		staleFiles.clear();
+	}
+
+	/* 新版本的像素数据文件，调用方需持有write_locker */
+	private File newPixelFile(int index) {
+		return new File(tmp_wil_dir.getAbsolutePath() + File.separator + index + "_" + (++editVersion));
+	}
+
 	@Override
-	public synchronized void tex(int index, byte[] rgbs, int colorBit, int width, int height, int offsetX,
-			int offsetY) {
+	public void tex(int index, byte[] rgbs, int colorBit, int width, int height, int offsetX, int offsetY) {
 		if (rgbs == null || rgbs.length != width * height * 3 || rgbs.length != width * height * 4)
 			return;
-		try {
-			warmup(index, colorBit);
-			imageInfos[index].setColorBit((byte) bitCount);
-			imageInfos[index].setWidth((short) width);
-			imageInfos[index].setHeight((short) height);
-			imageInfos[index].setOffsetX((short) offsetX);
-			imageInfos[index].setOffsetY((short) offsetY);
-			File fimg = new File(tmp_wil_dir.getAbsolutePath() + File.separator + index);
-			FileOutputStream fosimg = new FileOutputStream(fimg);
-			int skipBytes = SDK.skipBytes(bitCount, width);
-			for (int h = height - 1; h >= 0; --h) {
-				for (int w = 0; w < width; ++w) {
-					// 跳过填充字节
-					if (w == 0)
-						for (int i = 0; i < skipBytes; ++i)
-							fosimg.write(0);
-					int ti = rgbs.length == width * height * 4 ? 1 : 0;
-					byte r = rgbs[(w + h * width) * (3 + ti) + ti];
-					byte g = rgbs[(w + h * width) * (3 + ti) + 1 + ti];
-					byte b = rgbs[(w + h * width) * (3 + ti) + 2 + ti];
-					if (bitCount == 8) {
-						if (r == g && g == b && b == 0)
-							fosimg.write(0);
-						else {
-							for (int i = 0; i < SDK.palletes.length; ++i) {
-								if (r == SDK.palletes[i][1] && g == SDK.palletes[i][2] && b == SDK.palletes[i][3]) {
-									fosimg.write(i);
-									break;
+		synchronized (write_locker) {
+			try {
+				warmup(index, colorBit);
+				File fimg = newPixelFile(index);
+				FileOutputStream fosimg = new FileOutputStream(fimg);
+				int skipBytes = SDK.skipBytes(bitCount, width);
+				for (int h = height - 1; h >= 0; --h) {
+					for (int w = 0; w < width; ++w) {
+						// 跳过填充字节
+						if (w == 0)
+							for (int i = 0; i < skipBytes; ++i)
+								fosimg.write(0);
+						int ti = rgbs.length == width * height * 4 ? 1 : 0;
+						byte r = rgbs[(w + h * width) * (3 + ti) + ti];
+						byte g = rgbs[(w + h * width) * (3 + ti) + 1 + ti];
+						byte b = rgbs[(w + h * width) * (3 + ti) + 2 + ti];
+						if (bitCount == 8) {
+							if (r == g && g == b && b == 0)
+								fosimg.write(0);
+							else {
+								for (int i = 0; i < SDK.palletes.length; ++i) {
+									if (r == SDK.palletes[i][1] && g == SDK.palletes[i][2] && b == SDK.palletes[i][3]) {
+										fosimg.write(i);
+										break;
+									}
 								}
 							}
+						} else if (bitCount == 16) {
+							byte right = (byte) ((((r & 0x1f) << 10) | ((g & 0x38) << 5)) >> 8);
+							byte left = (byte) (((g & 0x7) << 5) | (b & 0x3f));
+							fosimg.write(left);
+							fosimg.write(right);
 						}
-					} else if (bitCount == 16) {
-						byte right = (byte) ((((r & 0x1f) << 10) | ((g & 0x38) << 5)) >> 8);
-						byte left = (byte) (((g & 0x7) << 5) | (b & 0x3f));
-						fosimg.write(left);
-						fosimg.write(right);
 					}
 				}
+				fosimg.close();
+				publish(index, new Edit(newInfo(width, height, offsetX, offsetY), fimg));
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				throw new RuntimeException(ex);
 			}
-			fosimg.close();
-		} catch (IOException ex) {
-			ex.printStackTrace();
-			throw new RuntimeException(ex);
 		}
 	}
 
 	@Override
-	public synchronized void tex(int index, byte[][] pallete, byte[] rgb8s, int width, int height, int offsetX,
-			int offsetY) {
+	public void tex(int index, byte[][] pallete, byte[] rgb8s, int width, int height, int offsetX, int offsetY) {
 		if (rgb8s == null || rgb8s.length != width * height || rgb8s.length != SDK.widthBytes(8 * width) * height)
 			return;
-		try {
-			warmup(index, 8);
-			if (pallete != null) {
-				if (pallete.length != 256) {
-					throw new RuntimeException("pallete must contains 256 item");
-				}
-				boolean all3 = true;
-				boolean all4 = true;
-				for (int i = 0; i < 256; ++i) {
-					if (pallete[i] == null)
+		synchronized (write_locker) {
+			try {
+				warmup(index, 8);
+				if (pallete != null) {
+					if (pallete.length != 256) {
+						throw new RuntimeException("pallete must contains 256 item");
+					}
+					boolean all3 = true;
+					boolean all4 = true;
+					for (int i = 0; i < 256; ++i) {
+						if (pallete[i] == null)
+							throw new RuntimeException("pallete item must contains 3 or 4 weight");
+						if (pallete[i].length == 3)
+							all4 = false;
+						if (pallete[i].length == 4)
+							all4 = false;
+					}
+					if (!all3 && !all4)
 						throw new RuntimeException("pallete item must contains 3 or 4 weight");
-					if (pallete[i].length == 3)
-						all4 = false;
-					if (pallete[i].length == 4)
-						all4 = false;
-				}
-				if (!all3 && !all4)
-					throw new RuntimeException("pallete item must contains 3 or 4 weight");
-				if (currentUsePallete == globalPallete)
-					currentUsePallete = new byte[1024];
-				for (int i = 0; i < 256; i++) {
-					if (all4)
-						currentUsePallete[i * 4] = pallete[i][0];
-					currentUsePallete[i * 4 + 1] = pallete[i][all3 ? 0 : 1];
-					currentUsePallete[i * 4 + 2] = pallete[i][all3 ? 1 : 2];
-					currentUsePallete[i * 4 + 3] = pallete[i][all3 ? 2 : 3];
+					if (currentUsePallete == globalPallete)
+						currentUsePallete = new byte[1024];
+					for (int i = 0; i < 256; i++) {
+						if (all4)
+							currentUsePallete[i * 4] = pallete[i][0];
+						currentUsePallete[i * 4 + 1] = pallete[i][all3 ? 0 : 1];
+						currentUsePallete[i * 4 + 2] = pallete[i][all3 ? 1 : 2];
+						currentUsePallete[i * 4 + 3] = pallete[i][all3 ? 2 : 3];
+					}
 				}
+				tex8bit(index, rgb8s, width, height, offsetX, offsetY);
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				throw new RuntimeException(ex);
 			}
-			tex8bit(index, rgb8s, width, height, offsetX, offsetY);
-		} catch (IOException ex) {
-			ex.printStackTrace();
-			throw new RuntimeException(ex);
 		}
 	}
 
@@ -688,35 +1042,33 @@ public final class WIL implements WriteableImageLibrary {
 	public void tex(int index, int pallete[], byte[] rgb8s, int width, int height, int offsetX, int offsetY) {
 		if (rgb8s == null || rgb8s.length != width * height || rgb8s.length != SDK.widthBytes(8 * width) * height)
 			return;
-		try {
-			warmup(index, 8);
-			if (pallete != null) {
-				if (pallete.length != 256) {
-					throw new RuntimeException("pallete must contains 256 item");
-				}
-				if (currentUsePallete == globalPallete)
-					currentUsePallete = new byte[1024];
-				for (int i = 0; i < 256; i++) {
-					currentUsePallete[i * 4] = (byte) ((pallete[i] & 0xff000000) >> 24);
-					currentUsePallete[i * 4 + 1] = (byte) ((pallete[i] & 0xff0000) >> 16);
-					currentUsePallete[i * 4 + 2] = (byte) ((pallete[i] & 0xff00) >> 8);
-					currentUsePallete[i * 4 + 3] = (byte) (pallete[i] & 0xff);
+		synchronized (write_locker) {
+			try {
+				warmup(index, 8);
+				if (pallete != null) {
+					if (pallete.length != 256) {
+						throw new RuntimeException("pallete must contains 256 item");
+					}
+					if (currentUsePallete == globalPallete)
+						currentUsePallete = new byte[1024];
+					for (int i = 0; i < 256; i++) {
+						currentUsePallete[i * 4] = (byte) ((pallete[i] & 0xff000000) >> 24);
+						currentUsePallete[i * 4 + 1] = (byte) ((pallete[i] & 0xff0000) >> 16);
+						currentUsePallete[i * 4 + 2] = (byte) ((pallete[i] & 0xff00) >> 8);
+						currentUsePallete[i * 4 + 3] = (byte) (pallete[i] & 0xff);
+					}
 				}
+				tex8bit(index, rgb8s, width, height, offsetX, offsetY);
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				throw new RuntimeException(ex);
 			}
-			tex8bit(index, rgb8s, width, height, offsetX, offsetY);
-		} catch (IOException ex) {
-			ex.printStackTrace();
-			throw new RuntimeException(ex);
 		}
 	}
 
+	/* 调用方需持有write_locker */
 	private void tex8bit(int index, byte[] rgb8s, int width, int height, int offsetX, int offsetY) throws IOException {
-		imageInfos[index].setColorBit((byte) bitCount);
-		imageInfos[index].setWidth((short) width);
-		imageInfos[index].setHeight((short) height);
-		imageInfos[index].setOffsetX((short) offsetX);
-		imageInfos[index].setOffsetY((short) offsetY);
-		File fimg = new File(tmp_wil_dir.getAbsolutePath() + File.separator + index);
+		File fimg = newPixelFile(index);
 		FileOutputStream fosimg = new FileOutputStream(fimg);
 		int skipBytes = SDK.skipBytes(bitCount, width);
 		boolean hasBlank = rgb8s.length == SDK.widthBytes(8 * width) * height;
@@ -733,50 +1085,54 @@ public final class WIL implements WriteableImageLibrary {
 			}
 		}
 		fosimg.close();
+		publish(index, new Edit(newInfo(width, height, offsetX, offsetY), fimg));
 	}
 
 	@Override
 	public void tex(int index, short[] rgb16s, int width, int height, int offsetX, int offsetY) {
 		if (rgb16s == null || rgb16s.length != width * height || rgb16s.length != SDK.widthBytes(16 * width) * height)
 			return;
-		try {
-			warmup(index, 16);
-			imageInfos[index].setColorBit((byte) bitCount);
-			imageInfos[index].setWidth((short) width);
-			imageInfos[index].setHeight((short) height);
-			imageInfos[index].setOffsetX((short) offsetX);
-			imageInfos[index].setOffsetY((short) offsetY);
-			File fimg = new File(tmp_wil_dir.getAbsolutePath() + File.separator + index);
-			FileOutputStream fosimg = new FileOutputStream(fimg);
-			int skipBytes = SDK.skipBytes(bitCount, width);
-			boolean hasBlank = rgb16s.length == SDK.widthBytes(16 * width) * height;
-			for (int h = height - 1; h >= 0; --h) {
-				for (int w = 0; w < width; ++w) {
-					// 跳过填充字节
-					if (w == 0)
-						for (int i = 0; i < skipBytes; ++i)
-							fosimg.write(0);
-					int cindex = w + h * width;
-					if (hasBlank)
-						cindex += (h + 1) * SDK.widthBytes(16 * width);
-					fosimg.write((rgb16s[cindex] & 0xff00) >> 8);
-					fosimg.write(rgb16s[cindex] & 0xff);
+		synchronized (write_locker) {
+			try {
+				warmup(index, 16);
+				File fimg = newPixelFile(index);
+				FileOutputStream fosimg = new FileOutputStream(fimg);
+				int skipBytes = SDK.skipBytes(bitCount, width);
+				boolean hasBlank = rgb16s.length == SDK.widthBytes(16 * width) * height;
+				for (int h = height - 1; h >= 0; --h) {
+					for (int w = 0; w < width; ++w) {
+						// 跳过填充字节
+						if (w == 0)
+							for (int i = 0; i < skipBytes; ++i)
+								fosimg.write(0);
+						int cindex = w + h * width;
+						if (hasBlank)
+							cindex += (h + 1) * SDK.widthBytes(16 * width);
+						fosimg.write((rgb16s[cindex] & 0xff00) >> 8);
+						fosimg.write(rgb16s[cindex] & 0xff);
+					}
 				}
+				fosimg.close();
+				publish(index, new Edit(newInfo(width, height, offsetX, offsetY), fimg));
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				throw new RuntimeException(ex);
 			}
-			fosimg.close();
-		} catch (IOException ex) {
-			ex.printStackTrace();
-			throw new RuntimeException(ex);
 		}
 	}
 
 	@Override
-	public synchronized void remove(int index) {
-		if (!loaded)
-			return;
-		if (index > imageCount - 1)
-			return;
-		imageInfos[index] = ImageInfo.EMPTY;
-		imageCount -= 1;
+	public void remove(int index) {
+		synchronized (write_locker) {
+			if (!loaded)
+				return;
+			if (index > imageCount - 1)
+				return;
+			ImageInfo[] newInfos = imageInfos.clone();
+			newInfos[index] = ImageInfo.EMPTY;
+			imageInfos = newInfos;
+			retire(edits.remove(index));
+			imageCount -= 1;
+		}
 	}
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017 JOOTNET Project
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Support: https://github.com/jootnet/mir2.core
+ */
+package com.github.jootnet.mir2.core.image;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.github.jootnet.mir2.core.BufferedBinaryReader;
+import com.github.jootnet.mir2.core.BufferedBinaryWriter;
+import com.github.jootnet.mir2.core.SDK;
+
+/**
+ * WIL索引缓存文件<br>
+ * 在只使用WIL解析图片的模式下，加载时需要逐个读取图片信息才能得到每张图片的位置<br>
+ * 将解析结果保存到WIL同目录下的同名.wilidx文件中，下次加载时一次读取即可<br>
+ * 缓存文件记录了WIL文件的大小和修改时间，WIL文件变化后缓存自动失效并重建
+ * <pre>
+ * 文件格式(Little-Endian)
+ * int    标识 "WIDX"
+ * int    版本
+ * long   WIL文件大小
+ * long   WIL文件修改时间
+ * int    图片数量 n
+ * int    色深度
+ * int[n] 图片数据起始位置
+ * int[n] 图片宽高，低16位为宽，高16位为高，空图片为-1
+ * int[n] 图片偏移，低16位为横向偏移，高16位为纵向偏移
+ * </pre>
+ *
+ * @author 云中双月
+ */
+final class WILIndex {
+
+	private static final int MAGIC = 0x58444957; // "WIDX"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4;
+	private static final int EMPTY_SIZE = -1;
+
+	private WILIndex() { }
+
+	/**
+	 * 获取WIL文件对应的索引缓存文件
+	 *
+	 * @param f_wil
+	 * 		WIL文件
+	 * @return 索引缓存文件
+	 */
+	static File indexFile(File f_wil) {
+		return new File(SDK.changeFileExtension(f_wil.getPath(), "wilidx"));
+	}
+
+	/**
+	 * 从索引缓存文件读取图片位置和图片信息
+	 *
+	 * @param f_wil
+	 * 		WIL文件
+	 * @param bitCount
+	 * 		WIL文件头中的色深度
+	 * @param offsetList
+	 * 		图片数据起始位置，读取成功时填充前imageInfos.length个元素
+	 * @param imageInfos
+	 * 		图片信息，读取成功时填满
+	 * @return true表示缓存有效且读取成功 false表示缓存不存在或已过期
+	 */
+	static boolean read(File f_wil, int bitCount, int[] offsetList, ImageInfo[] imageInfos) {
+		File f_idx = indexFile(f_wil);
+		int imageCount = imageInfos.length;
+		long expectLength = HEADER_SIZE + imageCount * 12L;
+		if(!f_idx.isFile() || f_idx.length() != expectLength) return false;
+		try {
+			// 整个缓存文件一次读入
+			BufferedBinaryReader br_idx = new BufferedBinaryReader(f_idx, (int) expectLength);
+			try {
+				if(br_idx.readIntLE() != MAGIC) return false;
+				if(br_idx.readIntLE() != VERSION) return false;
+				if(br_idx.readLongLE() != f_wil.length()) return false;
+				if(br_idx.readLongLE() != f_wil.lastModified()) return false;
+				if(br_idx.readIntLE() != imageCount) return false;
+				if(br_idx.readIntLE() != bitCount) return false;
+				int[] packed = new int[imageCount * 3];
+				br_idx.readIntsLE(packed);
+				System.arraycopy(packed, 0, offsetList, 0, imageCount);
+				for(int i = 0; i < imageCount; ++i) {
+					int size = packed[imageCount + i];
+					if(size == EMPTY_SIZE) {
+						imageInfos[i] = ImageInfo.EMPTY;
+						continue;
+					}
+					int offset = packed[imageCount * 2 + i];
+					ImageInfo ii = new ImageInfo();
+					ii.setColorBit((byte) bitCount);
+					ii.setWidth((short) size);
+					ii.setHeight((short) (size >>> 16));
+					ii.setOffsetX((short) offset);
+					ii.setOffsetY((short) (offset >>> 16));
+					imageInfos[i] = ii;
+				}
+				return true;
+			} finally {
+				br_idx.close();
+			}
+		} catch(IOException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * 将图片位置和图片信息写入索引缓存文件<br>
+	 * 先写入临时文件再替换，写入失败(如目录只读)时不影响图片库使用
+	 *
+	 * @param f_wil
+	 * 		WIL文件
+	 * @param bitCount
+	 * 		WIL文件头中的色深度
+	 * @param offsetList
+	 * 		图片数据起始位置
+	 * @param imageInfos
+	 * 		图片信息
+	 */
+	static void write(File f_wil, int bitCount, int[] offsetList, ImageInfo[] imageInfos) {
+		File f_idx = indexFile(f_wil);
+		File f_tmp = new File(f_idx.getPath() + ".tmp");
+		int imageCount = imageInfos.length;
+		int[] sizes = new int[imageCount];
+		int[] offsets = new int[imageCount];
+		for(int i = 0; i < imageCount; ++i) {
+			ImageInfo ii = imageInfos[i];
+			if(ii == ImageInfo.EMPTY) {
+				sizes[i] = EMPTY_SIZE;
+				continue;
+			}
+			sizes[i] = (ii.getWidth() & 0xffff) | (ii.getHeight() << 16);
+			offsets[i] = (ii.getOffsetX() & 0xffff) | (ii.getOffsetY() << 16);
+		}
+		try {
+			BufferedBinaryWriter bw_idx = new BufferedBinaryWriter(f_tmp);
+			try {
+				bw_idx.writeIntLE(MAGIC);
+				bw_idx.writeIntLE(VERSION);
+				bw_idx.writeLongLE(f_wil.length());
+				bw_idx.writeLongLE(f_wil.lastModified());
+				bw_idx.writeIntLE(imageCount);
+				bw_idx.writeIntLE(bitCount);
+				bw_idx.writeIntsLE(offsetList, 0, imageCount);
+				bw_idx.writeIntsLE(sizes);
+				bw_idx.writeIntsLE(offsets);
+			} finally {
+				bw_idx.close();
+			}
+			if(!f_tmp.renameTo(f_idx)) {
+				// 部分平台不能覆盖已存在的文件
+				f_idx.delete();
+				if(!f_tmp.renameTo(f_idx))
+					f_tmp.delete();
+			}
+		} catch(IOException ex) {
+			// 缓存只是加速手段，无法写入时下次加载仍然逐个解析
+			f_tmp.delete();
+		}
+	}
+}
@@ -16,15 +16,23 @@
  */
 package com.github.jootnet.mir2.core.image;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 import com.github.jootnet.mir2.core.BinaryReader;
+import com.github.jootnet.mir2.core.BufferedBinaryReader;
+import com.github.jootnet.mir2.core.IndexedTexture;
+import com.github.jootnet.mir2.core.MappedFile;
+import com.github.jootnet.mir2.core.PixelFormat;
 import com.github.jootnet.mir2.core.SDK;
 import com.github.jootnet.mir2.core.Texture;
+import com.github.jootnet.mir2.core.TexturePool;
 
 /**
  * 热血传奇2WIS图片库
@@ -46,6 +54,8 @@ final class WIS implements ImageLibrary {
     private int[] offsetList;
     /* 图片数据长度 */
     private int[] lengthList;
+    /* 图片数据是否压缩(RLE)，决定需要读取的字节数 */
+    private boolean[] packedList;
     private ImageInfo[] imageInfos;
     /**
      * 获取库中图片信息数组
@@ -57,7 +67,11 @@ final class WIS implements ImageLibrary {
 	}
 	/* WIS文件随机读取对象 */
 	private BinaryReader br_wis;
+	/* WIS文件内存映射对象，内存映射模式下使用 */
+	private volatile MappedFile mf_wis;
 	private boolean loaded;
+	/* WIS文件大小 */
+	private long wisLength;
 	/**
 	 * 获取库加载状态
 	 * 
@@ -66,33 +80,60 @@ final class WIS implements ImageLibrary {
 	public boolean isLoaded() {
 		return loaded;
 	}
+	/* 正在进行的读取，用于关闭时等待读取结束 */
+	private final ReadTracker reads = new ReadTracker();
 	/* 文件指针读取锁 */
     private Object wis_locker = new Object();
+    /* 加载时读取图片信息使用的缓冲区大小 */
+    private static final int HEADER_BUFFER_SIZE = 8 * 1024;
+    /* 加载时每次从文件末尾批量读取的描述信息数量 */
+    private static final int TABLE_BATCH_COUNT = 4096;
 	
     WIS(String wisPath) {
+    	this(wisPath, false);
+    }
+
+    /**
+     * 打开WIS图片库
+     * 
+     * @param wisPath
+     * 		WIS文件路径
+     * @param mapped
+     * 		是否使用内存映射模式<br>
+     * 		内存映射模式下图片数据按位置直接从映射内存中读取，多线程读取时无需加锁
+     */
+    WIS(String wisPath, boolean mapped) {
     	File f_wis = new File(wisPath);
 		if(!f_wis.exists()) return;
 		if(!f_wis.isFile()) return;
 		if(!f_wis.canRead()) return;
     	try {
-    		br_wis = new BinaryReader(f_wis, "r");
+    		BufferedBinaryReader br_header = new BufferedBinaryReader(f_wis, HEADER_BUFFER_SIZE);
+    		wisLength = br_header.length();
     		// 从文件末尾开始读取图片数据描述信息
     		// 一组描述信息包括12个字节(3个int值)，依次为图片数据起始位置(相对于文件)、图片数据大小(包括基本信息)、保留
+    		// 描述信息数量未知，每次向前批量读取一块，直到遇到起始位置不大于512的描述信息
     		// 使用两个List保存offsetList和lengthList
     		List<Integer> offsets = new ArrayList<Integer>();
     		List<Integer> lengths = new ArrayList<Integer>();
-    		int readPosition = (int) (br_wis.length() - 12);
+    		int[] table = new int[TABLE_BATCH_COUNT * 3];
+    		long tableEnd = wisLength;
     		int currentOffset = 0;
     		int currentLength = 0;
     		do {
-    			br_wis.seek(readPosition);
-    			readPosition -= 12;
-    			
-    			currentOffset = br_wis.readIntLE();
-    			currentLength = br_wis.readIntLE();
-    			
-    			offsets.add(currentOffset);
-    			lengths.add(currentLength);
+    			int count = (int) Math.min(TABLE_BATCH_COUNT, tableEnd / 12);
+    			if(count < 1)
+    				throw new EOFException();
+    			br_header.seek(tableEnd - count * 12);
+    			br_header.readIntsLE(table, 0, count * 3);
+    			tableEnd -= count * 12;
+    			for(int i = count - 1; i >= 0; --i) {
+    				currentOffset = table[i * 3];
+    				currentLength = table[i * 3 + 1];
+    				offsets.add(currentOffset);
+    				lengths.add(currentLength);
+    				if(currentOffset <= 512) break;
+    			}
     		} while(currentOffset > 512);
     		Collections.reverse(offsets);
     		Collections.reverse(lengths);
@@ -105,21 +146,29 @@ final class WIS implements ImageLibrary {
     		imageCount = offsetList.length;
     		// 读取图片信息
     		imageInfos = new ImageInfo[imageCount];
+    		packedList = new boolean[imageCount];
     		for(int i = 0; i < imageCount; ++i) {
 				int offset = offsetList[i];
-				if(offset + 12 > br_wis.length()) {
+				if(offset + 12 > wisLength) {
 					// 数据出错，直接赋值为空图片
 					imageInfos[i] = ImageInfo.EMPTY;
             		continue;
 				}
     			ImageInfo ii = new ImageInfo();
-    			br_wis.seek(offsetList[i] + 4);
-    			ii.setWidth((short)br_wis.readUnsignedShortLE());
-				ii.setHeight((short)br_wis.readUnsignedShortLE());
-				ii.setOffsetX(br_wis.readShortLE());
-				ii.setOffsetY(br_wis.readShortLE());
+    			br_header.seek(offsetList[i]);
+    			packedList[i] = br_header.readByte() == 1;
+    			br_header.skipBytes(3);
+    			ii.setWidth((short)br_header.readUnsignedShortLE());
+				ii.setHeight((short)br_header.readUnsignedShortLE());
+				ii.setOffsetX(br_header.readShortLE());
+				ii.setOffsetY(br_header.readShortLE());
                 imageInfos[i] = ii;
     		}
+    		br_header.close();
+    		if(mapped)
+    			mf_wis = new MappedFile(f_wis);
+    		else
+    			br_wis = new BinaryReader(f_wis, "r");
             loaded = true;
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -128,14 +177,83 @@ final class WIS implements ImageLibrary {
     }
         
     /**
-	 * 解压数据
+	 * 解压数据并转换颜色，逐行写入解码目标<br>
+	 * 只遍历一次压缩数据：连续相同的索引只查一次调色板并批量填充，未压缩的部分逐个查找调色板<br>
+	 * 数据不足的部分使用调色板第0个颜色
 	 * @param packed 压缩的数据
+	 * @param off 压缩数据在数组中的起始位置
+	 * @param len 压缩后数据大小
+	 * @param width 图片宽度
+	 * @param height 图片高度
+	 * @param t 解码目标
+	 * @return false表示数据错误，展开后超出图片大小或未压缩部分超出数据末尾
+	 */
+	private static boolean unpack(byte[] packed, int off, int len, int width, int height, ImageDecoder.Target t) {
+		int[] colors = SDK.palletesARGB;
+		int[] row = t.scratch.row(width);
+		int x = 0; // 当前行已填充的像素数
+		int y = 0; // 当前行号
+		int srcIndex = off;
+		int srcEnd = off + len;
+		// 格式与unpack(byte[], int, int, byte[], int)相同
+		while(srcEnd - srcIndex >= 2 && y < height) {
+			int length = packed[srcIndex++]; // 取出第一个标志位
+			int value = packed[srcIndex++]; // 取出第二个标志位
+			if(length > 0) {
+				// 以同一个颜色填充length个像素
+				int color = colors[value & 0xff];
+				while(length > 0) {
+					if(y == height) return false;
+					int n = Math.min(length, width - x);
+					Arrays.fill(row, x, x + n, color);
+					x += n;
+					length -= n;
+					if(x == width) {
+						t.row(y++, row, width);
+						x = 0;
+					}
+				}
+			} else if(length == 0 && value != 0) {
+				// 从下一个字节开始value个字节没有压缩
+				if(value < 0 || value > srcEnd - srcIndex) return false;
+				while(value > 0) {
+					if(y == height) return false;
+					int n = Math.min(value, width - x);
+					for(int i = 0; i < n; ++i)
+						row[x + i] = colors[packed[srcIndex + i] & 0xff];
+					srcIndex += n;
+					x += n;
+					value -= n;
+					if(x == width) {
+						t.row(y++, row, width);
+						x = 0;
+					}
+				}
+			}
+		}
+		if(y < height) {
+			int color = colors[0];
+			Arrays.fill(row, x, width, color);
+			t.row(y++, row, width);
+			Arrays.fill(row, 0, x, color);
+			while(y < height)
+				t.row(y++, row, width);
+		}
+		return true;
+	}
+
+	/**
+	 * 解压数据到目标数组，数据不足的部分填0
+	 * @param packed 压缩的数据
+	 * @param off 压缩数据在数组中的起始位置
+	 * @param len 压缩后数据大小
+	 * @param result 目标数组
 	 * @param unpackLength 解压后数据大小
 	 */
-	private static byte[] unpack(byte[] packed, int unpackLength) {
-		int srcLength = packed.length; // 压缩后数据大小
-		byte[] result = new byte[unpackLength]; // 解压后数据
-		int srcIndex = 0; // 当前解压的字节索引
+	private static void unpack(byte[] packed, int off, int len, byte[] result, int unpackLength) {
+		int srcLength = len; // 压缩后数据大小
+		int resultLength = unpackLength;
+		int srcIndex = off; // 当前解压的字节索引
 		int dstIndex = 0; // 解压过程还原出的字节索引
 		// 解压过程为逐字节进行(字节应转为1-256)
 		// 如果当前字节非0则表示将以下一个字节数据填充当前字节个字节位置
@@ -164,79 +282,303 @@ final class WIS implements ImageLibrary {
 				srcIndex += value;
 			}
 		}
-		return result;
+		if(dstIndex < resultLength)
+			Arrays.fill(result, dstIndex, resultLength, (byte) 0);
 	}
     
     /**
-     * 关闭WIS对象，释放其引用的文件流以及内存占用
+     * 关闭WIS对象，释放其引用的文件流以及内存占用<br>
+     * 如果仍有读取在进行，则在最后一个读取结束时才真正释放
      */
 	public final void close() throws IOException {
+		if (reads.close())
+			release();
+	}
+
+	/* 释放文件流以及内存占用 */
+	private void release() {
 		synchronized (wis_locker) {
 			offsetList = null;
 			lengthList = null;
+			packedList = null;
             imageInfos = null;
             loaded = false;
 			if (br_wis != null)
             {
-				br_wis.close();
+				try {
+					br_wis.close();
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
             }
+			if (mf_wis != null)
+			{
+				mf_wis.close();
+				mf_wis = null;
+			}
 		}
 	}
 
 	public final Texture tex(int index) {
-		if(!loaded) return Texture.EMPTY;
-		if(index < 0) return Texture.EMPTY;
-		if(index >= imageCount) return Texture.EMPTY;
-		if(imageInfos[index] == ImageInfo.EMPTY) return Texture.EMPTY;
-    	try{
-    		ImageInfo ii = imageInfos[index];
-    		int offset = offsetList[index];
-    		int length = lengthList[index];
-    		/*if(length < 14) {
-    			// 如果是空白图片
-    			return Texture.EMPTY;
-    		}*/
-    		byte[] imageBytes = new byte[ii.getWidth() * ii.getHeight()];
-    		byte[] packed = null;
-    		byte encry = 0;
-    		synchronized (wis_locker) {
-        		// 是否压缩(RLE)
-        		br_wis.seek(offset);
-        		encry = br_wis.readByte();
-        		br_wis.skipBytes(11);
-        		if(encry == 1) {
-        			// 压缩了
-        			packed = new byte[length - 12];
-        			br_wis.read(packed);
-        		} else {
-        			// 没压缩
-        			br_wis.read(imageBytes);
-        		}
+		if (!reads.enter())
+			return Texture.EMPTY;
+		try {
+			if(!loaded) return Texture.EMPTY;
+			if(index < 0) return Texture.EMPTY;
+			if(index >= imageCount) return Texture.EMPTY;
+			if(imageInfos[index] == ImageInfo.EMPTY) return Texture.EMPTY;
+	    	try{
+	    		int offset = offsetList[index];
+	    		int length = spanLength(index);
+	    		byte[] data = new byte[length];
+	    		read(offset, data, 0, length);
+	    		return decode(index, data, 0, length);
+	    	} catch(Exception ex) {
+	    		ex.printStackTrace();
+	    		return Texture.EMPTY;
+	    	}
+		} finally {
+			if (reads.exit())
+				release();
+		}
+	}
+
+	public final IndexedTexture texIndexed(int index) {
+		if (!reads.enter())
+			return IndexedTexture.EMPTY;
+		try {
+			if(!loaded) return IndexedTexture.EMPTY;
+			if(index < 0) return IndexedTexture.EMPTY;
+			if(index >= imageCount) return IndexedTexture.EMPTY;
+			if(imageInfos[index] == ImageInfo.EMPTY) return IndexedTexture.EMPTY;
+			try{
+				ImageInfo ii = imageInfos[index];
+				int length = spanLength(index);
+				byte[] data = new byte[length];
+				read(offsetList[index], data, 0, length);
+				byte[] imageBytes = indices(index, data, 0, length);
+				if(imageBytes == null) return IndexedTexture.EMPTY;
+				return new IndexedTexture(imageBytes, ii.getWidth(), ii.getHeight(), SDK.palletes);
+			} catch(Exception ex) {
+				ex.printStackTrace();
+				return IndexedTexture.EMPTY;
 			}
-    		if(encry == 1)
-    			imageBytes = unpack(packed, imageBytes.length);
-    		byte[] sRGB = new byte[ii.getWidth() * ii.getHeight() * 3];
-    		int index1 = 0;
-    		for(int h = 0; h < ii.getHeight(); ++h)
-    			for(int w = 0; w < ii.getWidth(); ++w) {
-    				byte[] pallete = SDK.palletes[imageBytes[index1++] & 0xff];
-					int _idx = (w + h * ii.getWidth()) * 3;
-					sRGB[_idx] = pallete[1];
-					sRGB[_idx + 1] = pallete[2];
-					sRGB[_idx + 2] = pallete[3];
-    			}
-	    	return new Texture(sRGB, ii.getWidth(), ii.getHeight());
-    	} catch(Exception ex) {
-    		ex.printStackTrace();
-    		return Texture.EMPTY;
-    	}
-    }
+		} finally {
+			if (reads.exit())
+				release();
+		}
+	}
+
+	public final boolean tex(int index, byte[] dst, int offset, int stride, PixelFormat format) {
+		ImageInfo ii = info(index);
+		if(ii == ImageInfo.EMPTY) return false;
+		return decodeTo(index, ImageDecoder.scratch().target(dst, offset, stride, format, ii.getWidth(), ii.getHeight()));
+	}
+
+	public final boolean tex(int index, int[] dst, int offset, int stride) {
+		ImageInfo ii = info(index);
+		if(ii == ImageInfo.EMPTY) return false;
+		return decodeTo(index, ImageDecoder.scratch().target(dst, offset, stride, ii.getWidth(), ii.getHeight()));
+	}
+
+	public final boolean tex(int index, ByteBuffer dst, int stride, PixelFormat format) {
+		ImageInfo ii = info(index);
+		if(ii == ImageInfo.EMPTY) return false;
+		return decodeTo(index, ImageDecoder.scratch().target(dst, stride, format, ii.getWidth(), ii.getHeight()));
+	}
+
+	/* 解码到目标，原始数据和解压数据都使用线程私有的临时数组 */
+	private boolean decodeTo(int index, ImageDecoder.Target t) {
+		if (!reads.enter()) {
+			t.done();
+			return false;
+		}
+		try {
+			if(!loaded) return false;
+			if(index < 0) return false;
+			if(index >= imageCount) return false;
+			if(imageInfos[index] == ImageInfo.EMPTY) return false;
+			try{
+				int length = spanLength(index);
+				byte[] data = t.scratch.data(length);
+				read(offsetList[index], data, 0, length);
+				return decode(index, data, 0, length, t);
+			} catch(Exception ex) {
+				ex.printStackTrace();
+				return false;
+			}
+		} finally {
+			t.done();
+			if (reads.exit())
+				release();
+		}
+	}
+
+	/* 图片数据(包括基本信息)需要读取的字节数，压缩的图片按描述信息中的大小，没压缩的图片按像素数量计算，文件末尾的图片数据可能不完整 */
+	private int spanLength(int index) {
+		ImageInfo ii = imageInfos[index];
+		int length = packedList[index] ? lengthList[index] : 12 + ii.getWidth() * ii.getHeight();
+		return (int) Math.min(length, wisLength - offsetList[index]);
+	}
+
+	/* 从库文件读取一段数据，内存映射模式下不加锁 */
+	private void read(long position, byte[] b, int off, int len) throws IOException {
+		MappedFile mf = mf_wis;
+		if(mf != null) {
+			mf.read((int) position, b, off, len);
+		} else {
+			synchronized (wis_locker) {
+				br_wis.seek(position);
+				br_wis.readFully(b, off, len);
+			}
+		}
+	}
+
+	/* 从已读取的数据得到调色板索引，数据错误时返回null */
+	private byte[] indices(int index, byte[] data, int off, int len) {
+		ImageInfo ii = imageInfos[index];
+		byte[] imageBytes = new byte[ii.getWidth() * ii.getHeight()];
+		if(!indices(index, data, off, len, imageBytes)) return null;
+		return imageBytes;
+	}
+
+	/* 从已读取的数据得到调色板索引并写入目标数组，数据错误时返回false */
+	private boolean indices(int index, byte[] data, int off, int len, byte[] imageBytes) {
+		ImageInfo ii = imageInfos[index];
+		int pixelCount = ii.getWidth() * ii.getHeight();
+		// 是否压缩(RLE)
+		if(data[off] == 1) {
+			// 压缩了
+			int packedLength = lengthList[index] - 12;
+			if(packedLength < 0) return false;
+			unpack(data, off + 12, Math.min(packedLength, len - 12), imageBytes, pixelCount);
+		} else {
+			// 没压缩，文件末尾的图片数据可能不完整
+			int n = Math.max(0, Math.min(pixelCount, len - 12));
+			System.arraycopy(data, off + 12, imageBytes, 0, n);
+			Arrays.fill(imageBytes, n, pixelCount, (byte) 0);
+		}
+		return true;
+	}
+
+	/* 从已读取的数据解码图片到目标，数据错误时返回false */
+	private boolean decode(int index, byte[] data, int off, int len, ImageDecoder.Target t) {
+		ImageInfo ii = imageInfos[index];
+		int pixelCount = ii.getWidth() * ii.getHeight();
+		// 是否压缩(RLE)
+		if(data[off] == 1) {
+			// 压缩了
+			int packedLength = lengthList[index] - 12;
+			if(packedLength < 0) return false;
+			return unpack(data, off + 12, Math.min(packedLength, len - 12), ii.getWidth(), ii.getHeight(), t);
+		}
+		if(len - 12 >= pixelCount) {
+			ImageDecoder.decodeIndices(data, off + 12, ii.getWidth(), ii.getHeight(), t);
+		} else {
+			// 没压缩，文件末尾的图片数据不完整
+			byte[] imageBytes = t.scratch.pixels(pixelCount);
+			indices(index, data, off, len, imageBytes);
+			ImageDecoder.decodeIndices(imageBytes, 0, ii.getWidth(), ii.getHeight(), t);
+		}
+		return true;
+	}
+
+	/* 从已读取的数据解码图片 */
+	private Texture decode(int index, byte[] data, int off, int len) {
+		ImageInfo ii = imageInfos[index];
+		Texture tex = TexturePool.getDefault().texture(ii.getWidth(), ii.getHeight());
+		ImageDecoder.Target t = ImageDecoder.scratch().target(tex.getRGBs(), 0, ii.getWidth() * 3, PixelFormat.RGB, ii.getWidth(), ii.getHeight());
+		boolean decoded = false;
+		try {
+			decoded = decode(index, data, off, len, t);
+		} finally {
+			t.done();
+			if(!decoded) tex.release();
+		}
+		return decoded ? tex : Texture.EMPTY;
+	}
+
+	public final Texture[] tex(int[] indices) {
+		if (!reads.enter()) {
+			Texture[] result = new Texture[indices.length];
+			Arrays.fill(result, Texture.EMPTY);
+			return result;
+		}
+		try {
+			return TextureBatch.tex(batchSource, indices);
+		} finally {
+			if (reads.exit())
+				release();
+		}
+	}
+
+	public final Texture[] texRange(int from, int to) {
+		TextureBatch.checkRange(from, to);
+		if (!reads.enter()) {
+			Texture[] result = new Texture[to - from];
+			Arrays.fill(result, Texture.EMPTY);
+			return result;
+		}
+		try {
+			return TextureBatch.texRange(batchSource, from, to);
+		} finally {
+			if (reads.exit())
+				release();
+		}
+	}
+
+	/* 批量读取时的数据位置计算和解码 */
+	private final TextureBatch.Source batchSource = new TextureBatch.Source() {
+
+		@Override
+		public long position(int index) {
+			if(!loaded || index < 0 || index >= imageCount) return -1;
+			if(imageInfos[index] == ImageInfo.EMPTY) return -1;
+			return offsetList[index];
+		}
+
+		@Override
+		public int length(int index) {
+			return spanLength(index);
+		}
+
+		@Override
+		public long size() throws IOException {
+			MappedFile mf = mf_wis;
+			if(mf != null) return mf.length();
+			synchronized (wis_locker) {
+				return br_wis.length();
+			}
+		}
+
+		@Override
+		public void read(long position, byte[] b, int off, int len) throws IOException {
+			WIS.this.read(position, b, off, len);
+		}
+
+		@Override
+		public Texture decode(int index, byte[] data, int off, int len) {
+			return WIS.this.decode(index, data, off, len);
+		}
+
+		@Override
+		public Texture tex(int index) {
+			return WIS.this.tex(index);
+		}
+	};
 
 	public final ImageInfo info(int index) {
-		if(!loaded) return ImageInfo.EMPTY;
-		if(index < 0) return ImageInfo.EMPTY;
-		if(index >= imageCount) return ImageInfo.EMPTY;
-		return imageInfos[index];
+		if (!reads.enter())
+			return ImageInfo.EMPTY;
+		try {
+			if(!loaded) return ImageInfo.EMPTY;
+			if(index < 0) return ImageInfo.EMPTY;
+			if(index >= imageCount) return ImageInfo.EMPTY;
+			return imageInfos[index];
+		} finally {
+			if (reads.exit())
+				release();
+		}
 	}
 
 	public int count() {
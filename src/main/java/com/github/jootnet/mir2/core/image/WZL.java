@@ -16,17 +16,21 @@
  */
 package com.github.jootnet.mir2.core.image;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.zip.InflaterInputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import com.github.jootnet.mir2.core.BinaryReader;
+import com.github.jootnet.mir2.core.BufferedBinaryReader;
+import com.github.jootnet.mir2.core.IndexedTexture;
+import com.github.jootnet.mir2.core.MappedFile;
+import com.github.jootnet.mir2.core.PixelFormat;
 import com.github.jootnet.mir2.core.SDK;
 import com.github.jootnet.mir2.core.Texture;
+import com.github.jootnet.mir2.core.TexturePool;
 
 /**
  * 热血传奇2WZL图片库
@@ -59,6 +63,8 @@ final class WZL implements ImageLibrary {
 	}
 	/* WZL文件随机读取对象 */
 	private BinaryReader br_wzl;
+	/* WZL文件内存映射对象，内存映射模式下使用 */
+	private volatile MappedFile mf_wzl;
 	private boolean loaded;
 	/**
 	 * 获取库加载状态
@@ -68,10 +74,27 @@ final class WZL implements ImageLibrary {
 	public boolean isLoaded() {
 		return loaded;
 	}
+	/* 正在进行的读取，用于关闭时等待读取结束 */
+	private final ReadTracker reads = new ReadTracker();
 	/* 文件指针读取锁 */
     private Object wzl_locker = new Object();
+    /* 加载时读取图片信息使用的缓冲区大小 */
+    private static final int HEADER_BUFFER_SIZE = 8 * 1024;
     
     WZL(String wzlPath) {
+    	this(wzlPath, false);
+    }
+
+    /**
+     * 打开WZL图片库
+     * 
+     * @param wzlPath
+     * 		WZL文件路径
+     * @param mapped
+     * 		是否使用内存映射模式<br>
+     * 		内存映射模式下图片数据按位置直接从映射内存中读取，多线程读取时无需加锁
+     */
+    WZL(String wzlPath, boolean mapped) {
     	String wzxPath = SDK.changeFileExtension(wzlPath, "wzx");
 		File f_wzx = new File(wzxPath);
 		if(!f_wzx.exists()) return;
@@ -82,19 +105,19 @@ final class WZL implements ImageLibrary {
 		if(!f_wzl.isFile()) return;
 		if(!f_wzl.canRead()) return;
     	try {
-    		BinaryReader br_wzx = new BinaryReader(f_wzx, "r");
+    		// WZX文件很小，一次性读入缓冲区
+    		BufferedBinaryReader br_wzx = new BufferedBinaryReader(f_wzx, (int) Math.min(f_wzx.length(), BufferedBinaryReader.DEFAULT_BUFFER_SIZE * 16));
     		br_wzx.skipBytes(44); // 跳过标题
     		imageCount = br_wzx.readIntLE();
 			offsetList = new int[imageCount];
-			for (int i = 0; i < imageCount; ++i)
-			{
-				// 读取数据偏移地址
-				offsetList[i] = br_wzx.readIntLE();
-			}
+			// 读取数据偏移地址
+			br_wzx.readIntsLE(offsetList);
 			br_wzx.close();
-			br_wzl = new BinaryReader(f_wzl, "r");
 			imageInfos = new ImageInfo[imageCount];
             lengthList = new int[imageCount];
+            // 图片信息分散在文件各处，使用较小的缓冲区
+            BufferedBinaryReader br_header = new BufferedBinaryReader(f_wzl, HEADER_BUFFER_SIZE);
+            long wzlLength = br_header.length();
             for (int i = 0; i < imageCount; ++i) {
             	int offset = offsetList[i];
             	if(offset < 48) {
@@ -102,23 +125,28 @@ final class WZL implements ImageLibrary {
 					imageInfos[i] = ImageInfo.EMPTY;
             		continue;
             	}
-            	if(offset + 16 > br_wzl.length()) {
+            	if(offset + 16 > wzlLength) {
 					// 数据出错，直接赋值为空图片
 					imageInfos[i] = ImageInfo.EMPTY;
             		continue;
 				}
                 // 读取图片信息和数据长度
                 ImageInfo ii = new ImageInfo();
-                br_wzl.seek(offset);
-                ii.setColorBit((byte) (br_wzl.readByte() == 5 ? 16 : 8));
-                br_wzl.skipBytes(3); // 跳过3字节未知数据
-                ii.setWidth((short)br_wzl.readUnsignedShortLE());
-				ii.setHeight((short)br_wzl.readUnsignedShortLE());
-				ii.setOffsetX(br_wzl.readShortLE());
-				ii.setOffsetY(br_wzl.readShortLE());
+                br_header.seek(offset);
+                ii.setColorBit((byte) (br_header.readByte() == 5 ? 16 : 8));
+                br_header.skipBytes(3); // 跳过3字节未知数据
+                ii.setWidth((short)br_header.readUnsignedShortLE());
+				ii.setHeight((short)br_header.readUnsignedShortLE());
+				ii.setOffsetX(br_header.readShortLE());
+				ii.setOffsetY(br_header.readShortLE());
                 imageInfos[i] = ii;
-                lengthList[i] = br_wzl.readIntLE();
+                lengthList[i] = br_header.readIntLE();
             }
+            br_header.close();
+            if(mapped)
+            	mf_wzl = new MappedFile(f_wzl);
+            else
+            	br_wzl = new BinaryReader(f_wzl, "r");
             loaded = true;
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -126,24 +154,53 @@ final class WZL implements ImageLibrary {
 		}
     }
 
-    /** 从zlib解压 
-     * @throws IOException */
-	private static byte[] unzip(byte[] ziped) throws IOException {
-		InflaterInputStream iis = new InflaterInputStream(new ByteArrayInputStream(ziped));
-		ByteArrayOutputStream o = new ByteArrayOutputStream(1024);
-		int i = 1024;
-		byte[] buf = new byte[i];
+	/* 流式解码时每次从库文件读取的压缩数据字节数 */
+	private static final int STREAM_CHUNK = 8 * 1024;
+	/* 每个线程复用的解压器，避免每张图片都初始化一次zlib */
+	private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
 
-		while ((i = iis.read(buf, 0, i)) > 0) {
-			o.write(buf, 0, i);
+    /** 从zlib解压到目标数组
+     * @param unzipLength 解压后数据大小，由图片宽高和色深度计算得到，超出部分的数据不解压
+     * @throws IOException 数据错误或解压出的数据不足 */
+	private static void unzip(byte[] ziped, int off, int len, byte[] dst, int unzipLength) throws IOException {
+		Inflater inflater = INFLATER.get();
+		try {
+			inflater.setInput(ziped, off, len);
+			int n = 0;
+			while(n < unzipLength) {
+				int r = inflater.inflate(dst, n, unzipLength - n);
+				if(r == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+					throw new IOException("zlib data shorter than " + unzipLength + " bytes");
+				n += r;
+			}
+		} catch(DataFormatException ex) {
+			throw new IOException(ex);
+		} finally {
+			inflater.reset();
 		}
-		return o.toByteArray();
+	}
+
+	/* 解压后的像素数据字节数 */
+	private static int unzipLength(ImageInfo ii) {
+		return SDK.widthBytes(ii.getColorBit() * ii.getWidth()) * ii.getHeight();
 	}
     
     /**
-     * 关闭WZL对象，释放其引用的文件流以及内存占用
+     * 关闭WZL对象，释放其引用的文件流以及内存占用<br>
+     * 如果仍有读取在进行，则在最后一个读取结束时才真正释放
      */
 	public final void close() throws IOException {
+		if (reads.close())
+			release();
+	}
+
+	/* 释放文件流以及内存占用 */
+	private void release() {
 		synchronized (wzl_locker) {
 			offsetList = null;
 			lengthList = null;
@@ -151,77 +208,282 @@ final class WZL implements ImageLibrary {
             loaded = false;
 			if (br_wzl != null)
             {
-				br_wzl.close();
+				try {
+					br_wzl.close();
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
             }
+			if (mf_wzl != null)
+			{
+				mf_wzl.close();
+				mf_wzl = null;
+			}
 		}
 	}
 
 	public final Texture tex(int index) {
-		if(!loaded) return Texture.EMPTY;
-		if(index < 0) return Texture.EMPTY;
-		if(index >= imageCount) return Texture.EMPTY;
-		if(imageInfos[index] == ImageInfo.EMPTY) return Texture.EMPTY;
-		if(lengthList[index] == 0) return Texture.EMPTY;
-    	try{
-    		ImageInfo ii = imageInfos[index];
-    		int offset = offsetList[index];
-    		int length = lengthList[index];
-    		byte[] pixels = new byte[length];
-    		synchronized (wzl_locker) {
-        		br_wzl.seek(offset + 16);
-        		br_wzl.read(pixels);
+		if (!reads.enter())
+			return Texture.EMPTY;
+		try {
+			if(!loaded) return Texture.EMPTY;
+			if(index < 0) return Texture.EMPTY;
+			if(index >= imageCount) return Texture.EMPTY;
+			if(imageInfos[index] == ImageInfo.EMPTY) return Texture.EMPTY;
+			if(lengthList[index] == 0) return Texture.EMPTY;
+	    	try{
+	    		return decode(index, null, 0, 0);
+	    	} catch(Exception ex) {
+	    		ex.printStackTrace();
+	    		return Texture.EMPTY;
+	    	}
+		} finally {
+			if (reads.exit())
+				release();
+		}
+	}
+
+	public final IndexedTexture texIndexed(int index) {
+		if (!reads.enter())
+			return IndexedTexture.EMPTY;
+		try {
+			if(!loaded) return IndexedTexture.EMPTY;
+			if(index < 0) return IndexedTexture.EMPTY;
+			if(index >= imageCount) return IndexedTexture.EMPTY;
+			if(imageInfos[index] == ImageInfo.EMPTY) return IndexedTexture.EMPTY;
+			if(lengthList[index] == 0) return IndexedTexture.EMPTY;
+			ImageInfo ii = imageInfos[index];
+			if(ii.getColorBit() != 8) return IndexedTexture.EMPTY;
+			try{
+				int length = lengthList[index];
+				ImageDecoder.Scratch scratch = ImageDecoder.scratch();
+				byte[] data = scratch.data(length);
+				read(offsetList[index] + 16, data, 0, length);
+				byte[] pixels = scratch.pixels(unzipLength(ii));
+				unzip(data, 0, length, pixels, unzipLength(ii));
+				return ImageDecoder.indexed8(pixels, 0, ii.getWidth(), ii.getHeight());
+			} catch(Exception ex) {
+				ex.printStackTrace();
+				return IndexedTexture.EMPTY;
 			}
-    		pixels = unzip(pixels);
-    		byte[] sRGB = new byte[ii.getWidth() * ii.getHeight() * 3];
-    		if (ii.getColorBit() == 8)
-            {
-                int p_index = 0;
-                for (int h = ii.getHeight() - 1; h >= 0; --h)
-                    for (int w = 0; w < ii.getWidth(); ++w)
-                    {
-                        // 跳过填充字节
-                        if (w == 0)
-                            p_index += SDK.skipBytes(8, ii.getWidth());
-                        byte[] pallete = SDK.palletes[pixels[p_index++] & 0xff];
-    					int _idx = (w + h * ii.getWidth()) * 3;
-    					sRGB[_idx] = pallete[1];
-    					sRGB[_idx + 1] = pallete[2];
-    					sRGB[_idx + 2] = pallete[3];
-                    }
-            }
-	    	else if (ii.getColorBit() == 16)
-            {
-	    		ByteBuffer bb = ByteBuffer.wrap(pixels);
-	    		bb.order(ByteOrder.LITTLE_ENDIAN);
-	    		int p_index = 0;
-                for (int h = ii.getHeight() - 1; h >= 0; --h)
-                    for (int w = 0; w < ii.getWidth(); ++w, p_index += 2)
-                    {
-                        // 跳过填充字节
-                        if (w == 0)
-                            p_index += SDK.skipBytes(16, ii.getWidth());
-                        short pdata = bb.getShort(p_index);
-                        byte r = (byte) ((pdata & 0xf800) >> 8);// 由于是与16位做与操作，所以多出了后面8位
-                        byte g = (byte) ((pdata & 0x7e0) >> 3);// 多出了3位，在强转时前8位会自动丢失
-                        byte b = (byte) ((pdata & 0x1f) << 3);// 少了3位
-    					int _idx = (w + h * ii.getWidth()) * 3;
-    					sRGB[_idx] = r;
-    					sRGB[_idx + 1] = g;
-    					sRGB[_idx + 2] = b;
-                    }
-            }
-	    	return new Texture(sRGB, ii.getWidth(), ii.getHeight());
-    	} catch(Exception ex) {
-    		ex.printStackTrace();
-    		return Texture.EMPTY;
-    	}
-    }
+		} finally {
+			if (reads.exit())
+				release();
+		}
+	}
+
+	public final boolean tex(int index, byte[] dst, int offset, int stride, PixelFormat format) {
+		ImageInfo ii = info(index);
+		if(ii == ImageInfo.EMPTY) return false;
+		return decodeTo(index, ImageDecoder.scratch().target(dst, offset, stride, format, ii.getWidth(), ii.getHeight()));
+	}
+
+	public final boolean tex(int index, int[] dst, int offset, int stride) {
+		ImageInfo ii = info(index);
+		if(ii == ImageInfo.EMPTY) return false;
+		return decodeTo(index, ImageDecoder.scratch().target(dst, offset, stride, ii.getWidth(), ii.getHeight()));
+	}
+
+	public final boolean tex(int index, ByteBuffer dst, int stride, PixelFormat format) {
+		ImageInfo ii = info(index);
+		if(ii == ImageInfo.EMPTY) return false;
+		return decodeTo(index, ImageDecoder.scratch().target(dst, stride, format, ii.getWidth(), ii.getHeight()));
+	}
+
+	/* 解码到目标，原始数据和解压数据都使用线程私有的临时数组 */
+	private boolean decodeTo(int index, ImageDecoder.Target t) {
+		if (!reads.enter()) {
+			t.done();
+			return false;
+		}
+		try {
+			if(!loaded) return false;
+			if(index < 0) return false;
+			if(index >= imageCount) return false;
+			if(imageInfos[index] == ImageInfo.EMPTY) return false;
+			if(lengthList[index] == 0) return false;
+			try{
+				stream(index, null, 0, 0, t);
+				return true;
+			} catch(Exception ex) {
+				ex.printStackTrace();
+				return false;
+			}
+		} finally {
+			t.done();
+			if (reads.exit())
+				release();
+		}
+	}
+
+	/* 从库文件读取一段数据，内存映射模式下不加锁 */
+	private void read(long position, byte[] b, int off, int len) throws IOException {
+		MappedFile mf = mf_wzl;
+		if(mf != null) {
+			mf.read((int) position, b, off, len);
+		} else {
+			synchronized (wzl_locker) {
+				br_wzl.seek(position);
+				br_wzl.readFully(b, off, len);
+			}
+		}
+	}
+
+	/* 解码图片，data为null时从库文件分块读取压缩数据 */
+	private Texture decode(int index, byte[] data, int off, int len) throws IOException {
+		ImageInfo ii = imageInfos[index];
+		Texture tex = TexturePool.getDefault().texture(ii.getWidth(), ii.getHeight());
+		ImageDecoder.Target t = ImageDecoder.scratch().target(tex.getRGBs(), 0, ii.getWidth() * 3, PixelFormat.RGB, ii.getWidth(), ii.getHeight());
+		boolean decoded = false;
+		try {
+			stream(index, data, off, len, t);
+			decoded = true;
+		} finally {
+			t.done();
+			if(!decoded) tex.release();
+		}
+		return tex;
+	}
+
+	/**
+	 * 逐行解压并转换像素<br>
+	 * 每解压出一行(BMP数据从下到上存放)就立即转换写入目标，同时只保留一行解压数据<br>
+	 * 压缩数据未读取时按{@link #STREAM_CHUNK}分块从库文件读取，读到第一块即可开始解码
+	 * 
+	 * @param index
+	 * 		图片索引
+	 * @param data
+	 * 		已读取的压缩数据，为null时从库文件读取
+	 * @param off
+	 * 		压缩数据在数组中的起始位置
+	 * @param len
+	 * 		压缩数据字节数
+	 * @param t
+	 * 		解码目标
+	 * @throws IOException
+	 * 		读取失败或数据错误
+	 */
+	private void stream(int index, byte[] data, int off, int len, ImageDecoder.Target t) throws IOException {
+		ImageInfo ii = imageInfos[index];
+		int width = ii.getWidth();
+		int bit = ii.getColorBit();
+		int rowLength = SDK.widthBytes(bit * width);
+		byte[] row = t.scratch.pixels(rowLength);
+		long position = offsetList[index] + 16;
+		int remain = 0; // 尚未从库文件读取的压缩数据字节数
+		if(data == null) {
+			remain = lengthList[index];
+			data = t.scratch.data(Math.min(remain, STREAM_CHUNK));
+		}
+		Inflater inflater = INFLATER.get();
+		try {
+			if(remain == 0)
+				inflater.setInput(data, off, len);
+			for(int h = ii.getHeight() - 1; h >= 0; --h) {
+				int n = 0;
+				while(n < rowLength) {
+					int r = inflater.inflate(row, n, rowLength - n);
+					if(r == 0) {
+						if(!inflater.needsInput() || remain == 0)
+							throw new IOException("zlib data shorter than " + unzipLength(ii) + " bytes");
+						int chunk = Math.min(remain, data.length);
+						read(position, data, 0, chunk);
+						position += chunk;
+						remain -= chunk;
+						inflater.setInput(data, 0, chunk);
+					}
+					n += r;
+				}
+				ImageDecoder.decodeBmpRow(row, 0, width, bit, h, t);
+			}
+		} catch(DataFormatException ex) {
+			throw new IOException(ex);
+		} finally {
+			inflater.reset();
+		}
+	}
+
+	public final Texture[] tex(int[] indices) {
+		if (!reads.enter()) {
+			Texture[] result = new Texture[indices.length];
+			Arrays.fill(result, Texture.EMPTY);
+			return result;
+		}
+		try {
+			return TextureBatch.tex(batchSource, indices);
+		} finally {
+			if (reads.exit())
+				release();
+		}
+	}
+
+	public final Texture[] texRange(int from, int to) {
+		TextureBatch.checkRange(from, to);
+		if (!reads.enter()) {
+			Texture[] result = new Texture[to - from];
+			Arrays.fill(result, Texture.EMPTY);
+			return result;
+		}
+		try {
+			return TextureBatch.texRange(batchSource, from, to);
+		} finally {
+			if (reads.exit())
+				release();
+		}
+	}
+
+	/* 批量读取时的数据位置计算和解码 */
+	private final TextureBatch.Source batchSource = new TextureBatch.Source() {
+
+		@Override
+		public long position(int index) {
+			if(!loaded || index < 0 || index >= imageCount) return -1;
+			if(imageInfos[index] == ImageInfo.EMPTY || lengthList[index] == 0) return -1;
+			return offsetList[index] + 16;
+		}
+
+		@Override
+		public int length(int index) {
+			return lengthList[index];
+		}
+
+		@Override
+		public long size() throws IOException {
+			MappedFile mf = mf_wzl;
+			if(mf != null) return mf.length();
+			synchronized (wzl_locker) {
+				return br_wzl.length();
+			}
+		}
+
+		@Override
+		public void read(long position, byte[] b, int off, int len) throws IOException {
+			WZL.this.read(position, b, off, len);
+		}
+
+		@Override
+		public Texture decode(int index, byte[] data, int off, int len) throws Exception {
+			return WZL.this.decode(index, data, off, len);
+		}
+
+		@Override
+		public Texture tex(int index) {
+			return WZL.this.tex(index);
+		}
+	};
 
 	public final ImageInfo info(int index) {
-		if(!loaded) return ImageInfo.EMPTY;
-		if(index < 0) return ImageInfo.EMPTY;
-		if(index >= imageCount) return ImageInfo.EMPTY;
-		return imageInfos[index];
+		if (!reads.enter())
+			return ImageInfo.EMPTY;
+		try {
+			if(!loaded) return ImageInfo.EMPTY;
+			if(index < 0) return ImageInfo.EMPTY;
+			if(index >= imageCount) return ImageInfo.EMPTY;
+			return imageInfos[index];
+		} finally {
+			if (reads.exit())
+				release();
+		}
 	}
 
 	public int count() {
@@ -16,6 +16,9 @@
  */
 package com.github.jootnet.mir2.core.map;
 
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+
 /**
  * 热血传奇2地图
  * <br>
@@ -25,18 +28,67 @@ package com.github.jootnet.mir2.core.map;
  * <br>
  * 但实际上不使用MapHeader和MapTile，因为MapHeader和MapTile数据太散，不便于使用
  * <br>
- * 而是将MapHeader中关键地图信息提取出来放到Map里，将MapTile重新解析为{@link MapTileInfo}以方便程序逻辑
+ * 而是将MapHeader中关键地图信息提取出来放到Map里，将MapTile重新解析为按字段分开存放的基本类型数组以节省内存
+ * <br>
+ * 地图块通过{@link #cursor()}得到的{@link MapTileCursor}访问，不为每个地图块创建对象
  * 
  * @author 云中双月
  */
 public final class Map {
 	
+	/* 地图块标志位 */
+	static final int HAS_BNG = 0x01;
+	static final int HAS_MID = 0x02;
+	static final int HAS_OBJ = 0x04;
+	static final int CAN_WALK = 0x08;
+	static final int CAN_FLY = 0x10;
+	static final int HAS_DOOR = 0x20;
+	static final int DOOR_OPEN = 0x40;
+	static final int HAS_ANI = 0x80;
+	
 	/** 地图宽度 */
 	private short width;
 	/** 地图高度 */
 	private short height;
-	/** 地图块数据 */
-	private MapTileInfo[][] tiles;
+	
+	/* 地图块数据，每个字段一个数组，按行存放，地图块(x, y)的序号为x + y * width */
+	/* 背景图索引 */
+	short[] bngImgIdx;
+	/* 补充背景图索引 */
+	short[] midImgIdx;
+	/* 对象图索引 */
+	short[] objImgIdx;
+	/* 标志位，见HAS_BNG等常量 */
+	byte[] flags;
+	/* 门索引 */
+	byte[] doorIdx;
+	/* 门偏移 */
+	byte[] doorOffset;
+	/* 动画帧数 */
+	byte[] aniFrame;
+	/* 动画跳帧数 */
+	byte[] aniTick;
+	/* 资源文件索引 */
+	byte[] objFileIdx;
+	/* 光线 */
+	byte[] light;
+	
+	/* 可行走与可飞越位图，每行从新的long开始，地图块(x, y)位于第y * rowWords + x / 64个long的第x % 64位 */
+	private int rowWords;
+	private long[] walkBits;
+	private long[] flyBits;
+	/* 有门的地图块位图，寻路时可以将门视为可通过 */
+	private long[] doorBits;
+	/* 开启的门所在地图块位图，寻路时可以通过 */
+	private long[] openDoorBits;
+	/* 以门索引分组的门所在地图块序号 */
+	private int[][] doorTiles;
+	
+	/* 分层寻路数据，第一次使用时创建 */
+	private volatile MapGraph graph;
+	
+	/* getTiles创建的兼容数据，内存不足时可以被回收 */
+	private SoftReference<MapTileInfo[][]> tiles;
 	
 	Map() { }
 	
@@ -56,12 +108,319 @@ public final class Map {
 	void setHeight(short height) {
 		this.height = height;
 	}
-	/** 获取地图块信息 */
-	public MapTileInfo[][] getTiles() {
-		return tiles;
+	
+	/** 按宽高分配地图块数据 */
+	void allocate() {
+		int n = width * height;
+		bngImgIdx = new short[n];
+		midImgIdx = new short[n];
+		objImgIdx = new short[n];
+		flags = new byte[n];
+		doorIdx = new byte[n];
+		doorOffset = new byte[n];
+		aniFrame = new byte[n];
+		aniTick = new byte[n];
+		objFileIdx = new byte[n];
+		light = new byte[n];
+	}
+	
+	/** 根据地图块标志位生成可行走与可飞越位图，地图块数据解析完成后调用 */
+	void buildBits() {
+		rowWords = (width + 63) >>> 6;
+		walkBits = new long[rowWords * height];
+		flyBits = new long[rowWords * height];
+		doorBits = new long[rowWords * height];
+		openDoorBits = new long[rowWords * height];
+		int[] doorCount = new int[128];
+		for(int y = 0; y < height; ++y)
+			for(int x = 0; x < width; ++x) {
+				int f = flags[x + y * width];
+				long bit = 1L << x;
+				int w = y * rowWords + (x >>> 6);
+				if((f & CAN_WALK) != 0) walkBits[w] |= bit;
+				if((f & CAN_FLY) != 0) flyBits[w] |= bit;
+				if((f & HAS_DOOR) != 0) {
+					doorBits[w] |= bit;
+					doorCount[doorIdx[x + y * width]]++;
+					if((f & DOOR_OPEN) != 0) openDoorBits[w] |= bit;
+				}
+			}
+		doorTiles = new int[128][];
+		for(int d = 0; d < 128; ++d)
+			doorTiles[d] = new int[doorCount[d]];
+		Arrays.fill(doorCount, 0);
+		for(int i = 0; i < flags.length; ++i)
+			if((flags[i] & HAS_DOOR) != 0) {
+				int d = doorIdx[i];
+				doorTiles[d][doorCount[d]++] = i;
+			}
+	}
+	
+	/**
+	 * 判断地图块是否可以站立或走过
+	 * 
+	 * @param x
+	 * 		横坐标
+	 * @param y
+	 * 		纵坐标
+	 * @return 是否可以行走，坐标超出地图范围时为false
+	 */
+	public boolean isWalkable(int x, int y) {
+		if(x < 0 || y < 0 || x >= width || y >= height) return false;
+		return (walkBits[y * rowWords + (x >>> 6)] & (1L << x)) != 0;
+	}
+	
+	/*
+	 * 寻路使用的可通过判断，开启的门可以通过，关闭的门即使地图块可以行走也不能通过
+	 * doors为true时所有门都可以通过
+	 */
+	boolean isPassable(int x, int y, boolean doors) {
+		if(x < 0 || y < 0 || x >= width || y >= height) return false;
+		int w = y * rowWords + (x >>> 6);
+		long bits = (walkBits[w] & ~(doorBits[w] & ~openDoorBits[w])) | (doors ? doorBits[w] : openDoorBits[w]);
+		return (bits & (1L << x)) != 0;
+	}
+	
+	/**
+	 * 设置门的开关状态<br>
+	 * 门索引相同的所有地图块一起改变，开启的门在寻路时可以通过，关闭的门即使地图块可以行走也不能通过<br>
+	 * 已创建的分层寻路数据({@link #getGraph()})只更新门所在的区域
+	 * 
+	 * @param doorIdx
+	 * 		门索引，即{@link MapTileCursor#getDoorIdx()}
+	 * @param open
+	 * 		是否开启
+	 */
+	public synchronized void setDoorOpen(int doorIdx, boolean open) {
+		if(doorIdx < 0 || doorIdx >= doorTiles.length)
+			throw new IllegalArgumentException("doorIdx out of range: " + doorIdx);
+		int[] ts = doorTiles[doorIdx];
+		boolean changed = false;
+		for(int i : ts)
+			changed |= ((flags[i] & DOOR_OPEN) != 0) != open;
+		if(!changed) return;
+		for(int i : ts) {
+			int x = i % width;
+			int y = i / width;
+			int w = y * rowWords + (x >>> 6);
+			if(open) {
+				flags[i] |= DOOR_OPEN;
+				openDoorBits[w] |= 1L << x;
+			} else {
+				flags[i] &= ~DOOR_OPEN;
+				openDoorBits[w] &= ~(1L << x);
+			}
+		}
+		tiles = null;
+		MapGraph g = graph;
+		if(g != null)
+			g.update(ts);
+	}
+	
+	/**
+	 * 获取分层寻路数据<br>
+	 * 第一次调用时根据当前地图创建，之后缓存在地图对象中，门的开关状态改变时自动更新
+	 * 
+	 * @return 分层寻路数据
+	 */
+	public MapGraph getGraph() {
+		MapGraph g = graph;
+		if(g == null) {
+			synchronized (this) {
+				g = graph;
+				if(g == null)
+					graph = g = new MapGraph(this);
+			}
+		}
+		return g;
 	}
-	/** 设置地图块信息 */
-	void setMapTiles(MapTileInfo[][] mapTiles) {
-		this.tiles = mapTiles;
+	
+	/**
+	 * 判断地图块是否可以飞越
+	 * 
+	 * @param x
+	 * 		横坐标
+	 * @param y
+	 * 		纵坐标
+	 * @return 是否可以飞越，坐标超出地图范围时为false
+	 */
+	public boolean isFlyable(int x, int y) {
+		if(x < 0 || y < 0 || x >= width || y >= height) return false;
+		return (flyBits[y * rowWords + (x >>> 6)] & (1L << x)) != 0;
+	}
+	
+	/**
+	 * 判断矩形区域内的地图块是否全部可以行走<br>
+	 * 按64个地图块一组比较，不逐个检查
+	 * 
+	 * @param x
+	 * 		区域起始横坐标
+	 * @param y
+	 * 		区域起始纵坐标
+	 * @param w
+	 * 		区域宽度
+	 * @param h
+	 * 		区域高度
+	 * @return 是否全部可以行走，区域超出地图范围时为false，区域为空时为true
+	 */
+	public boolean isWalkable(int x, int y, int w, int h) {
+		return all(walkBits, x, y, w, h);
+	}
+	
+	/**
+	 * 判断矩形区域内的地图块是否全部可以飞越
+	 * 
+	 * @param x
+	 * 		区域起始横坐标
+	 * @param y
+	 * 		区域起始纵坐标
+	 * @param w
+	 * 		区域宽度
+	 * @param h
+	 * 		区域高度
+	 * @return 是否全部可以飞越，区域超出地图范围时为false，区域为空时为true
+	 * 
+	 * @see #isWalkable(int, int, int, int)
+	 */
+	public boolean isFlyable(int x, int y, int w, int h) {
+		return all(flyBits, x, y, w, h);
+	}
+	
+	/**
+	 * 统计矩形区域内可以行走的地图块数量<br>
+	 * 区域超出地图的部分忽略
+	 * 
+	 * @param x
+	 * 		区域起始横坐标
+	 * @param y
+	 * 		区域起始纵坐标
+	 * @param w
+	 * 		区域宽度
+	 * @param h
+	 * 		区域高度
+	 * @return 可以行走的地图块数量
+	 */
+	public int countWalkable(int x, int y, int w, int h) {
+		return count(walkBits, x, y, w, h);
+	}
+	
+	/**
+	 * 统计矩形区域内可以飞越的地图块数量<br>
+	 * 区域超出地图的部分忽略
+	 * 
+	 * @param x
+	 * 		区域起始横坐标
+	 * @param y
+	 * 		区域起始纵坐标
+	 * @param w
+	 * 		区域宽度
+	 * @param h
+	 * 		区域高度
+	 * @return 可以飞越的地图块数量
+	 * 
+	 * @see #countWalkable(int, int, int, int)
+	 */
+	public int countFlyable(int x, int y, int w, int h) {
+		return count(flyBits, x, y, w, h);
+	}
+	
+	private boolean all(long[] bits, int x, int y, int w, int h) {
+		if(w <= 0 || h <= 0) return true;
+		if(x < 0 || y < 0 || x > width - w || y > height - h) return false;
+		int first = x >>> 6;
+		int last = (x + w - 1) >>> 6;
+		// 首尾两个long只比较区域内的位，移位量只取低6位
+		long firstMask = -1L << x;
+		long lastMask = -1L >>> -(x + w);
+		for(int row = y; row < y + h; ++row) {
+			int base = row * rowWords;
+			if(first == last) {
+				long mask = firstMask & lastMask;
+				if((bits[base + first] & mask) != mask) return false;
+				continue;
+			}
+			if((bits[base + first] & firstMask) != firstMask) return false;
+			for(int i = first + 1; i < last; ++i)
+				if(bits[base + i] != -1L) return false;
+			if((bits[base + last] & lastMask) != lastMask) return false;
+		}
+		return true;
+	}
+	
+	private int count(long[] bits, int x, int y, int w, int h) {
+		int x1 = Math.min(x + w, width);
+		int y1 = Math.min(y + h, height);
+		x = Math.max(x, 0);
+		y = Math.max(y, 0);
+		if(x1 <= x || y1 <= y) return 0;
+		int first = x >>> 6;
+		int last = (x1 - 1) >>> 6;
+		long firstMask = -1L << x;
+		long lastMask = -1L >>> -x1;
+		int n = 0;
+		for(int row = y; row < y1; ++row) {
+			int base = row * rowWords;
+			if(first == last) {
+				n += Long.bitCount(bits[base + first] & firstMask & lastMask);
+				continue;
+			}
+			n += Long.bitCount(bits[base + first] & firstMask);
+			for(int i = first + 1; i < last; ++i)
+				n += Long.bitCount(bits[base + i]);
+			n += Long.bitCount(bits[base + last] & lastMask);
+		}
+		return n;
+	}
+	
+	/**
+	 * 创建地图块游标<br>
+	 * 游标通过{@link MapTileCursor#moveTo(int, int)}在地图块之间移动，读取时不创建对象<br>
+	 * 游标不是线程安全的，每个线程使用自己的游标
+	 * 
+	 * @return 位于(0, 0)的新游标
+	 */
+	public MapTileCursor cursor() {
+		return new MapTileCursor(this);
+	}
+	
+	/**
+	 * 获取地图块信息<br>
+	 * 兼容旧的接口，第一次调用时为每个地图块创建{@link MapTileInfo}对象，占用大量内存，
+	 * 创建的数据在内存不足时可能被回收，之后再次调用会重新创建<br>
+	 * 新代码应使用{@link #cursor()}
+	 * 
+	 * @return 以[x][y]索引的地图块信息
+	 */
+	public MapTileInfo[][] getTiles() {
+		SoftReference<MapTileInfo[][]> ref = tiles;
+		MapTileInfo[][] ret = ref == null ? null : ref.get();
+		if(ret != null) return ret;
+		ret = new MapTileInfo[width][height];
+		for(int x = 0; x < width; ++x)
+			for(int y = 0; y < height; ++y) {
+				int i = x + y * width;
+				int f = flags[i];
+				MapTileInfo mi = new MapTileInfo();
+				mi.setBngImgIdx(bngImgIdx[i]);
+				mi.setHasBng((f & HAS_BNG) != 0);
+				mi.setCanWalk((f & CAN_WALK) != 0);
+				mi.setMidImgIdx(midImgIdx[i]);
+				mi.setHasMid((f & HAS_MID) != 0);
+				mi.setObjImgIdx(objImgIdx[i]);
+				mi.setHasObj((f & HAS_OBJ) != 0);
+				mi.setCanFly((f & CAN_FLY) != 0);
+				mi.setDoorIdx(doorIdx[i]);
+				mi.setHasDoor((f & HAS_DOOR) != 0);
+				mi.setDoorOffset(doorOffset[i]);
+				mi.setDoorOpen((f & DOOR_OPEN) != 0);
+				mi.setAniFrame(aniFrame[i]);
+				mi.setHasAni((f & HAS_ANI) != 0);
+				mi.setAniTick(aniTick[i]);
+				mi.setObjFileIdx(objFileIdx[i]);
+				mi.setLight(light[i]);
+				ret[x][y] = mi;
+			}
+		tiles = new SoftReference<MapTileInfo[][]>(ret);
+		return ret;
 	}
 }
@@ -0,0 +1,684 @@
+/*
+ * Copyright 2017 JOOTNET Project
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Support: https://github.com/jootnet/mir2.core
+ */
+package com.github.jootnet.mir2.core.map;
+
+import java.util.Arrays;
+
+/**
+ * 分层寻路数据(HPA*)<br>
+ * 地图被划分为边长{@link #CLUSTER_SIZE}的区块，预先计算相邻区块之间的入口和区块内入口之间的步数，
+ * 远距离寻路先在入口组成的抽象图上搜索，再用{@link PathFinder}细化为每一步<br>
+ * 同时为每个地图块标记连通区域，{@link #isReachable(int, int, int, int)}只需比较两个标记<br>
+ * <br>
+ * 通过{@link Map#getGraph()}获取，每个地图只创建一次<br>
+ * 门的开关状态改变时只重新计算门所在及周围区块的入口、步数和连接，连通标记只在门周围的连通区域内重新分配，
+ * 连通关系没有改变时标记保持不变；除改变的区块外，每次更新只复制区块数组并重新计算每个区块第一个入口的编号，
+ * 两者都与区块数量成正比<br>
+ * 只有开启的门可以通过，关闭的门所在地图块即使可以行走也视为阻挡；对象可以被多个线程同时使用，更新时查询使用的是更新前的完整数据
+ *
+ * @author 云中双月
+ */
+public final class MapGraph {
+
+	/** 区块边长(地图块) */
+	public static final int CLUSTER_SIZE = 16;
+
+	/* 连续可通过的边界长度达到此值时在两端各设一个入口，否则在中间设一个入口 */
+	private static final int LONG_ENTRANCE = 6;
+	/* 一个区块内最多的连通区域数量，八方向连通时为间隔排列的单个地图块 */
+	private static final int MAX_COMPS = ((CLUSTER_SIZE + 1) / 2) * ((CLUSTER_SIZE + 1) / 2);
+
+	private final Map map;
+	private final PathFinder finder;
+	private final int width;
+	private final int height;
+	/* 横向与纵向区块数量 */
+	private final int cw;
+	private final int ch;
+	/* 创建与更新时使用的临时数组，调用方持有地图对象锁 */
+	private final int[] buildQueue = new int[CLUSTER_SIZE * CLUSTER_SIZE];
+	private final int[] buildDist = new int[CLUSTER_SIZE * CLUSTER_SIZE];
+	/* 分配连通标记时的访问标记，区块i的第l个连通区域序号为i * MAX_COMPS + l - 1 */
+	private final int[] compStamp;
+	private int stampGen;
+	private int[] compQueue = new int[MAX_COMPS];
+	/* 下一个新的连通标记 */
+	private int nextLabel;
+
+	private volatile State state;
+
+	/* 由Map在持有自身锁时创建 */
+	MapGraph(Map map) {
+		this.map = map;
+		this.finder = new PathFinder(map);
+		this.width = map.getWidth();
+		this.height = map.getHeight();
+		this.cw = (width + CLUSTER_SIZE - 1) / CLUSTER_SIZE;
+		this.ch = (height + CLUSTER_SIZE - 1) / CLUSTER_SIZE;
+		Cluster[] clusters = new Cluster[cw * ch];
+		for(int c = 0; c < clusters.length; ++c) {
+			int x0 = (c % cw) * CLUSTER_SIZE;
+			int y0 = (c / cw) * CLUSTER_SIZE;
+			clusters[c] = new Cluster(x0, y0, Math.min(CLUSTER_SIZE, width - x0), Math.min(CLUSTER_SIZE, height - y0));
+			label(clusters[c]);
+		}
+		for(int c = 0; c < clusters.length; ++c)
+			crossings(clusters, c);
+		for(int c = 0; c < clusters.length; ++c)
+			entrances(clusters, c);
+		for(int c = 0; c < clusters.length; ++c)
+			links(clusters, c);
+		compStamp = new int[clusters.length * MAX_COMPS];
+		boolean[] all = new boolean[clusters.length];
+		Arrays.fill(all, true);
+		relabel(clusters, null, all);
+		state = new State(clusters);
+	}
+
+	/**
+	 * 判断两个地图块之间是否存在路径
+	 *
+	 * @param ax
+	 * 		起点横坐标
+	 * @param ay
+	 * 		起点纵坐标
+	 * @param bx
+	 * 		终点横坐标
+	 * @param by
+	 * 		终点纵坐标
+	 * @return 两个地图块都可以通过且相互连通时为true
+	 */
+	public boolean isReachable(int ax, int ay, int bx, int by) {
+		State st = state;
+		int a = st.component(ax, ay);
+		return a >= 0 && a == st.component(bx, by);
+	}
+
+	/**
+	 * 获取地图块所在的连通区域标记<br>
+	 * 标记相同的地图块相互连通，门的状态改变后标记可能重新编号
+	 *
+	 * @param x
+	 * 		横坐标
+	 * @param y
+	 * 		纵坐标
+	 * @return 连通区域标记，地图块不可通过或超出地图范围时为-1
+	 */
+	public int getComponent(int x, int y) {
+		return state.component(x, y);
+	}
+
+	/**
+	 * 寻找两个地图块之间的路径<br>
+	 * 距离较远时先在区块入口组成的抽象图上搜索，再将相邻入口之间细化为每一步，路径接近但不保证最短；
+	 * 距离在一个区块以内时直接使用{@link PathFinder}<br>
+	 * 路径的格式、数组容量不足时的处理与{@link PathFinder#find(int, int, int, int, boolean, int[])}相同
+	 *
+	 * @param sx
+	 * 		起点横坐标
+	 * @param sy
+	 * 		起点纵坐标
+	 * @param tx
+	 * 		终点横坐标
+	 * @param ty
+	 * 		终点纵坐标
+	 * @param path
+	 * 		路径输出数组，可以为null
+	 * @return 路径步数，起点与终点相同时为0；无法到达时为{@link PathFinder#NOT_FOUND}
+	 * @throws IllegalArgumentException 起点超出地图范围
+	 */
+	public int find(int sx, int sy, int tx, int ty, int[] path) {
+		if(sx < 0 || sy < 0 || sx >= width || sy >= height)
+			throw new IllegalArgumentException("start out of map: (" + sx + ", " + sy + ")");
+		if(sx == tx && sy == ty) return 0;
+		State st = state;
+		int target = st.component(tx, ty);
+		if(target < 0) return PathFinder.NOT_FOUND;
+		int source = st.component(sx, sy);
+		// 起点本身不可通过(例如站在关闭的门上)时无法使用连通标记，交给普通寻路
+		if(source >= 0 && source != target) return PathFinder.NOT_FOUND;
+		int cs = clusterOf(sx, sy);
+		int ct = clusterOf(tx, ty);
+		if(source < 0 || cs == ct || Math.max(Math.abs(sx - tx), Math.abs(sy - ty)) <= CLUSTER_SIZE)
+			return finder.find(sx, sy, tx, ty, false, path);
+		Query q = QUERY.get();
+		int m = q.search(this, st, sx, sy, tx, ty, cs, ct);
+		if(m < 0)
+			return finder.find(sx, sy, tx, ty, false, path);
+		// 依次细化相邻路点之间的路径
+		int capacity = path == null ? 0 : path.length >>> 1;
+		int total = 0;
+		int fx = sx, fy = sy;
+		for(int i = 0; i <= m; ++i) {
+			int to = i < m ? q.waypoints[i] : tx + ty * width;
+			int ex = to % width, ey = to / width;
+			int n;
+			while((n = finder.find(fx, fy, ex, ey, false, q.segment)) > q.segment.length >>> 1)
+				q.segment = new int[n << 1];
+			if(n < 0) return PathFinder.NOT_FOUND;
+			for(int k = 0; k < n && total + k < capacity; ++k) {
+				path[(total + k) << 1] = q.segment[k << 1];
+				path[((total + k) << 1) + 1] = q.segment[(k << 1) + 1];
+			}
+			total += n;
+			fx = ex;
+			fy = ey;
+		}
+		return total;
+	}
+
+	/* 门所在地图块的可通过状态改变，由Map在持有自身锁时调用 */
+	void update(int[] tiles) {
+		Cluster[] old = state.clusters;
+		Cluster[] clusters = old.clone();
+		boolean[] changed = new boolean[clusters.length];
+		for(int t : tiles)
+			changed[clusterOf(t % width, t / width)] = true;
+		boolean[] recross = new boolean[clusters.length];
+		boolean[] reenter = new boolean[clusters.length];
+		boolean[] relink = new boolean[clusters.length];
+		for(int c = 0; c < clusters.length; ++c) {
+			if(!changed[c]) continue;
+			clusters[c] = old[c].copy();
+			label(clusters[c]);
+			int cx = c % cw, cy = c / cw;
+			// 区块拥有右方和下方的边界及下方两个角，改变的区块影响自身和左、上、左上、右上区块拥有的边界
+			for(int dy = -1; dy <= 1; ++dy)
+				for(int dx = -1; dx <= 1; ++dx) {
+					int nx = cx + dx, ny = cy + dy;
+					if(nx < 0 || ny < 0 || nx >= cw || ny >= ch) continue;
+					int n = nx + ny * cw;
+					reenter[n] = true;
+					if(dy < 0 || (dy == 0 && dx <= 0))
+						recross[n] = true;
+				}
+		}
+		// 连接记录相邻区块入口的序号，入口改变的区块及其相邻区块都需要重新计算连接
+		for(int c = 0; c < clusters.length; ++c) {
+			if(!reenter[c]) continue;
+			int cx = c % cw, cy = c / cw;
+			for(int dy = -1; dy <= 1; ++dy)
+				for(int dx = -1; dx <= 1; ++dx) {
+					int nx = cx + dx, ny = cy + dy;
+					if(nx >= 0 && ny >= 0 && nx < cw && ny < ch)
+						relink[nx + ny * cw] = true;
+				}
+		}
+		for(int c = 0; c < clusters.length; ++c) {
+			if(relink[c] && clusters[c] == old[c])
+				clusters[c] = old[c].copy();
+		}
+		for(int c = 0; c < clusters.length; ++c)
+			if(recross[c])
+				crossings(clusters, c);
+		for(int c = 0; c < clusters.length; ++c)
+			if(reenter[c])
+				entrances(clusters, c);
+		for(int c = 0; c < clusters.length; ++c)
+			if(relink[c])
+				links(clusters, c);
+		// 连通关系只可能在经过门周围地图块的连通区域中改变
+		relabel(clusters, old, reenter);
+		state = new State(clusters);
+	}
+
+	private int clusterOf(int x, int y) {
+		return x / CLUSTER_SIZE + (y / CLUSTER_SIZE) * cw;
+	}
+
+	private boolean passable(int tile) {
+		return map.isPassable(tile % width, tile / width, false);
+	}
+
+	/* 标记区块内的连通区域，八方向连通，编号从1开始，不可通过为0 */
+	private void label(Cluster c) {
+		byte[] local = new byte[c.w * c.h];
+		int comps = 0;
+		for(int i = 0; i < local.length; ++i) {
+			if(local[i] != 0 || !map.isPassable(c.x0 + i % c.w, c.y0 + i / c.w, false)) continue;
+			byte id = (byte) ++comps;
+			int head = 0, tail = 0;
+			buildQueue[tail++] = i;
+			local[i] = id;
+			while(head < tail) {
+				int p = buildQueue[head++];
+				int px = p % c.w, py = p / c.w;
+				for(int dy = -1; dy <= 1; ++dy)
+					for(int dx = -1; dx <= 1; ++dx) {
+						int nx = px + dx, ny = py + dy;
+						if(nx < 0 || ny < 0 || nx >= c.w || ny >= c.h) continue;
+						int n = nx + ny * c.w;
+						if(local[n] != 0 || !map.isPassable(c.x0 + nx, c.y0 + ny, false)) continue;
+						local[n] = id;
+						buildQueue[tail++] = n;
+					}
+			}
+		}
+		c.local = local;
+		c.comps = comps;
+		c.label = new int[comps];
+		Arrays.fill(c.label, -1);
+	}
+
+	/* 计算区块拥有的边界上的跨区块连接，每个连接是一对地图块序号，第一个在当前区块 */
+	private void crossings(Cluster[] clusters, int ci) {
+		Cluster c = clusters[ci];
+		int cx = ci % cw, cy = ci / cw;
+		IntList list = new IntList();
+		if(cx + 1 < cw) {
+			int a = (c.x0 + c.w - 1) + c.y0 * width;
+			border(list, a, a + 1, width, c.h);
+		}
+		if(cy + 1 < ch) {
+			int a = c.x0 + (c.y0 + c.h - 1) * width;
+			border(list, a, a + width, 1, c.w);
+		}
+		// 两个斜角只能斜向穿过
+		if(cy + 1 < ch) {
+			int by = c.y0 + c.h;
+			if(cx + 1 < cw)
+				corner(list, (c.x0 + c.w - 1) + (by - 1) * width, (c.x0 + c.w) + by * width);
+			if(cx > 0)
+				corner(list, c.x0 + (by - 1) * width, (c.x0 - 1) + by * width);
+		}
+		c.cross = list.toArray();
+	}
+
+	private void corner(IntList list, int a, int b) {
+		if(passable(a) && passable(b)) {
+			list.add(a);
+			list.add(b);
+		}
+	}
+
+	/*
+	 * 一条边界两侧各n个地图块，a侧第i个为a + i * step，b侧对应为b + i * step
+	 * 两侧都可通过的连续一段设置入口；斜向穿过的连接只在相邻位置没有直接穿过时才需要单独设置入口，
+	 * 否则可以经由同侧相邻的地图块到达已有入口
+	 */
+	private void border(IntList list, int a, int b, int step, int n) {
+		int run = -1;
+		for(int i = 0; i <= n; ++i) {
+			boolean straight = i < n && passable(a + i * step) && passable(b + i * step);
+			if(straight) {
+				if(run < 0) run = i;
+				continue;
+			}
+			if(run >= 0) {
+				int end = i - 1;
+				if(end - run + 1 >= LONG_ENTRANCE) {
+					list.add(a + run * step);
+					list.add(b + run * step);
+					list.add(a + end * step);
+					list.add(b + end * step);
+				} else {
+					int mid = (run + end) >>> 1;
+					list.add(a + mid * step);
+					list.add(b + mid * step);
+				}
+				run = -1;
+			}
+		}
+		for(int i = 0; i + 1 < n; ++i) {
+			int ai = a + i * step, bi = b + i * step;
+			int an = ai + step, bn = bi + step;
+			if(passable(ai) && passable(bi) || passable(an) && passable(bn)) continue;
+			if(passable(ai) && passable(bn)) {
+				list.add(ai);
+				list.add(bn);
+			}
+			if(passable(an) && passable(bi)) {
+				list.add(an);
+				list.add(bi);
+			}
+		}
+	}
+
+	/* 收集区块周围所有连接中位于区块内的地图块作为入口，并计算入口之间在区块内的步数 */
+	private void entrances(Cluster[] clusters, int ci) {
+		Cluster c = clusters[ci];
+		int cx = ci % cw, cy = ci / cw;
+		IntList list = new IntList();
+		for(int dy = -1; dy <= 1; ++dy)
+			for(int dx = -1; dx <= 1; ++dx) {
+				int nx = cx + dx, ny = cy + dy;
+				if(nx < 0 || ny < 0 || nx >= cw || ny >= ch) continue;
+				for(int t : clusters[nx + ny * cw].cross)
+					if(clusterOf(t % width, t / width) == ci && !list.contains(t))
+						list.add(t);
+			}
+		int[] entr = list.toArray();
+		int k = entr.length;
+		int[] dist = new int[k * k];
+		for(int i = 0; i < k; ++i) {
+			bfs(c, entr[i] % width, entr[i] / width, buildQueue, buildDist);
+			for(int j = 0; j < k; ++j)
+				dist[i * k + j] = buildDist[local(c, entr[j])];
+		}
+		c.entr = entr;
+		c.dist = dist;
+	}
+
+	private int local(Cluster c, int tile) {
+		return (tile % width - c.x0) + (tile / width - c.y0) * c.w;
+	}
+
+	/* 区块内从(sx, sy)出发的八方向广度优先搜索，out中不可到达的位置为-1 */
+	private static void bfs(Cluster c, int sx, int sy, int[] queue, int[] out) {
+		Arrays.fill(out, 0, c.w * c.h, -1);
+		int s = (sx - c.x0) + (sy - c.y0) * c.w;
+		if(c.local[s] == 0) return;
+		int head = 0, tail = 0;
+		queue[tail++] = s;
+		out[s] = 0;
+		while(head < tail) {
+			int p = queue[head++];
+			int px = p % c.w, py = p / c.w;
+			for(int dy = -1; dy <= 1; ++dy)
+				for(int dx = -1; dx <= 1; ++dx) {
+					int nx = px + dx, ny = py + dy;
+					if(nx < 0 || ny < 0 || nx >= c.w || ny >= c.h) continue;
+					int n = nx + ny * c.w;
+					if(out[n] >= 0 || c.local[n] == 0) continue;
+					out[n] = out[p] + 1;
+					queue[tail++] = n;
+				}
+		}
+	}
+
+	/* 计算区块每个入口穿过边界后到达的相邻区块入口，以区块序号和入口序号成对记录 */
+	private void links(Cluster[] clusters, int ci) {
+		Cluster c = clusters[ci];
+		int cx = ci % cw, cy = ci / cw;
+		int[] start = new int[c.entr.length + 1];
+		IntList list = new IntList();
+		for(int i = 0; i < c.entr.length; ++i) {
+			int t = c.entr[i];
+			for(int dy = -1; dy <= 1; ++dy)
+				for(int dx = -1; dx <= 1; ++dx) {
+					int nx = cx + dx, ny = cy + dy;
+					if(nx < 0 || ny < 0 || nx >= cw || ny >= ch) continue;
+					int[] cross = clusters[nx + ny * cw].cross;
+					for(int j = 0; j < cross.length; j += 2) {
+						int u;
+						if(cross[j] == t) u = cross[j + 1];
+						else if(cross[j + 1] == t) u = cross[j];
+						else continue;
+						int pc = clusterOf(u % width, u / width);
+						list.add(pc);
+						list.add(indexOf(clusters[pc].entr, u));
+					}
+				}
+			start[i + 1] = list.size() >>> 1;
+		}
+		c.linkStart = start;
+		c.links = list.toArray();
+	}
+
+	private static int indexOf(int[] a, int v) {
+		for(int i = 0; i < a.length; ++i)
+			if(a[i] == v)
+				return i;
+		throw new IllegalStateException("not an entrance: " + v);
+	}
+
+	/*
+	 * 从seeds中区块的连通区域出发，沿入口之间的连接找出完整的连通区域并分配标记
+	 * 连通区域内原有标记都相同且未被本次分配的其他区域使用时沿用原标记，否则使用新标记
+	 * 门改变后拆分出的每一部分都包含门周围的地图块，因此都会被访问到，不会出现两部分沿用同一个标记
+	 * old不为null时为更新，标记改变的区块复制后再修改，old为null时直接修改
+	 */
+	private void relabel(Cluster[] clusters, Cluster[] old, boolean[] seeds) {
+		if(++stampGen == 0) {
+			Arrays.fill(compStamp, 0);
+			stampGen = 1;
+		}
+		IntList claimed = new IntList();
+		for(int s = 0; s < clusters.length; ++s) {
+			if(!seeds[s]) continue;
+			for(int l = 1; l <= clusters[s].comps; ++l) {
+				int id = s * MAX_COMPS + l - 1;
+				if(compStamp[id] == stampGen) continue;
+				compStamp[id] = stampGen;
+				compQueue[0] = id;
+				int head = 0, tail = 1;
+				int reuse = -1;
+				boolean uniform = true;
+				while(head < tail) {
+					id = compQueue[head++];
+					int ci = id / MAX_COMPS;
+					int cl = id % MAX_COMPS + 1;
+					Cluster c = clusters[ci];
+					int prev = c.label[cl - 1];
+					if(prev >= 0) {
+						if(reuse < 0) reuse = prev;
+						else if(reuse != prev) uniform = false;
+					}
+					for(int k = 0; k < c.entr.length; ++k) {
+						if((c.local[local(c, c.entr[k])] & 0xff) != cl) continue;
+						for(int e = c.linkStart[k]; e < c.linkStart[k + 1]; ++e) {
+							int pc = c.links[e << 1];
+							Cluster p = clusters[pc];
+							int nid = pc * MAX_COMPS + (p.local[local(p, p.entr[c.links[(e << 1) + 1]])] & 0xff) - 1;
+							if(compStamp[nid] == stampGen) continue;
+							compStamp[nid] = stampGen;
+							if(tail == compQueue.length)
+								compQueue = Arrays.copyOf(compQueue, tail << 1);
+							compQueue[tail++] = nid;
+						}
+					}
+				}
+				int label = uniform && reuse >= 0 && !claimed.contains(reuse) ? reuse : nextLabel++;
+				claimed.add(label);
+				for(int i = 0; i < tail; ++i) {
+					int ci = compQueue[i] / MAX_COMPS;
+					int cl = compQueue[i] % MAX_COMPS;
+					Cluster c = clusters[ci];
+					if(c.label[cl] == label) continue;
+					if(old != null) {
+						if(c == old[ci])
+							c = clusters[ci] = c.copy();
+						if(c.label == old[ci].label)
+							c.label = c.label.clone();
+					}
+					c.label[cl] = label;
+				}
+			}
+		}
+	}
+
+	/** 创建与更新时收集地图块序号 */
+	private static final class IntList {
+		private int[] data = new int[16];
+		private int size;
+
+		void add(int v) {
+			if(size == data.length)
+				data = Arrays.copyOf(data, size << 1);
+			data[size++] = v;
+		}
+
+		int size() {
+			return size;
+		}
+
+		boolean contains(int v) {
+			for(int i = 0; i < size; ++i)
+				if(data[i] == v)
+					return true;
+			return false;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(data, size);
+		}
+	}
+
+	/** 一个区块的数据，发布后不再修改，更新时复制 */
+	private static final class Cluster {
+		final int x0;
+		final int y0;
+		final int w;
+		final int h;
+		/* 区块内各地图块的连通区域编号，0表示不可通过 */
+		byte[] local;
+		int comps;
+		/* 区块内各连通区域的全局连通标记 */
+		int[] label;
+		/* 区块拥有的跨区块连接 */
+		int[] cross;
+		/* 入口地图块序号及入口之间的步数，-1表示区块内不可到达 */
+		int[] entr;
+		int[] dist;
+		/* 入口i穿过边界的连接为links中第linkStart[i]到linkStart[i + 1]对(相邻区块序号, 入口序号) */
+		int[] linkStart;
+		int[] links;
+
+		Cluster(int x0, int y0, int w, int h) {
+			this.x0 = x0;
+			this.y0 = y0;
+			this.w = w;
+			this.h = h;
+		}
+
+		Cluster copy() {
+			Cluster c = new Cluster(x0, y0, w, h);
+			c.local = local;
+			c.comps = comps;
+			c.cross = cross;
+			c.label = label;
+			c.entr = entr;
+			c.dist = dist;
+			c.linkStart = linkStart;
+			c.links = links;
+			return c;
+		}
+	}
+
+	/** 某一时刻的完整数据，查询时读取一次后使用 */
+	private final class State {
+		final Cluster[] clusters;
+		/* 区块的第一个入口在抽象图节点中的序号，最后一个元素为节点总数 */
+		final int[] nodeBase;
+
+		State(Cluster[] clusters) {
+			this.clusters = clusters;
+			this.nodeBase = new int[clusters.length + 1];
+			for(int c = 0; c < clusters.length; ++c)
+				nodeBase[c + 1] = nodeBase[c] + clusters[c].entr.length;
+		}
+
+		int component(int x, int y) {
+			if(x < 0 || y < 0 || x >= width || y >= height) return -1;
+			Cluster c = clusters[clusterOf(x, y)];
+			int l = c.local[(x - c.x0) + (y - c.y0) * c.w] & 0xff;
+			return l == 0 ? -1 : c.label[l - 1];
+		}
+	}
+
+	private static final ThreadLocal<Query> QUERY = new ThreadLocal<Query>() {
+		@Override
+		protected Query initialValue() {
+			return new Query();
+		}
+	};
+
+	/** 一个线程的抽象图搜索数据 */
+	private static final class Query {
+		final SearchNodes nodes = new SearchNodes();
+		final int[] queue = new int[CLUSTER_SIZE * CLUSTER_SIZE];
+		final int[] dist = new int[CLUSTER_SIZE * CLUSTER_SIZE];
+		int[] goal = new int[16];
+		/* 抽象图节点所属的区块，节点加入开放列表时记录 */
+		int[] owner = new int[0];
+		int[] waypoints = new int[16];
+		int[] segment = new int[CLUSTER_SIZE * CLUSTER_SIZE * 2];
+
+		/* 在抽象图上搜索，路点(入口地图块序号)按顺序写入waypoints，返回路点数量，找不到时返回-1 */
+		int search(MapGraph g, State st, int sx, int sy, int tx, int ty, int cs, int ct) {
+			int width = g.width;
+			Cluster[] clusters = st.clusters;
+			int goalNode = st.nodeBase[clusters.length];
+			this.nodes.prepare(goalNode + 1);
+			if(owner.length < goalNode)
+				owner = new int[goalNode];
+			Cluster ctc = clusters[ct];
+			if(goal.length < ctc.entr.length)
+				goal = new int[ctc.entr.length];
+			bfs(ctc, tx, ty, queue, dist);
+			for(int i = 0; i < ctc.entr.length; ++i)
+				goal[i] = dist[g.local(ctc, ctc.entr[i])];
+			Cluster csc = clusters[cs];
+			bfs(csc, sx, sy, queue, dist);
+			for(int i = 0; i < csc.entr.length; ++i) {
+				int d = dist[g.local(csc, csc.entr[i])];
+				int t = csc.entr[i];
+				if(d < 0) continue;
+				int to = st.nodeBase[cs] + i;
+				owner[to] = cs;
+				this.nodes.open(to, -1, d, h(t % width, t / width, tx, ty));
+			}
+			while(!this.nodes.isEmpty()) {
+				int n = this.nodes.pop();
+				if(n == goalNode)
+					return waypoints(st, n);
+				int ci = owner[n];
+				Cluster c = clusters[ci];
+				int base = st.nodeBase[ci];
+				int k = n - base;
+				int gn = this.nodes.g(n);
+				if(ci == ct && goal[k] >= 0)
+					this.nodes.open(goalNode, n, gn + goal[k], 0);
+				// 区块内到其他入口
+				int count = c.entr.length;
+				for(int j = 0; j < count; ++j) {
+					int d = c.dist[k * count + j];
+					if(j == k || d < 0) continue;
+					int t = c.entr[j];
+					owner[base + j] = ci;
+					this.nodes.open(base + j, n, gn + d, h(t % width, t / width, tx, ty));
+				}
+				// 穿过边界到相邻区块的入口
+				for(int e = c.linkStart[k]; e < c.linkStart[k + 1]; ++e) {
+					int pc = c.links[e << 1];
+					int pk = c.links[(e << 1) + 1];
+					int t = clusters[pc].entr[pk];
+					int to = st.nodeBase[pc] + pk;
+					owner[to] = pc;
+					this.nodes.open(to, n, gn + 1, h(t % width, t / width, tx, ty));
+				}
+			}
+			return -1;
+		}
+
+		private int waypoints(State st, int goalNode) {
+			int m = 0;
+			for(int n = nodes.parent(goalNode); n >= 0; n = nodes.parent(n))
+				++m;
+			if(waypoints.length < m)
+				waypoints = new int[m];
+			int i = m;
+			for(int n = nodes.parent(goalNode); n >= 0; n = nodes.parent(n))
+				waypoints[--i] = st.clusters[owner[n]].entr[n - st.nodeBase[owner[n]]];
+			return m;
+		}
+
+		private static int h(int x, int y, int tx, int ty) {
+			return Math.max(Math.abs(x - tx), Math.abs(y - ty));
+		}
+	}
+}
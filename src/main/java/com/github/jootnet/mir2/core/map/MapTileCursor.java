@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 JOOTNET Project
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Support: https://github.com/jootnet/mir2.core
+ */
+package com.github.jootnet.mir2.core.map;
+
+/**
+ * 地图块游标<br>
+ * 指向地图中的一个地图块，读取的信息与{@link MapTileInfo}相同，但直接读取{@link Map}中的数组，移动游标不创建对象<br>
+ * 游标不是线程安全的
+ *
+ * <pre>
+ * MapTileCursor c = map.cursor();
+ * for(int y = 0; y &lt; map.getHeight(); ++y)
+ * 	for(int x = 0; x &lt; map.getWidth(); ++x)
+ * 		if(c.moveTo(x, y).isHasObj()) ...
+ * </pre>
+ *
+ * @author 云中双月
+ */
+public final class MapTileCursor {
+
+	private final Map map;
+	private int x;
+	private int y;
+	/* 当前地图块在数组中的序号 */
+	private int i;
+
+	MapTileCursor(Map map) {
+		this.map = map;
+	}
+
+	/**
+	 * 将游标移动到指定地图块
+	 *
+	 * @param x
+	 * 		横坐标
+	 * @param y
+	 * 		纵坐标
+	 * @return 当前游标
+	 * @throws IndexOutOfBoundsException 坐标超出地图范围
+	 */
+	public MapTileCursor moveTo(int x, int y) {
+		if(x < 0 || y < 0 || x >= map.getWidth() || y >= map.getHeight())
+			throw new IndexOutOfBoundsException("(" + x + ", " + y + ")");
+		this.x = x;
+		this.y = y;
+		this.i = x + y * map.getWidth();
+		return this;
+	}
+
+	/** 获取游标所在横坐标 */
+	public int getX() {
+		return x;
+	}
+	/** 获取游标所在纵坐标 */
+	public int getY() {
+		return y;
+	}
+	/** 获取背景图索引 */
+	public short getBngImgIdx() {
+		return map.bngImgIdx[i];
+	}
+	/** 获取该地图块是否有背景图 */
+	public boolean isHasBng() {
+		return (map.flags[i] & Map.HAS_BNG) != 0;
+	}
+	/** 获取该地图块是否可以站立或走过 */
+	public boolean isCanWalk() {
+		return (map.flags[i] & Map.CAN_WALK) != 0;
+	}
+	/** 获取补充图索引 */
+	public short getMidImgIdx() {
+		return map.midImgIdx[i];
+	}
+	/** 获取该地图块是否有补充图 */
+	public boolean isHasMid() {
+		return (map.flags[i] & Map.HAS_MID) != 0;
+	}
+	/** 获取对象图索引 */
+	public short getObjImgIdx() {
+		return map.objImgIdx[i];
+	}
+	/** 获取该地图块是否有对象图 */
+	public boolean isHasObj() {
+		return (map.flags[i] & Map.HAS_OBJ) != 0;
+	}
+	/** 获取该地图块是否可以飞越 */
+	public boolean isCanFly() {
+		return (map.flags[i] & Map.CAN_FLY) != 0;
+	}
+	/** 获取门索引 */
+	public byte getDoorIdx() {
+		return map.doorIdx[i];
+	}
+	/** 获取该地图块是否有门 */
+	public boolean isHasDoor() {
+		return (map.flags[i] & Map.HAS_DOOR) != 0;
+	}
+	/** 获取门偏移 */
+	public byte getDoorOffset() {
+		return map.doorOffset[i];
+	}
+	/** 获取门是否开启 */
+	public boolean isDoorOpen() {
+		return (map.flags[i] & Map.DOOR_OPEN) != 0;
+	}
+	/** 获取动画帧数 */
+	public byte getAniFrame() {
+		return map.aniFrame[i];
+	}
+	/** 获取该地图块是否有动画 */
+	public boolean isHasAni() {
+		return (map.flags[i] & Map.HAS_ANI) != 0;
+	}
+	/** 获取动画跳帧数 */
+	public byte getAniTick() {
+		return map.aniTick[i];
+	}
+	/** 获取资源文件索引 */
+	public byte getObjFileIdx() {
+		return map.objFileIdx[i];
+	}
+	/** 获取亮度 */
+	public byte getLight() {
+		return map.light[i];
+	}
+}
@@ -17,7 +17,8 @@
 package com.github.jootnet.mir2.core.map;
 
 /**
- * MapTile方便程序逻辑的另类解读方式
+ * MapTile方便程序逻辑的另类解读方式<br>
+ * 由{@link Map#getTiles()}按需创建，大量访问地图块时使用{@link MapTileCursor}
  * 
  * @author 云中双月
  */
@@ -19,7 +19,7 @@ package com.github.jootnet.mir2.core.map;
 import java.io.File;
 import java.util.HashMap;
 
-import com.github.jootnet.mir2.core.BinaryReader;
+import com.github.jootnet.mir2.core.BufferedBinaryReader;
 
 /**
  * 地图管理类<br>
@@ -41,6 +41,11 @@ import com.github.jootnet.mir2.core.BinaryReader;
  */
 public final class Maps {
 
+	/* 文件头长度，之后是按列存放的地图块数据 */
+	private static final int HEADER_SIZE = 56;
+	/* 新版地图标识在文件头中的位置 */
+	private static final int VER_FLAG_OFFSET = 32;
+	
 	private static java.util.Map<String, Map> maps = new HashMap<String, Map>();
 	private static Object map_locker = new Object();
 	
@@ -59,74 +64,88 @@ public final class Maps {
 			if(maps.containsKey(mapNo))
 				return maps.get(mapNo);
 			try{
-				BinaryReader br_map = new BinaryReader(new File(mapPath), "r");
+				// 文件头使用缓冲区读取，地图块数据直接从文件一次读出，读取完成后立即关闭文件
+				BufferedBinaryReader br_map = new BufferedBinaryReader(new File(mapPath), HEADER_SIZE);
 				Map ret = new Map();
-				ret.setWidth(br_map.readShortLE());
-				ret.setHeight(br_map.readShortLE());
-				br_map.skipBytes(28);
-				boolean newMapFlag = br_map.readByte() == 2; // 新版地图每一个Tile占用14个字节，最后的两个字节作用未知
-				br_map.skipBytes(23);
-				MapTileInfo[][] mapTileInfos = new MapTileInfo[ret.getWidth()][ret.getHeight()];
-				for (int width = 0; width < ret.getWidth(); ++width)
-					for (int height = 0; height < ret.getHeight(); ++height) {
-						MapTileInfo mi = new MapTileInfo();
+				byte[] data;
+				boolean newMapFlag;
+				try {
+					ret.setWidth(br_map.readShortLE());
+					ret.setHeight(br_map.readShortLE());
+					br_map.seek(VER_FLAG_OFFSET);
+					newMapFlag = br_map.readByte() == 2; // 新版地图每一个Tile占用14个字节，最后的两个字节作用未知
+					// 地图块数据一次读出，之后按固定步长从数组中解析
+					data = new byte[ret.getWidth() * ret.getHeight() * (newMapFlag ? 14 : 12)];
+					br_map.seek(HEADER_SIZE);
+					br_map.readFully(data);
+				} finally {
+					br_map.close();
+				}
+				int tileSize = newMapFlag ? 14 : 12;
+				ret.allocate();
+				int w = ret.getWidth();
+				int h = ret.getHeight();
+				int p = 0;
+				// 文件中按列存放，Map中按行存放
+				for (int width = 0; width < w; ++width)
+					for (int height = 0; height < h; ++height, p += tileSize) {
+						int i = width + height * w;
+						int flags = 0;
 						// 读取背景
-						short bng = br_map.readShortLE();
+						int bng = (data[p] & 0xff) | ((data[p + 1] & 0xff) << 8);
 						// 读取中间层
-						short mid = br_map.readShortLE();
+						int mid = (data[p + 2] & 0xff) | ((data[p + 3] & 0xff) << 8);
 						// 读取对象层
-						short obj = br_map.readShortLE();
-						// 设置背景
+						int obj = (data[p + 4] & 0xff) | ((data[p + 5] & 0xff) << 8);
+						// 设置背景(背景图大小为4个地图块，只有横纵坐标都为双数时才有背景)
 						if((bng & 0x7fff) > 0) {
-							mi.setBngImgIdx((short) ((bng & 0x7fff) - 1));
-							mi.setHasBng(true);
+							ret.bngImgIdx[i] = (short) ((bng & 0x7fff) - 1);
+							if (width % 2 == 0 && height % 2 == 0)
+								flags |= Map.HAS_BNG;
 						}
 						// 设置中间层
 						if((mid & 0x7fff) > 0) {
-							mi.setMidImgIdx((short) ((mid & 0x7fff) - 1));
-							mi.setHasMid(true);
+							ret.midImgIdx[i] = (short) ((mid & 0x7fff) - 1);
+							flags |= Map.HAS_MID;
 						}
 						// 设置对象层
 						if((obj & 0x7fff) > 0) {
-							mi.setObjImgIdx((short) ((obj & 0x7fff) - 1));
-							mi.setHasObj(true);
+							ret.objImgIdx[i] = (short) ((obj & 0x7fff) - 1);
+							flags |= Map.HAS_OBJ;
 						}
 						// 设置是否可站立
-						mi.setCanWalk((bng & 0x8000) != 0x8000 && (obj & 0x8000) != 0x8000);
+						if((bng & 0x8000) != 0x8000 && (obj & 0x8000) != 0x8000)
+							flags |= Map.CAN_WALK;
 						// 设置是否可飞行
-						mi.setCanFly((obj & 0x8000) != 0x8000);
+						if((obj & 0x8000) != 0x8000)
+							flags |= Map.CAN_FLY;
 						
 						// 读取门索引(第7个byte)
-						byte btTmp = br_map.readByte();
+						byte btTmp = data[p + 6];
 						if((btTmp & 0x80) == 0x80) {
-							mi.setDoorIdx((byte) (btTmp & 0x7F));
-							mi.setHasDoor(true);
+							ret.doorIdx[i] = (byte) (btTmp & 0x7F);
+							flags |= Map.HAS_DOOR;
 						}
 						// 读取门偏移(第8个byte)
-						btTmp = br_map.readByte();
-						mi.setDoorOffset(btTmp);
-						if((btTmp & 0x80) == 0x80) mi.setDoorOpen(true);
+						btTmp = data[p + 7];
+						ret.doorOffset[i] = btTmp;
+						if((btTmp & 0x80) == 0x80) flags |= Map.DOOR_OPEN;
 						// 读取动画帧数(第9个byte)
-						btTmp = br_map.readByte();
-						mi.setAniFrame(btTmp);
+						btTmp = data[p + 8];
+						ret.aniFrame[i] = btTmp;
 						if((btTmp & 0x80) == 0x80) {
-							mi.setAniFrame((byte) (btTmp & 0x7F));
-							mi.setHasAni(true);
+							ret.aniFrame[i] = (byte) (btTmp & 0x7F);
+							flags |= Map.HAS_ANI;
 						}
 						// 读取并设置动画跳帧数(第10个byte)
-						mi.setAniTick(br_map.readByte());
+						ret.aniTick[i] = data[p + 9];
 						// 读取资源文件索引(第11个byte)
-						mi.setObjFileIdx(br_map.readByte());
+						ret.objFileIdx[i] = data[p + 10];
 						// 读取光照(第12个byte)
-						mi.setLight(br_map.readByte());
-						if(newMapFlag)
-							br_map.skipBytes(2);
-						if (width % 2 != 0 || height % 2 != 0)
-							mi.setHasBng(false);
-						mapTileInfos[width][height] = mi;
+						ret.light[i] = data[p + 11];
+						ret.flags[i] = (byte) flags;
 					}
-				ret.setMapTiles(mapTileInfos);
-				br_map.close();
+				ret.buildBits();
 				maps.put(mapNo, ret);
 				return ret;
 			}catch(Exception ex) {
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2017 JOOTNET Project
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Support: https://github.com/jootnet/mir2.core
+ */
+package com.github.jootnet.mir2.core.map;
+
+/**
+ * 地图寻路<br>
+ * 在{@link Map}的可行走地图块上使用跳点搜索(JPS)寻找最短路径<br>
+ * 热血传奇2中人物可以向八个方向移动，斜向移动一步与横纵移动一步耗时相同，因此路径长度按步数计算<br>
+ * 远距离寻路使用{@link MapGraph}<br>
+ * <br>
+ * 对象可以被多个线程同时使用；每个线程使用自己的搜索数据，数组按遇到的最大地图分配后重复使用，寻路过程中不创建对象<br>
+ * 搜索数据每个地图块占用24字节(1000x1000的地图约24MB)，一直保留到线程结束或调用{@link #releaseThreadData()}
+ *
+ * @author 云中双月
+ */
+public final class PathFinder {
+
+	/** 无法到达目标 */
+	public static final int NOT_FOUND = -1;
+	/** 扩展的节点数超过限制，未能找到路径 */
+	public static final int BUDGET_EXCEEDED = -2;
+
+	private final Map map;
+	private volatile int maxExpansions;
+
+	/**
+	 * 创建地图寻路对象
+	 *
+	 * @param map
+	 * 		地图
+	 */
+	public PathFinder(Map map) {
+		if(map == null)
+			throw new IllegalArgumentException("map must not be null");
+		this.map = map;
+	}
+
+	/**
+	 * 获取地图
+	 *
+	 * @return 寻路使用的地图
+	 */
+	public Map getMap() {
+		return map;
+	}
+
+	/**
+	 * 设置每次寻路最多扩展的节点数<br>
+	 * 超过时放弃寻路并返回{@link #BUDGET_EXCEEDED}，用于限制大量怪物同时寻路时的耗时
+	 *
+	 * @param maxExpansions
+	 * 		最多扩展的节点数，为0时不限制
+	 */
+	public void setMaxExpansions(int maxExpansions) {
+		if(maxExpansions < 0)
+			throw new IllegalArgumentException("maxExpansions must not be negative");
+		this.maxExpansions = maxExpansions;
+	}
+
+	/**
+	 * 获取每次寻路最多扩展的节点数
+	 *
+	 * @return 最多扩展的节点数，为0时不限制
+	 */
+	public int getMaxExpansions() {
+		return maxExpansions;
+	}
+
+	/**
+	 * 寻找两个地图块之间的最短路径，只有开启的门可以通过
+	 *
+	 * @see #find(int, int, int, int, boolean, int[])
+	 */
+	public int find(int sx, int sy, int tx, int ty, int[] path) {
+		return find(sx, sy, tx, ty, false, path);
+	}
+
+	/**
+	 * 寻找两个地图块之间的最短路径<br>
+	 * 路径以每一步到达的地图块表示，不包含起点，包含终点，第i步的坐标写入path[2 * i]与path[2 * i + 1]<br>
+	 * 路径长于数组容量时只写入前path.length / 2步，返回值依然是完整的步数，
+	 * 只需要接下来几步的调用方可以传入较小的数组
+	 *
+	 * @param sx
+	 * 		起点横坐标，起点本身不要求可以行走
+	 * @param sy
+	 * 		起点纵坐标
+	 * @param tx
+	 * 		终点横坐标
+	 * @param ty
+	 * 		终点纵坐标
+	 * @param doorsPassable
+	 * 		是否将有门的地图块视为可通过，为false时只有开启({@link Map#setDoorOpen(int, boolean)})的门可以通过
+	 * @param path
+	 * 		路径输出数组，可以为null或空数组，此时只计算步数
+	 * @return 路径步数，起点与终点相同时为0；{@link #NOT_FOUND}表示无法到达；{@link #BUDGET_EXCEEDED}表示超出扩展节点数限制
+	 * @throws IllegalArgumentException 起点超出地图范围
+	 */
+	public int find(int sx, int sy, int tx, int ty, boolean doorsPassable, int[] path) {
+		int width = map.getWidth();
+		int height = map.getHeight();
+		if(sx < 0 || sy < 0 || sx >= width || sy >= height)
+			throw new IllegalArgumentException("start out of map: (" + sx + ", " + sy + ")");
+		if(sx == tx && sy == ty) return 0;
+		if(!map.isPassable(tx, ty, doorsPassable)) return NOT_FOUND;
+		Search s = SEARCH.get();
+		s.prepare(map, doorsPassable, tx, ty, width * height);
+		try {
+			int budget = maxExpansions;
+			int start = sx + sy * width;
+			s.nodes.open(start, -1, 0, s.h(sx, sy));
+			int expanded = 0;
+			while(!s.nodes.isEmpty()) {
+				int node = s.nodes.pop();
+				if(node == s.target)
+					return s.write(start, path);
+				if(budget > 0 && ++expanded > budget)
+					return BUDGET_EXCEEDED;
+				s.expand(node);
+			}
+			return NOT_FOUND;
+		} finally {
+			// 不让线程的搜索数据引用地图，地图移除后可以被回收
+			s.map = null;
+		}
+	}
+
+	/**
+	 * 释放当前线程的搜索数据<br>
+	 * 搜索数据按线程寻路过的最大地图分配且不会缩小，线程不再寻路或刚寻路过特别大的地图时可以调用此函数释放，
+	 * 之后的寻路会重新分配
+	 */
+	public static void releaseThreadData() {
+		SEARCH.remove();
+	}
+
+	private static final ThreadLocal<Search> SEARCH = new ThreadLocal<Search>() {
+		@Override
+		protected Search initialValue() {
+			return new Search();
+		}
+	};
+
+	/** 一个线程的搜索数据 */
+	private static final class Search {
+		final SearchNodes nodes = new SearchNodes();
+
+		Map map;
+		private boolean doors;
+		private int width;
+		private int tx;
+		private int ty;
+		int target;
+
+		void prepare(Map map, boolean doors, int tx, int ty, int n) {
+			nodes.prepare(n);
+			this.map = map;
+			this.doors = doors;
+			this.width = map.getWidth();
+			this.tx = tx;
+			this.ty = ty;
+			this.target = tx + ty * width;
+		}
+
+		/* 到终点的估计步数 */
+		int h(int x, int y) {
+			return Math.max(Math.abs(x - tx), Math.abs(y - ty));
+		}
+
+		private boolean walk(int x, int y) {
+			return map.isPassable(x, y, doors);
+		}
+
+		/* 按跳点搜索的剪枝规则扩展节点 */
+		void expand(int node) {
+			int x = node % width;
+			int y = node / width;
+			int p = nodes.parent(node);
+			if(p < 0) {
+				for(int dy = -1; dy <= 1; ++dy)
+					for(int dx = -1; dx <= 1; ++dx)
+						if((dx != 0 || dy != 0) && walk(x + dx, y + dy))
+							jumpFrom(node, x, y, dx, dy);
+				return;
+			}
+			int dx = Integer.signum(x - p % width);
+			int dy = Integer.signum(y - p / width);
+			if(dx != 0 && dy != 0) {
+				if(walk(x, y + dy)) jumpFrom(node, x, y, 0, dy);
+				if(walk(x + dx, y)) jumpFrom(node, x, y, dx, 0);
+				if(walk(x + dx, y + dy)) jumpFrom(node, x, y, dx, dy);
+				if(!walk(x - dx, y) && walk(x - dx, y + dy)) jumpFrom(node, x, y, -dx, dy);
+				if(!walk(x, y - dy) && walk(x + dx, y - dy)) jumpFrom(node, x, y, dx, -dy);
+			} else if(dx != 0) {
+				if(walk(x + dx, y)) jumpFrom(node, x, y, dx, 0);
+				if(!walk(x, y + 1) && walk(x + dx, y + 1)) jumpFrom(node, x, y, dx, 1);
+				if(!walk(x, y - 1) && walk(x + dx, y - 1)) jumpFrom(node, x, y, dx, -1);
+			} else {
+				if(walk(x, y + dy)) jumpFrom(node, x, y, 0, dy);
+				if(!walk(x + 1, y) && walk(x + 1, y + dy)) jumpFrom(node, x, y, 1, dy);
+				if(!walk(x - 1, y) && walk(x - 1, y + dy)) jumpFrom(node, x, y, -1, dy);
+			}
+		}
+
+		private void jumpFrom(int node, int x, int y, int dx, int dy) {
+			int jp = jump(x + dx, y + dy, dx, dy);
+			if(jp < 0) return;
+			int jx = jp % width;
+			int jy = jp / width;
+			// 两个跳点之间是一条直线或斜线，步数为较长的坐标差
+			nodes.open(jp, node, nodes.g(node) + Math.max(Math.abs(jx - x), Math.abs(jy - y)), h(jx, jy));
+		}
+
+		/* 从(x, y)沿方向前进直到遇到跳点，返回跳点序号，遇到障碍返回-1 */
+		private int jump(int x, int y, int dx, int dy) {
+			for(;;) {
+				if(!walk(x, y)) return -1;
+				if(x == tx && y == ty) return x + y * width;
+				if(dx != 0 && dy != 0) {
+					if((walk(x - dx, y + dy) && !walk(x - dx, y)) || (walk(x + dx, y - dy) && !walk(x, y - dy)))
+						return x + y * width;
+					// 斜向前进时横纵两个方向上有跳点则当前点也是跳点
+					if(jump(x + dx, y, dx, 0) >= 0 || jump(x, y + dy, 0, dy) >= 0)
+						return x + y * width;
+				} else if(dx != 0) {
+					if((walk(x + dx, y + 1) && !walk(x, y + 1)) || (walk(x + dx, y - 1) && !walk(x, y - 1)))
+						return x + y * width;
+				} else {
+					if((walk(x + 1, y + dy) && !walk(x + 1, y)) || (walk(x - 1, y + dy) && !walk(x - 1, y)))
+						return x + y * width;
+				}
+				x += dx;
+				y += dy;
+			}
+		}
+
+		/* 将跳点之间的每一步按顺序写入路径数组，返回总步数 */
+		int write(int start, int[] path) {
+			int total = nodes.g(target);
+			int capacity = path == null ? 0 : path.length >>> 1;
+			int step = total;
+			for(int node = target; node != start; node = nodes.parent(node)) {
+				int p = nodes.parent(node);
+				int x = node % width;
+				int y = node / width;
+				int dx = Integer.signum(p % width - x);
+				int dy = Integer.signum(p / width - y);
+				int n = Math.max(Math.abs(p % width - x), Math.abs(p / width - y));
+				// 从跳点向父节点倒退，依次是第step - 1到第step - n步
+				for(int i = 0; i < n; ++i, --step) {
+					if(step - 1 < capacity) {
+						path[(step - 1) << 1] = x;
+						path[((step - 1) << 1) + 1] = y;
+					}
+					x += dx;
+					y += dy;
+				}
+			}
+			return total;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 JOOTNET Project
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Support: https://github.com/jootnet/mir2.core
+ */
+package com.github.jootnet.mir2.core.map;
+
+import java.util.Arrays;
+
+/**
+ * A*搜索的节点数据与开放列表<br>
+ * 节点以从0开始的整数表示，所有数据存放在基本类型数组中，数组按需要的节点数增长后重复使用<br>
+ * 每次搜索递增代数，节点记录的代数不等于当前代数表示本次搜索尚未访问，因此开始新搜索时不需要清空数组<br>
+ * 不是线程安全的，每个线程使用自己的对象
+ *
+ * @author 云中双月
+ */
+final class SearchNodes {
+
+	/* 节点在堆中的位置为CLOSED表示已扩展 */
+	private static final int CLOSED = -1;
+
+	private int gen;
+	private int[] stamp = new int[0];
+	private int[] g;
+	private int[] f;
+	private int[] parent;
+	private int[] pos;
+	/* 以f值排序的二叉堆，存放节点序号 */
+	private int[] heap;
+	private int size;
+
+	/**
+	 * 开始新的搜索
+	 *
+	 * @param n
+	 * 		节点数量
+	 */
+	void prepare(int n) {
+		if(stamp.length < n) {
+			stamp = new int[n];
+			g = new int[n];
+			f = new int[n];
+			parent = new int[n];
+			pos = new int[n];
+			heap = new int[n];
+			gen = 0;
+		}
+		if(++gen == 0) {
+			Arrays.fill(stamp, 0);
+			gen = 1;
+		}
+		size = 0;
+	}
+
+	/** 开放列表是否为空 */
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/** 节点在本次搜索中是否被访问过 */
+	boolean visited(int node) {
+		return stamp[node] == gen;
+	}
+
+	/** 到达节点的代价，节点需已被访问 */
+	int g(int node) {
+		return g[node];
+	}
+
+	/** 到达节点的上一个节点，起点为-1 */
+	int parent(int node) {
+		return parent[node];
+	}
+
+	/**
+	 * 以更小的代价到达节点时加入或更新开放列表，已扩展的节点不再更新
+	 *
+	 * @param node
+	 * 		节点
+	 * @param from
+	 * 		上一个节点，起点为-1
+	 * @param cost
+	 * 		到达节点的代价
+	 * @param estimate
+	 * 		节点到终点的估计代价
+	 */
+	void open(int node, int from, int cost, int estimate) {
+		if(stamp[node] != gen) {
+			stamp[node] = gen;
+			g[node] = cost;
+			f[node] = cost + estimate;
+			parent[node] = from;
+			pos[node] = size;
+			heap[size++] = node;
+			up(size - 1);
+		} else if(pos[node] != CLOSED && cost < g[node]) {
+			g[node] = cost;
+			f[node] = cost + estimate;
+			parent[node] = from;
+			up(pos[node]);
+		}
+	}
+
+	/** 取出f值最小的节点并标记为已扩展 */
+	int pop() {
+		int node = heap[0];
+		pos[node] = CLOSED;
+		int last = heap[--size];
+		if(size > 0) {
+			heap[0] = last;
+			pos[last] = 0;
+			down(0);
+		}
+		return node;
+	}
+
+	private void up(int i) {
+		int node = heap[i];
+		int fv = f[node];
+		while(i > 0) {
+			int p = (i - 1) >>> 1;
+			int pn = heap[p];
+			if(f[pn] <= fv) break;
+			heap[i] = pn;
+			pos[pn] = i;
+			i = p;
+		}
+		heap[i] = node;
+		pos[node] = i;
+	}
+
+	private void down(int i) {
+		int node = heap[i];
+		int fv = f[node];
+		for(;;) {
+			int c = (i << 1) + 1;
+			if(c >= size) break;
+			if(c + 1 < size && f[heap[c + 1]] < f[heap[c]]) ++c;
+			int cn = heap[c];
+			if(f[cn] >= fv) break;
+			heap[i] = cn;
+			pos[cn] = i;
+			i = c;
+		}
+		heap[i] = node;
+		pos[node] = i;
+	}
+}